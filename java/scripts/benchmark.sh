@@ -0,0 +1,7 @@
+#!/bin/bash
+# Runs the result-mapping benchmarks against $DB_NAME (load the bundled data
+# first). Pass -save <file> to record a baseline and -baseline <file> to
+# fail on a regression against it.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+javac -d $DIR/../classes $DIR/../src/*.java || exit 1
+java -Xms512m -Xmx512m -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar ResultBenchmark $DB_NAME $PGPORT $USER "$@"
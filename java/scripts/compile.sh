@@ -5,7 +5,7 @@ export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
 export PATH=$JAVA_HOME/bin:$PATH
 
 # compile the java program
-javac -d $DIR/../classes $DIR/../src/Messenger.java
+javac -d $DIR/../classes $DIR/../src/*.java
 
 #run the java program
 #Use your database name, port number and login
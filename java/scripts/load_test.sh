@@ -0,0 +1,16 @@
+#!/bin/bash
+# Generates a scaled dataset, loads it into $DB_NAME (replacing its tables)
+# and runs the load test against it.
+#   SCALE=10 CLIENTS=64 DURATION=60 java/scripts/load_test.sh
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+CP=$DIR/../classes:$DIR/../lib/pg73jdbc3.jar
+DATA=${DATA_DIR:-/tmp/messenger_workload_${SCALE:-1}}
+
+javac -d $DIR/../classes $DIR/../src/*.java || exit 1
+java -cp $CP WorkloadGenerator $DATA ${SCALE:-1} || exit 1
+psql -p $PGPORT $DB_NAME < $DIR/../../sql/src/create_tables.sql
+psql -p $PGPORT $DB_NAME < $DIR/../../sql/src/create_partitions.sql
+psql -p $PGPORT $DB_NAME < $DIR/../../sql/src/create_triggers.sql
+psql -p $PGPORT $DB_NAME < $DIR/../../sql/src/create_indexes.sql
+java -cp $CP BulkLoader $DB_NAME $PGPORT $USER $DATA ${LOAD_THREADS:-2} || exit 1
+java -cp $CP LoadTest $DB_NAME $PGPORT $USER ${CLIENTS:-16} ${DURATION:-30} ${POOL_SIZE:-${CLIENTS:-16}} ${MIX}
@@ -0,0 +1,12 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# Indicate the path of the java compiler to use
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+# run the multi-session server
+# <listen port> [pool size] [max sessions]
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar MessengerServer $DB_NAME $PGPORT $USER ${LISTEN_PORT:-9090} ${POOL_SIZE:-20} ${MAX_SESSIONS:-2000}
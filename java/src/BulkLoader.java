@@ -0,0 +1,451 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Bulk loader for the ';' delimited data files (data/*.csv). The files are
+ * read on the client, so they do not need to be on the database server as
+ * they do for COPY ... FROM in load_data.sql. They are decoded as COPY
+ * reads them (see split), and a line with a different number of fields
+ * than the first stops the load with its file and line number.
+ *
+ * Secondary indexes and foreign keys on the loaded tables are dropped
+ * before the load and re-created afterwards, so rows are written without
+ * per-row index maintenance or FK checks. Tables are loaded in dependency
+ * order, with the tables of one level loaded in parallel, each on its own
+ * connection. Rows are sent as multi-row INSERTs of ROWS_PER_STATEMENT rows
+ * and committed every COMMIT_EVERY statements. Finally every serial
+ * sequence is reset from the actual maximum id.
+ *
+ * Triggers that maintain derived tables (CHAT_SUMMARY, the unread counts)
+ * or announce new messages are disabled during the load; the derived
+ * tables are rebuilt once at the end instead, with the loaded history
+ * marked read. Parallel loads updating the same summary rows
+ * would otherwise contend and could deadlock.
+ *
+ * Files that are missing from the data directory are skipped.
+ */
+public class BulkLoader {
+
+    // rows per INSERT statement
+    private static final int ROWS_PER_STATEMENT = 500;
+
+    // INSERT statements per transaction
+    private static final int COMMIT_EVERY = 20;
+
+    /**
+     * Tables to load, grouped into levels. Every table only references
+     * tables from earlier levels.
+     */
+    private static final String[][][] LEVELS = {
+        { {"USER_LIST", "usr_list.csv"} },
+        { {"USR", "usr.csv"} },
+        { {"USER_LIST_CONTAINS", "usr_list_contains.csv"}, {"CHAT", "chat.csv"} },
+        { {"CHAT_LIST", "chat_list.csv"}, {"MESSAGE", "message.csv"} },
+    };
+
+    // triggers disabled for the load (LIKE patterns); loaded history is
+    // taken as it is and not checked against block lists
+    private static final String[] DERIVED_TRIGGERS = {"chat\\_summary\\_%", "message\\_notify", "block\\_check\\_%", "unread\\_%"};
+
+    private final String _url;
+    private final String _user;
+    private final String _passwd;
+
+    public BulkLoader(String url, String user, String passwd) {
+        this._url = url;
+        this._user = user;
+        this._passwd = passwd;
+    }
+
+    private Connection connect() throws SQLException {
+        return DriverManager.getConnection(_url, _user, _passwd);
+    }
+
+    /**
+     * Loads every file found in the data directory.
+     *
+     * @param dataDir the directory holding the .csv files
+     * @param threads the maximum number of tables loaded at the same time
+     */
+    public void load(File dataDir, int threads) throws Exception {
+        List<String> tables = new ArrayList<String>();
+        for (String[][] level : LEVELS)
+            for (String[] table : level)
+                tables.add(table[0].toLowerCase());
+
+        Connection ddl = connect();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<String> restore = dropConstraintsAndIndexes(ddl, tables);
+            restore.addAll(disableDerivedTriggers(ddl, tables));
+            long start = System.nanoTime();
+            long total = 0;
+            try {
+                for (String[][] level : LEVELS) {
+                    List<Future<Long>> loads = new ArrayList<Future<Long>>();
+                    for (String[] table : level) {
+                        final String name = table[0];
+                        final File file = new File(dataDir, table[1]);
+                        if (!file.exists()) {
+                            System.out.println(name + ": " + file + " not found, skipped");
+                            continue;
+                        }
+                        loads.add(pool.submit(new java.util.concurrent.Callable<Long>() {
+                            public Long call() throws Exception {
+                                return loadTable(name, file);
+                            }
+                        }));
+                    }
+                    for (Future<Long> load : loads)
+                        total += load.get();
+                }
+            } finally {
+                long restoreStart = System.nanoTime();
+                Statement stmt = ddl.createStatement();
+                try {
+                    for (String sql : restore)
+                        stmt.executeUpdate(sql);
+                } finally {
+                    stmt.close();
+                }
+                System.out.println(String.format("Re-created %d indexes and foreign keys in %.1f s",
+                        restore.size(), (System.nanoTime() - restoreStart) / 1e9));
+            }
+            resetSequences(ddl, tables);
+            refreshDerivedTables(ddl);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format("Loaded %d rows in %.1f s (%.0f rows/sec)",
+                    total, seconds, total / seconds));
+        } finally {
+            pool.shutdown();
+            ddl.close();
+        }
+    }//end load
+
+    /**
+     * Streams one file into one table on a dedicated connection.
+     *
+     * @return the number of rows loaded
+     */
+    private long loadTable(String table, File file) throws SQLException, IOException {
+        Connection connection = connect();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"), 1 << 16);
+        try {
+            connection.setAutoCommit(false);
+            List<String[]> columns = columns(connection, table);
+            long start = System.nanoTime();
+            long rows = 0;
+            int statements = 0;
+
+            List<String[]> batch = new ArrayList<String[]>(ROWS_PER_STATEMENT);
+            PreparedStatement full = null;
+            String line;
+            int lineNumber = 0;
+            int fieldCount = -1;
+            while ((line = reader.readLine()) != null) {
+                ++lineNumber;
+                if (line.length() == 0)
+                    continue;
+                String[] fields = split(line);
+                // every line must match the first, which sizes the INSERT
+                if (fieldCount < 0)
+                    fieldCount = fields.length;
+                else if (fields.length != fieldCount)
+                    throw new IOException(file + ":" + lineNumber + ": " + fields.length
+                            + " fields, expected " + fieldCount);
+                batch.add(fields);
+                if (batch.size() == ROWS_PER_STATEMENT) {
+                    if (full == null)
+                        full = connection.prepareStatement(insertSql(table, columns, batch.get(0).length, ROWS_PER_STATEMENT));
+                    rows += insert(full, batch);
+                    if (++statements % COMMIT_EVERY == 0)
+                        connection.commit();
+                }
+            }
+            if (!batch.isEmpty()) {
+                PreparedStatement last = connection.prepareStatement(insertSql(table, columns, batch.get(0).length, batch.size()));
+                rows += insert(last, batch);
+                last.close();
+            }
+            connection.commit();
+            if (full != null)
+                full.close();
+
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format("%s: %d rows in %.1f s (%.0f rows/sec)",
+                    table, rows, seconds, rows / Math.max(seconds, 1e-9)));
+            return rows;
+        } finally {
+            reader.close();
+            connection.close();
+        }
+    }//end loadTable
+
+    /**
+     * Splits a line in COPY text format with ';' as the delimiter into its
+     * decoded fields (see MessageArchiver.unescape): \N is NULL, and a
+     * backslash escapes the character after it, a ';' included.
+     */
+    static String[] split(String line) {
+        List<String> fields = new ArrayList<String>();
+        int start = 0;
+        for (int i = 0; i < line.length(); ++i) {
+            char c = line.charAt(i);
+            if (c == '\\') {
+                ++i;
+            } else if (c == ';') {
+                fields.add(MessageArchiver.unescape(line.substring(start, i)));
+                start = i + 1;
+            }
+        }
+        fields.add(MessageArchiver.unescape(line.substring(start)));
+        return fields.toArray(new String[fields.size()]);
+    }//end split
+
+    /**
+     * Binds the buffered rows to the statement, runs it and clears the
+     * buffer.
+     */
+    private static int insert(PreparedStatement stmt, List<String[]> batch) throws SQLException {
+        int p = 1;
+        for (String[] fields : batch) {
+            for (String field : fields) {
+                if (field == null)
+                    stmt.setNull(p++, java.sql.Types.VARCHAR);
+                else
+                    stmt.setString(p++, field);
+            }
+        }
+        stmt.executeUpdate();
+        int rows = batch.size();
+        batch.clear();
+        return rows;
+    }
+
+    /**
+     * Builds INSERT INTO table (first n columns) VALUES (...), (...) with
+     * every parameter cast to its column type.
+     */
+    private static String insertSql(String table, List<String[]> columns, int fields, int rows) throws SQLException {
+        if (fields > columns.size())
+            throw new SQLException(table + " has " + columns.size() + " columns but the file has " + fields + " fields");
+        StringBuilder names = new StringBuilder();
+        StringBuilder row = new StringBuilder("(");
+        for (int i = 0; i < fields; ++i) {
+            if (i > 0) {
+                names.append(", ");
+                row.append(", ");
+            }
+            names.append(columns.get(i)[0]);
+            row.append("CAST(? AS ").append(columns.get(i)[1]).append(")");
+        }
+        row.append(")");
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(table)
+                .append(" (").append(names).append(") VALUES ");
+        for (int r = 0; r < rows; ++r) {
+            if (r > 0)
+                sql.append(", ");
+            sql.append(row);
+        }
+        return sql.toString();
+    }//end insertSql
+
+    /**
+     * @return (name, type) of each column of the table in table order
+     */
+    private static List<String[]> columns(Connection connection, String table) throws SQLException {
+        PreparedStatement stmt = connection.prepareStatement(
+                "SELECT a.attname, format_type(a.atttypid, a.atttypmod) FROM pg_attribute a "
+                + "WHERE a.attrelid = CAST(? AS regclass) AND a.attnum > 0 AND NOT a.attisdropped "
+                + "ORDER BY a.attnum");
+        try {
+            stmt.setString(1, table.toLowerCase());
+            ResultSet rs = stmt.executeQuery();
+            List<String[]> columns = new ArrayList<String[]>();
+            while (rs.next())
+                columns.add(new String[]{rs.getString(1), rs.getString(2)});
+            rs.close();
+            return columns;
+        } finally {
+            stmt.close();
+        }
+    }//end columns
+
+    /**
+     * Drops every foreign key and every index that does not back a primary
+     * key or unique constraint on the given tables.
+     *
+     * @return the statements that re-create them, indexes first
+     */
+    private static List<String> dropConstraintsAndIndexes(Connection connection, List<String> tables) throws SQLException {
+        List<String> indexes = new ArrayList<String>();
+        List<String> foreignKeys = new ArrayList<String>();
+        List<String> drops = new ArrayList<String>();
+        Statement stmt = connection.createStatement();
+        try {
+            String in = inList(tables);
+            ResultSet rs = stmt.executeQuery(
+                    "SELECT conrelid::regclass, conname, pg_get_constraintdef(oid) FROM pg_constraint "
+                    + "WHERE contype = 'f' AND conrelid::regclass::text IN " + in);
+            while (rs.next()) {
+                drops.add("ALTER TABLE " + rs.getString(1) + " DROP CONSTRAINT " + rs.getString(2));
+                foreignKeys.add("ALTER TABLE " + rs.getString(1) + " ADD CONSTRAINT " + rs.getString(2)
+                        + " " + rs.getString(3));
+            }
+            rs.close();
+            rs = stmt.executeQuery(
+                    "SELECT i.indexrelid::regclass, pg_get_indexdef(i.indexrelid) FROM pg_index i "
+                    + "WHERE i.indrelid::regclass::text IN " + in + " AND NOT EXISTS "
+                    + "(SELECT 1 FROM pg_constraint c WHERE c.conindid = i.indexrelid)");
+            while (rs.next()) {
+                drops.add("DROP INDEX " + rs.getString(1));
+                indexes.add(rs.getString(2));
+            }
+            rs.close();
+            for (String sql : drops)
+                stmt.executeUpdate(sql);
+        } finally {
+            stmt.close();
+        }
+        System.out.println(String.format("Dropped %d indexes and %d foreign keys for the load",
+                indexes.size(), foreignKeys.size()));
+        indexes.addAll(foreignKeys);
+        return indexes;
+    }//end dropConstraintsAndIndexes
+
+    /**
+     * Disables the triggers in DERIVED_TRIGGERS on the given tables.
+     *
+     * @return the statements that enable them again
+     */
+    private static List<String> disableDerivedTriggers(Connection connection, List<String> tables) throws SQLException {
+        StringBuilder names = new StringBuilder();
+        for (String pattern : DERIVED_TRIGGERS)
+            names.append(names.length() == 0 ? "" : " OR ").append("t.tgname LIKE '").append(pattern).append("'");
+        List<String> enable = new ArrayList<String>();
+        Statement stmt = connection.createStatement();
+        try {
+            ResultSet rs = stmt.executeQuery(
+                    "SELECT t.tgrelid::regclass, t.tgname FROM pg_trigger t "
+                    + "WHERE NOT t.tgisinternal AND t.tgparentid = 0 AND t.tgrelid::regclass::text IN "
+                    + inList(tables) + " AND (" + names + ")");
+            List<String> disable = new ArrayList<String>();
+            while (rs.next()) {
+                disable.add("ALTER TABLE " + rs.getString(1) + " DISABLE TRIGGER " + rs.getString(2));
+                enable.add("ALTER TABLE " + rs.getString(1) + " ENABLE TRIGGER " + rs.getString(2));
+            }
+            rs.close();
+            for (String sql : disable)
+                stmt.executeUpdate(sql);
+        } finally {
+            stmt.close();
+        }
+        System.out.println("Disabled " + enable.size() + " triggers for the load");
+        return enable;
+    }//end disableDerivedTriggers
+
+    /**
+     * Rebuilds the tables that the disabled triggers maintain.
+     */
+    private static void refreshDerivedTables(Connection connection) throws SQLException {
+        Statement stmt = connection.createStatement();
+        try {
+            ResultSet rs = stmt.executeQuery("SELECT to_regproc('refresh_chat_summary') IS NOT NULL");
+            rs.next();
+            boolean exists = rs.getBoolean(1);
+            rs.close();
+            if (exists) {
+                long start = System.nanoTime();
+                stmt.executeQuery("SELECT refresh_chat_summary()").close();
+                System.out.println(String.format("Rebuilt CHAT_SUMMARY in %.1f s", (System.nanoTime() - start) / 1e9));
+            }
+            rs = stmt.executeQuery("SELECT to_regproc('refresh_unread_counts') IS NOT NULL");
+            rs.next();
+            exists = rs.getBoolean(1);
+            rs.close();
+            if (exists) {
+                // loaded history counts as read
+                long start = System.nanoTime();
+                stmt.executeQuery("SELECT refresh_unread_counts()").close();
+                System.out.println(String.format("Marked loaded chats read in %.1f s", (System.nanoTime() - start) / 1e9));
+            }
+        } finally {
+            stmt.close();
+        }
+    }//end refreshDerivedTables
+
+    /**
+     * Restarts every serial sequence of the given tables after the largest
+     * id actually loaded.
+     */
+    private static void resetSequences(Connection connection, List<String> tables) throws SQLException {
+        Statement stmt = connection.createStatement();
+        try {
+            ResultSet rs = stmt.executeQuery(
+                    "SELECT table_name, column_name FROM information_schema.columns "
+                    + "WHERE column_default LIKE 'nextval%' AND table_name IN " + inList(tables));
+            List<String[]> serials = new ArrayList<String[]>();
+            while (rs.next())
+                serials.add(new String[]{rs.getString(1), rs.getString(2)});
+            rs.close();
+            for (String[] serial : serials) {
+                rs = stmt.executeQuery(String.format(
+                        "SELECT setval(pg_get_serial_sequence('%1$s', '%2$s'), COALESCE(max(%2$s), 0) + 1, false) FROM %1$s",
+                        serial[0], serial[1]));
+                rs.next();
+                System.out.println(serial[0] + "." + serial[1] + " sequence restarts at " + rs.getLong(1));
+                rs.close();
+            }
+            stmt.executeUpdate("ANALYZE");
+        } finally {
+            stmt.close();
+        }
+    }//end resetSequences
+
+    private static String inList(List<String> tables) {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < tables.size(); ++i) {
+            if (i > 0)
+                sb.append(", ");
+            sb.append("'").append(tables.get(i)).append("'");
+        }
+        return sb.append(")").toString();
+    }
+
+    /**
+     * @param args <dbname> <port> <user> <data dir> [threads]
+     */
+    public static void main(String[] args) {
+        if (args.length < 4) {
+            System.err.println(
+                    "Usage: " +
+                    "java [-classpath <classpath>] " +
+                    BulkLoader.class.getName() +
+                    " <dbname> <port> <user> <data dir> [threads]");
+            return;
+        }
+        try {
+            Class.forName("org.postgresql.Driver").newInstance();
+            String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+            int threads = args.length > 4 ? Integer.parseInt(args[4]) : 2;
+            new BulkLoader(url, args[2], "").load(new File(args[3]), threads);
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }//end main
+}//end BulkLoader
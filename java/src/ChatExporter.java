@@ -0,0 +1,531 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exports the message history of chats to compressed files, for backups
+ * and compliance exports, and restores it:
+ *
+ *   export <dir> chat <chat_id>  exports the messages of one chat
+ *   export <dir> user <login>    exports the messages of every chat the
+ *                                user is a member of
+ *   restore <file or dir> ...    loads exported files back into MESSAGE
+ *
+ * Messages are streamed from the live and archived partitions, oldest
+ * first, through a cursor of FETCH_SIZE rows into gzip files in COPY text
+ * format (see MessageArchiver), so memory use does not depend on the size
+ * of a chat. A chat's history goes to <dir>/chat_<id>.<segment>.tsv.gz,
+ * SEGMENT_ROWS messages per segment. A segment is written to a .part file,
+ * synced and renamed; only then does <dir>/export.state record the
+ * timestamp and msg_id of its last message. An interrupted export resumes
+ * from the last finished segment, and a later export of the same chat only
+ * writes what was sent since: the exports are incremental. Messages of the
+ * last minute are left for the next run, since a message sent in a
+ * transaction that has not committed yet may carry an earlier timestamp.
+ *
+ * Segments are append-only: a message edited or deleted after it was
+ * exported stays as it was exported.
+ *
+ * Restore inserts the rows in multi-row INSERTs of ROWS_PER_STATEMENT rows.
+ * The triggers stay on, as they work per statement: CHAT_SUMMARY is kept
+ * up to date, and a message from a sender a member has blocked since
+ * fails the restore as a send would. Restored messages count as read by
+ * every member of the chat (see Query.CREDIT_RESTORED_MESSAGES); the
+ * unread counts of other chats are left alone. Messages that are already
+ * there are skipped, so files can be restored more than once, and so are
+ * those whose chat or sender no longer exists.
+ *
+ * On a sharded setup (see ShardRouter), export and restore each shard on
+ * its own.
+ */
+public class ChatExporter {
+
+    // rows fetched from the cursor at a time
+    private static final int FETCH_SIZE = 5000;
+
+    // messages per exported file
+    private static final int SEGMENT_ROWS = 1000000;
+
+    // rows per INSERT statement when restoring
+    private static final int ROWS_PER_STATEMENT = 500;
+
+    // INSERT statements per transaction when restoring
+    private static final int COMMIT_EVERY = 20;
+
+    private static final String STATE_FILE = "export.state";
+
+    private static final String COLUMNS = "msg_id, msg_text, msg_timestamp, sender_login, chat_id";
+
+    private final Connection _connection;
+
+    public ChatExporter(Connection connection) {
+        this._connection = connection;
+    }
+
+    /**
+     * Where the export of a chat stopped.
+     */
+    private static class Mark {
+        int segments;
+        String timestamp = "-infinity";
+        int msgId;
+    }
+
+    /**
+     * @return the marks in dir/export.state by chat id
+     */
+    private static Map<Integer, Mark> readState(File dir) throws IOException {
+        Map<Integer, Mark> state = new TreeMap<Integer, Mark>();
+        File file = new File(dir, STATE_FILE);
+        if (!file.exists())
+            return state;
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.length() == 0 || line.startsWith("--"))
+                    continue;
+                String[] f = line.split("\t");
+                Mark mark = new Mark();
+                mark.segments = Integer.parseInt(f[1]);
+                mark.timestamp = f[2];
+                mark.msgId = Integer.parseInt(f[3]);
+                state.put(Integer.parseInt(f[0]), mark);
+            }
+        } finally {
+            in.close();
+        }
+        return state;
+    }//end readState
+
+    /**
+     * Replaces dir/export.state by a synced copy holding the given marks.
+     */
+    private static void writeState(File dir, Map<Integer, Mark> state) throws IOException {
+        File part = new File(dir, STATE_FILE + ".part");
+        FileOutputStream stream = new FileOutputStream(part);
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"));
+            out.write("-- chat_id\tsegments\tlast msg_timestamp\tlast msg_id\n");
+            for (Map.Entry<Integer, Mark> e : state.entrySet()) {
+                Mark mark = e.getValue();
+                out.write(e.getKey() + "\t" + mark.segments + "\t" + mark.timestamp + "\t" + mark.msgId + "\n");
+            }
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        if (!part.renameTo(new File(dir, STATE_FILE)))
+            throw new IOException("Cannot replace " + new File(dir, STATE_FILE));
+    }//end writeState
+
+    /**
+     * Exports what was sent to the chats since their last export.
+     *
+     * @return the number of messages exported
+     */
+    public long export(File dir, List<Integer> chats) throws SQLException, IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Cannot create " + dir);
+        Map<Integer, Mark> state = readState(dir);
+        long total = 0;
+        for (int chatId : chats) {
+            Mark mark = state.get(chatId);
+            if (mark == null) {
+                mark = new Mark();
+                state.put(chatId, mark);
+            }
+            total += exportChat(dir, chatId, mark, state);
+        }
+        return total;
+    }//end export
+
+    /**
+     * Streams the chat's messages after the mark into new segments,
+     * advancing the mark and saving the state after each one.
+     *
+     * @return the number of messages exported
+     */
+    private long exportChat(File dir, int chatId, Mark mark, Map<Integer, Mark> state) throws SQLException, IOException {
+        long start = System.nanoTime();
+        long rows = 0;
+        // the driver reads a whole result into memory, so the rows come
+        // through a cursor, which lives until the end of the transaction
+        _connection.setAutoCommit(false);
+        PreparedStatement declare = _connection.prepareStatement(
+                "DECLARE export_messages NO SCROLL CURSOR FOR " + Query.EXPORT_MESSAGES.sql());
+        Statement stmt = _connection.createStatement();
+        try {
+            for (int i = 0; i < 2; ++i) {
+                declare.setInt(4 * i + 1, chatId);
+                declare.setString(4 * i + 2, mark.timestamp);
+                declare.setString(4 * i + 3, mark.timestamp);
+                declare.setInt(4 * i + 4, mark.msgId);
+            }
+            declare.executeUpdate();
+            File part = null;
+            Writer out = null;
+            int segmentRows = 0;
+            String timestamp = null;
+            int msgId = 0;
+            try {
+                int fetched;
+                do {
+                    fetched = 0;
+                    ResultSet rs = stmt.executeQuery("FETCH " + FETCH_SIZE + " FROM export_messages");
+                    try {
+                        while (rs.next()) {
+                            fetched++;
+                            if (out == null) {
+                                part = new File(dir, segmentName(chatId, mark.segments) + ".part");
+                                out = new BufferedWriter(new OutputStreamWriter(
+                                        new GZIPOutputStream(new FileOutputStream(part), 1 << 16), "UTF-8"), 1 << 16);
+                                out.write("-- chat " + chatId + "\n");
+                            }
+                            for (int i = 1; i <= 6; ++i) {
+                                if (i > 1)
+                                    out.write('\t');
+                                out.write(MessageArchiver.escape(rs.getString(i)));
+                            }
+                            out.write('\n');
+                            msgId = rs.getInt(1);
+                            timestamp = rs.getString(3);
+                            rows++;
+                            if (++segmentRows == SEGMENT_ROWS) {
+                                finishSegment(dir, chatId, out, part, mark, timestamp, msgId, state);
+                                out = null;
+                                segmentRows = 0;
+                            }
+                        }
+                    } finally {
+                        rs.close();
+                    }
+                } while (fetched == FETCH_SIZE);
+                if (out != null) {
+                    finishSegment(dir, chatId, out, part, mark, timestamp, msgId, state);
+                    out = null;
+                }
+            } finally {
+                if (out != null) {
+                    out.close();
+                    part.delete();
+                }
+            }
+            stmt.executeUpdate("CLOSE export_messages");
+            _connection.commit();
+        } catch (SQLException e) {
+            _connection.rollback();
+            throw e;
+        } finally {
+            declare.close();
+            stmt.close();
+            _connection.setAutoCommit(true);
+        }
+        System.out.println(String.format("chat %d: %d messages exported in %.1f s",
+                chatId, rows, (System.nanoTime() - start) / 1e9));
+        return rows;
+    }//end exportChat
+
+    /**
+     * Closes and syncs a segment, gives it its final name and records its
+     * last message in the state file.
+     */
+    private static void finishSegment(File dir, int chatId, Writer out, File part,
+            Mark mark, String timestamp, int msgId, Map<Integer, Mark> state) throws IOException {
+        // closing finishes the gzip stream; then sync what it wrote
+        out.close();
+        FileOutputStream sync = new FileOutputStream(part, true);
+        try {
+            sync.getFD().sync();
+        } finally {
+            sync.close();
+        }
+        File file = new File(dir, segmentName(chatId, mark.segments));
+        if (!part.renameTo(file))
+            throw new IOException("Cannot rename " + part + " to " + file);
+        mark.segments++;
+        mark.timestamp = timestamp;
+        mark.msgId = msgId;
+        writeState(dir, state);
+    }//end finishSegment
+
+    private static String segmentName(int chatId, int segment) {
+        return String.format("chat_%d.%06d.tsv.gz", chatId, segment);
+    }
+
+    /**
+     * @return the ids of the chats the user is a member of
+     */
+    public List<Integer> memberChats(String login) throws SQLException {
+        PreparedStatement stmt = _connection.prepareStatement(Query.LIST_CHATS.sql());
+        try {
+            stmt.setString(1, login);
+            ResultSet rs = stmt.executeQuery();
+            List<Integer> chats = new ArrayList<Integer>();
+            while (rs.next())
+                chats.add(rs.getInt(1));
+            rs.close();
+            Collections.sort(chats);
+            return chats;
+        } finally {
+            stmt.close();
+        }
+    }//end memberChats
+
+    /**
+     * Loads exported files back into MESSAGE; a directory stands for the
+     * segments in it.
+     *
+     * @return the number of messages inserted
+     */
+    public long restore(List<File> files) throws SQLException, IOException {
+        List<File> segments = new ArrayList<File>();
+        for (File file : files) {
+            if (file.isDirectory()) {
+                File[] inDir = file.listFiles(new FilenameFilter() {
+                    public boolean accept(File dir, String name) {
+                        return isSegment(name);
+                    }
+                });
+                Arrays.sort(inDir);
+                segments.addAll(Arrays.asList(inDir));
+            } else if (isSegment(file.getName())) {
+                segments.add(file);
+            } else {
+                throw new IOException(file + " is not an exported chat segment");
+            }
+        }
+        long start = System.nanoTime();
+        long total = 0;
+        for (File file : segments)
+            total += restoreSegment(file);
+        advanceSequence();
+        System.out.println(String.format("Restored %d messages from %d files in %.1f s",
+                total, segments.size(), (System.nanoTime() - start) / 1e9));
+        return total;
+    }//end restore
+
+    private static boolean isSegment(String name) {
+        return name.matches("chat_\\d+\\.\\d{6}\\.tsv\\.gz");
+    }
+
+    /**
+     * @return the number of messages inserted
+     */
+    private long restoreSegment(File file) throws SQLException, IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(file), 1 << 16), "UTF-8"), 1 << 16);
+        _connection.setAutoCommit(false);
+        PreparedStatement full = null;
+        PreparedStatement credit = null;
+        try {
+            String header = in.readLine();
+            if (header == null || !header.matches("-- chat \\d+"))
+                throw new IOException(file + " has no chat header");
+            int chatId = Integer.parseInt(header.substring("-- chat ".length()));
+            credit = _connection.prepareStatement(Query.CREDIT_RESTORED_MESSAGES.sql());
+            List<String[]> batch = new ArrayList<String[]>(ROWS_PER_STATEMENT);
+            long read = 0;
+            long inserted = 0;
+            int statements = 0;
+            String line;
+            while ((line = in.readLine()) != null) {
+                batch.add(line.split("\t", -1));
+                read++;
+                if (batch.size() == ROWS_PER_STATEMENT) {
+                    if (full == null)
+                        full = _connection.prepareStatement(insertSql(ROWS_PER_STATEMENT));
+                    inserted += insert(full, credit, chatId, batch);
+                    if (++statements % COMMIT_EVERY == 0)
+                        _connection.commit();
+                }
+            }
+            if (!batch.isEmpty()) {
+                PreparedStatement last = _connection.prepareStatement(insertSql(batch.size()));
+                try {
+                    inserted += insert(last, credit, chatId, batch);
+                } finally {
+                    last.close();
+                }
+            }
+            _connection.commit();
+            System.out.println(String.format("%s: %d of %d messages restored", file.getName(), inserted, read));
+            return inserted;
+        } catch (SQLException e) {
+            _connection.rollback();
+            throw e;
+        } finally {
+            if (full != null)
+                full.close();
+            if (credit != null)
+                credit.close();
+            _connection.setAutoCommit(true);
+            in.close();
+        }
+    }//end restoreSegment
+
+    /**
+     * Binds the buffered rows to the statement, runs it, credits the
+     * inserted messages to the members of the chat and clears the buffer.
+     *
+     * @return the number of rows inserted
+     */
+    private static int insert(PreparedStatement stmt, PreparedStatement credit, int chatId,
+                              List<String[]> batch) throws SQLException {
+        int p = 1;
+        for (String[] fields : batch) {
+            // files exported while MESSAGE had sender_id end with it
+            if (fields.length != 5 && fields.length != 6)
+                throw new SQLException("expected 5 fields but found " + fields.length);
+            for (int i = 0; i < 5; ++i) {
+                String value = MessageArchiver.unescape(fields[i]);
+                if (value == null)
+                    stmt.setNull(p++, java.sql.Types.VARCHAR);
+                else
+                    stmt.setString(p++, value);
+            }
+        }
+        int rows = 0;
+        Map<String, Integer> bySender = new TreeMap<String, Integer>();
+        ResultSet rs = stmt.executeQuery();
+        try {
+            while (rs.next()) {
+                rows++;
+                String sender = rs.getString(1);
+                if (sender != null) {
+                    Integer n = bySender.get(sender);
+                    bySender.put(sender, n == null ? 1 : n + 1);
+                }
+            }
+        } finally {
+            rs.close();
+        }
+        batch.clear();
+        if (rows > 0) {
+            StringBuilder senders = new StringBuilder();
+            StringBuilder counts = new StringBuilder();
+            for (Map.Entry<String, Integer> e : bySender.entrySet()) {
+                if (senders.length() > 0) {
+                    senders.append('\n');
+                    counts.append('\n');
+                }
+                senders.append(e.getKey());
+                counts.append(e.getValue());
+            }
+            credit.setInt(1, rows);
+            credit.setString(2, senders.toString());
+            credit.setString(3, counts.toString());
+            credit.setInt(4, chatId);
+            credit.executeUpdate();
+        }
+        return rows;
+    }
+
+    /**
+     * Builds an INSERT of the given number of rows that skips messages
+     * already there and those whose chat or sender is gone, and returns
+     * the sender of each message inserted.
+     */
+    private static String insertSql(int rows) {
+        StringBuilder sql = new StringBuilder("INSERT INTO MESSAGE (" + COLUMNS + ") SELECT v.* FROM (VALUES ");
+        for (int r = 0; r < rows; ++r) {
+            if (r > 0)
+                sql.append(", ");
+            sql.append("(CAST(? AS integer), CAST(? AS varchar), CAST(? AS timestamp), CAST(? AS varchar), CAST(? AS integer))");
+        }
+        return sql.append(") v (" + COLUMNS + ") ")
+                .append("WHERE EXISTS (SELECT 1 FROM CHAT c WHERE c.chat_id = v.chat_id) ")
+                .append("AND (v.sender_login IS NULL OR EXISTS (SELECT 1 FROM USR u WHERE u.login = v.sender_login)) ")
+                .append("ON CONFLICT DO NOTHING RETURNING sender_login")
+                .toString();
+    }//end insertSql
+
+    /**
+     * Moves the msg_id sequence past the restored messages, for a database
+     * restored from nothing.
+     */
+    private void advanceSequence() throws SQLException {
+        Statement stmt = _connection.createStatement();
+        try {
+            stmt.executeQuery("SELECT setval('message_msg_id_seq', max(msg_id)) FROM MESSAGE "
+                    + "HAVING max(msg_id) > (SELECT last_value FROM message_msg_id_seq)").close();
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * @param args <dbname> <port> <user> export <dir> chat <chat_id> |
+     *             export <dir> user <login> | restore <file or dir> ...
+     */
+    public static void main(String[] args) {
+        if (args.length < 5) {
+            System.err.println(
+                    "Usage: " +
+                    "java [-classpath <classpath>] " +
+                    ChatExporter.class.getName() +
+                    " <dbname> <port> <user> export <dir> chat <chat_id> | export <dir> user <login> | restore <file or dir> ...");
+            return;
+        }
+        Connection connection = null;
+        try {
+            Class.forName("org.postgresql.Driver").newInstance();
+            String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+            connection = DriverManager.getConnection(url, args[2], "");
+            ChatExporter exporter = new ChatExporter(connection);
+            if (args[3].equals("export") && args.length > 6) {
+                File dir = new File(args[4]);
+                List<Integer> chats;
+                if (args[5].equals("chat"))
+                    chats = Collections.singletonList(Integer.parseInt(args[6]));
+                else if (args[5].equals("user"))
+                    chats = exporter.memberChats(args[6]);
+                else
+                    throw new IllegalArgumentException("unknown export " + args[5]);
+                long start = System.nanoTime();
+                long rows = exporter.export(dir, chats);
+                System.out.println(String.format("Exported %d messages of %d chats in %.1f s",
+                        rows, chats.size(), (System.nanoTime() - start) / 1e9));
+            } else if (args[3].equals("restore")) {
+                List<File> files = new ArrayList<File>();
+                for (int i = 4; i < args.length; ++i)
+                    files.add(new File(args[i]));
+                exporter.restore(files);
+            } else {
+                throw new IllegalArgumentException("unknown command " + args[3]);
+            }
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        } finally {
+            try {
+                if (connection != null)
+                    connection.close();
+            } catch (SQLException e) {
+                // ignored.
+            }
+        }
+    }//end main
+}//end ChatExporter
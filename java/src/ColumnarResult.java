@@ -0,0 +1,170 @@
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A fully read query result stored column by column: one int[] or long[] per
+ * integer column and one String[] per other column, instead of an ArrayList
+ * of boxed values per row. char(n) padding is trimmed as the values are read.
+ *
+ * asRecords() offers the old List<List<String>> view for code that still
+ * expects it, without copying.
+ */
+public class ColumnarResult {
+
+    private static final int INT = 0, LONG = 1, STRING = 2;
+
+    private final String[] _names;
+    private final int[] _kinds;
+    private final Object[] _columns;
+    private int _rows = 0;
+
+    private ColumnarResult(ResultSetMetaData rsmd) throws SQLException {
+        int n = rsmd.getColumnCount();
+        _names = new String[n];
+        _kinds = new int[n];
+        _columns = new Object[n];
+        for (int i = 0; i < n; ++i) {
+            _names[i] = rsmd.getColumnName(i + 1);
+            switch (rsmd.getColumnType(i + 1)) {
+                case Types.INTEGER:
+                case Types.SMALLINT:
+                    _kinds[i] = INT;
+                    _columns[i] = new int[16];
+                    break;
+                case Types.BIGINT:
+                    _kinds[i] = LONG;
+                    _columns[i] = new long[16];
+                    break;
+                default:
+                    _kinds[i] = STRING;
+                    _columns[i] = new String[16];
+            }
+        }
+    }
+
+    /**
+     * Reads every remaining row of the result set.
+     */
+    public static ColumnarResult read(ResultSet rs) throws SQLException {
+        ColumnarResult result = new ColumnarResult(rs.getMetaData());
+        ResultRow row = new ResultRow(rs);
+        while (rs.next())
+            result.add(row);
+        return result;
+    }
+
+    private void add(ResultRow row) throws SQLException {
+        for (int i = 0; i < _columns.length; ++i) {
+            switch (_kinds[i]) {
+                case INT: {
+                    int[] c = (int[]) _columns[i];
+                    if (_rows == c.length)
+                        _columns[i] = c = Arrays.copyOf(c, c.length * 2);
+                    c[_rows] = row.getInt(i + 1);
+                    break;
+                }
+                case LONG: {
+                    long[] c = (long[]) _columns[i];
+                    if (_rows == c.length)
+                        _columns[i] = c = Arrays.copyOf(c, c.length * 2);
+                    c[_rows] = row.getLong(i + 1);
+                    break;
+                }
+                default: {
+                    String[] c = (String[]) _columns[i];
+                    if (_rows == c.length)
+                        _columns[i] = c = Arrays.copyOf(c, c.length * 2);
+                    c[_rows] = row.getString(i + 1);
+                }
+            }
+        }
+        _rows++;
+    }//end add
+
+    public int rowCount() {
+        return _rows;
+    }
+
+    public int columnCount() {
+        return _names.length;
+    }
+
+    /**
+     * @param column the 0-based column index
+     */
+    public String columnName(int column) {
+        return _names[column];
+    }
+
+    /**
+     * @param row the 0-based row index
+     * @param column the 0-based column index of an integer column
+     */
+    public int getInt(int row, int column) {
+        if (_kinds[column] == INT)
+            return ((int[]) _columns[column])[row];
+        if (_kinds[column] == LONG)
+            return (int) ((long[]) _columns[column])[row];
+        return Integer.parseInt(((String[]) _columns[column])[row]);
+    }
+
+    /**
+     * @param row the 0-based row index
+     * @param column the 0-based column index
+     */
+    public String getString(int row, int column) {
+        if (_kinds[column] == INT)
+            return Integer.toString(((int[]) _columns[column])[row]);
+        if (_kinds[column] == LONG)
+            return Long.toString(((long[]) _columns[column])[row]);
+        return ((String[]) _columns[column])[row];
+    }
+
+    /**
+     * @param column the 0-based column index of an integer column
+     * @return the values of the column, exactly rowCount() long
+     */
+    public int[] intColumn(int column) {
+        if (_kinds[column] != INT)
+            throw new IllegalArgumentException(_names[column] + " is not an integer column");
+        return Arrays.copyOf((int[]) _columns[column], _rows);
+    }
+
+    /**
+     * @param column the 0-based column index of a text column
+     * @return the values of the column, exactly rowCount() long
+     */
+    public String[] stringColumn(int column) {
+        if (_kinds[column] != STRING)
+            throw new IllegalArgumentException(_names[column] + " is not a text column");
+        return Arrays.copyOf((String[]) _columns[column], _rows);
+    }
+
+    /**
+     * @return a read-only List<List<String>> view of the rows
+     */
+    public List<List<String>> asRecords() {
+        return new AbstractList<List<String>>() {
+            public List<String> get(final int row) {
+                return new AbstractList<String>() {
+                    public String get(int column) {
+                        return getString(row, column);
+                    }
+
+                    public int size() {
+                        return _names.length;
+                    }
+                };
+            }
+
+            public int size() {
+                return _rows;
+            }
+        };
+    }//end asRecords
+}//end ColumnarResult
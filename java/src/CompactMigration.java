@@ -0,0 +1,299 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Online migration of a database created with the original char(n) schema
+ * to the compact schema of create_tables.sql, with variable length text
+ * columns. The application keeps running throughout;
+ * sql/scripts/migrate_compact.sh runs the steps in order.
+ *
+ *   prepare   converts the small tables (USER_LIST, USR, USER_LIST_CONTAINS,
+ *             CHAT, CHAT_LIST) in place in one transaction and creates
+ *             MESSAGE_COMPACT, a copy of MESSAGE in the new layout that a
+ *             trigger keeps in step with every write to MESSAGE. Then run
+ *             create_triggers.sql. The copy leaves msg_tsv empty;
+ *             add_search.sh fills it in.
+ *   backfill  copies MESSAGE into MESSAGE_COMPACT, CHUNK rows per
+ *             transaction with a pause in between, then builds the indexes
+ *             of MESSAGE_COMPACT without blocking writes. Can be re-run.
+ *   swap      replaces MESSAGE with MESSAGE_COMPACT in one short transaction.
+ *
+ * Changing a column from char(n) to varchar rewrites the table, and prepare
+ * holds an ACCESS EXCLUSIVE lock on every small table until the last one is
+ * rewritten, so reads and writes of users, lists and chats wait for all of
+ * them. That is short only while they are small: CHAT_LIST has a row per
+ * member of every chat and grows fastest. Time prepare on a copy of the
+ * database first; if it takes more than a few seconds, convert CHAT_LIST
+ * through a copy like MESSAGE instead.
+ *
+ * Every DDL step waits at most LOCK_TIMEOUT for its lock and fails instead
+ * of queueing the application's queries behind it; re-run the step then.
+ */
+public class CompactMigration {
+
+    // rows per backfill transaction
+    private static final int CHUNK = 5000;
+
+    private static final String LOCK_TIMEOUT = "5s";
+
+    private final Connection _connection;
+    private final long _pauseMillis;
+
+    public CompactMigration(Connection connection, long pauseMillis) {
+        this._connection = connection;
+        this._pauseMillis = pauseMillis;
+    }
+
+    private int update(String sql) throws SQLException {
+        Statement stmt = _connection.createStatement();
+        try {
+            return stmt.executeUpdate(sql);
+        } finally {
+            stmt.close();
+        }
+    }
+
+    private List<String[]> query(String sql) throws SQLException {
+        Statement stmt = _connection.createStatement();
+        try {
+            ResultSet rs = stmt.executeQuery(sql);
+            int columns = rs.getMetaData().getColumnCount();
+            List<String[]> rows = new ArrayList<String[]>();
+            while (rs.next()) {
+                String[] row = new String[columns];
+                for (int i = 0; i < columns; ++i)
+                    row[i] = rs.getString(i + 1);
+                rows.add(row);
+            }
+            rs.close();
+            return rows;
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Converts the small tables and sets up MESSAGE_COMPACT.
+     */
+    public void prepare() throws SQLException {
+        update("SET lock_timeout = '" + LOCK_TIMEOUT + "'");
+        // the foreign keys to USR(login) have to go while the key type changes
+        List<String[]> userKeys = query(
+                "SELECT conrelid::regclass, conname, pg_get_constraintdef(oid) FROM pg_constraint "
+                + "WHERE contype = 'f' AND confrelid = 'usr'::regclass");
+        _connection.setAutoCommit(false);
+        try {
+            for (String[] fk : userKeys)
+                update("ALTER TABLE " + fk[0] + " DROP CONSTRAINT " + fk[1]);
+            update("ALTER TABLE USER_LIST ALTER COLUMN list_type TYPE varchar(10)");
+            update("ALTER TABLE USR ALTER COLUMN login TYPE varchar(50), "
+                    + "ALTER COLUMN phoneNum TYPE varchar(16), "
+                    + "ALTER COLUMN password TYPE varchar(50), "
+                    + "ALTER COLUMN status TYPE varchar(140)");
+            update("ALTER TABLE USER_LIST_CONTAINS ALTER COLUMN list_member TYPE varchar(50)");
+            update("ALTER TABLE CHAT ALTER COLUMN chat_type TYPE varchar(50), "
+                    + "ALTER COLUMN init_sender TYPE varchar(50)");
+            update("ALTER TABLE CHAT_LIST ALTER COLUMN member TYPE varchar(50)");
+            for (String[] fk : userKeys)
+                update("ALTER TABLE " + fk[0] + " ADD CONSTRAINT " + fk[1] + " " + fk[2] + " NOT VALID");
+            _connection.commit();
+        } catch (SQLException e) {
+            _connection.rollback();
+            throw e;
+        } finally {
+            _connection.setAutoCommit(true);
+        }
+        // checking the existing rows only needs a lock that allows writes
+        for (String[] fk : userKeys)
+            update("ALTER TABLE " + fk[0] + " VALIDATE CONSTRAINT " + fk[1]);
+        System.out.println("Converted the small tables, re-validated " + userKeys.size() + " foreign keys");
+
+        List<String[]> messageKeys = query(
+                "SELECT conname, pg_get_constraintdef(oid) FROM pg_constraint "
+                + "WHERE contype = 'f' AND conrelid = 'message'::regclass");
+        _connection.setAutoCommit(false);
+        try {
+            update("CREATE TABLE MESSAGE_COMPACT("
+                    + "msg_id integer NOT NULL DEFAULT nextval('message_msg_id_seq'), "
+                    + "msg_text varchar(300) NOT NULL, "
+                    + "msg_timestamp timestamp NOT NULL, "
+                    + "sender_login varchar(50), "
+                    + "chat_id integer, "
+                    + "msg_tsv tsvector, "
+                    + "PRIMARY KEY(msg_id))");
+            // constraint names are per table, so these keep their names
+            for (String[] fk : messageKeys)
+                update("ALTER TABLE MESSAGE_COMPACT ADD CONSTRAINT " + fk[0] + " " + fk[1]);
+            update("CREATE OR REPLACE FUNCTION message_compact_copy() RETURNS trigger AS $$\n"
+                    + "BEGIN\n"
+                    + "  IF TG_OP = 'DELETE' THEN\n"
+                    + "    DELETE FROM MESSAGE_COMPACT WHERE msg_id = OLD.msg_id;\n"
+                    + "    RETURN OLD;\n"
+                    + "  END IF;\n"
+                    + "  INSERT INTO MESSAGE_COMPACT VALUES (NEW.msg_id, rtrim(NEW.msg_text), NEW.msg_timestamp,\n"
+                    + "      rtrim(NEW.sender_login), NEW.chat_id)\n"
+                    + "    ON CONFLICT (msg_id) DO UPDATE SET msg_text = EXCLUDED.msg_text,\n"
+                    + "      msg_timestamp = EXCLUDED.msg_timestamp, sender_login = EXCLUDED.sender_login,\n"
+                    + "      chat_id = EXCLUDED.chat_id;\n"
+                    + "  RETURN NEW;\n"
+                    + "END;\n"
+                    + "$$ LANGUAGE plpgsql");
+            update("CREATE TRIGGER message_compact_copy AFTER INSERT OR UPDATE OR DELETE ON MESSAGE "
+                    + "FOR EACH ROW EXECUTE PROCEDURE message_compact_copy()");
+            _connection.commit();
+        } catch (SQLException e) {
+            _connection.rollback();
+            throw e;
+        } finally {
+            _connection.setAutoCommit(true);
+        }
+        System.out.println("Created MESSAGE_COMPACT; now run create_triggers.sql, then backfill");
+    }//end prepare
+
+    /**
+     * Copies MESSAGE into MESSAGE_COMPACT.
+     */
+    public void backfill() throws SQLException, InterruptedException {
+        List<String[]> bounds = query("SELECT min(msg_id), max(msg_id) FROM MESSAGE");
+        if (bounds.get(0)[0] != null) {
+            long lo = Long.parseLong(bounds.get(0)[0]);
+            long hi = Long.parseLong(bounds.get(0)[1]);
+            long start = System.nanoTime();
+            long copied = 0;
+            PreparedStatement copy = _connection.prepareStatement(
+                    "INSERT INTO MESSAGE_COMPACT "
+                    + "SELECT m.msg_id, rtrim(m.msg_text), m.msg_timestamp, rtrim(m.sender_login), m.chat_id "
+                    + "FROM MESSAGE m WHERE m.msg_id >= ? AND m.msg_id < ? ON CONFLICT (msg_id) DO NOTHING");
+            // a row deleted while its range was being copied can be copied
+            // after the trigger already removed it
+            PreparedStatement orphans = _connection.prepareStatement(
+                    "DELETE FROM MESSAGE_COMPACT c WHERE c.msg_id >= ? AND c.msg_id < ? "
+                    + "AND NOT EXISTS (SELECT 1 FROM MESSAGE m WHERE m.msg_id = c.msg_id)");
+            try {
+                for (long from = lo; from <= hi; from += CHUNK) {
+                    copy.setLong(1, from);
+                    copy.setLong(2, from + CHUNK);
+                    copied += copy.executeUpdate();
+                    if (_pauseMillis > 0)
+                        Thread.sleep(_pauseMillis);
+                }
+                long removed = 0;
+                for (long from = lo; from <= hi; from += CHUNK) {
+                    orphans.setLong(1, from);
+                    orphans.setLong(2, from + CHUNK);
+                    removed += orphans.executeUpdate();
+                }
+                System.out.println(String.format("MESSAGE_COMPACT: copied %d rows (%d removed again) in %.1f s",
+                        copied, removed, (System.nanoTime() - start) / 1e9));
+            } finally {
+                copy.close();
+                orphans.close();
+            }
+        }
+
+        // the secondary indexes of MESSAGE, built without blocking writes
+        update("SET lock_timeout = 0");
+        List<String[]> indexes = query(
+                "SELECT i.indexrelid::regclass, pg_get_indexdef(i.indexrelid) FROM pg_index i "
+                + "WHERE i.indrelid = 'message'::regclass AND NOT EXISTS "
+                + "(SELECT 1 FROM pg_constraint c WHERE c.conindid = i.indexrelid)");
+        for (String[] index : indexes) {
+            String def = index[1]
+                    .replaceFirst("INDEX " + index[0] + " ", "INDEX CONCURRENTLY IF NOT EXISTS " + index[0] + "_compact ")
+                    .replaceFirst(" ON (\\S+\\.)?message ", " ON message_compact ");
+            long start = System.nanoTime();
+            update(def);
+            System.out.println(String.format("%s_compact: built in %.1f s", index[0], (System.nanoTime() - start) / 1e9));
+        }
+        update("ANALYZE MESSAGE_COMPACT");
+    }//end backfill
+
+    /**
+     * Replaces MESSAGE with MESSAGE_COMPACT.
+     */
+    public void swap() throws SQLException {
+        update("SET lock_timeout = '" + LOCK_TIMEOUT + "'");
+        _connection.setAutoCommit(false);
+        try {
+            update("LOCK TABLE MESSAGE IN ACCESS EXCLUSIVE MODE");
+            List<String[]> check = query(
+                    "SELECT (SELECT max(msg_id) FROM MESSAGE), (SELECT max(msg_id) FROM MESSAGE_COMPACT)");
+            String live = check.get(0)[0], copied = check.get(0)[1];
+            if (live == null ? copied != null : !live.equals(copied))
+                throw new SQLException("MESSAGE_COMPACT is behind MESSAGE (max msg_id " + copied + " vs "
+                        + live + "), run backfill first");
+            update("DROP TRIGGER message_compact_copy ON MESSAGE");
+            List<String[]> triggers = query(
+                    "SELECT pg_get_triggerdef(oid) FROM pg_trigger "
+                    + "WHERE tgrelid = 'message'::regclass AND NOT tgisinternal");
+            List<String[]> indexes = query(
+                    "SELECT i.indexrelid::regclass FROM pg_index i "
+                    + "WHERE i.indrelid = 'message'::regclass AND NOT EXISTS "
+                    + "(SELECT 1 FROM pg_constraint c WHERE c.conindid = i.indexrelid)");
+            // the sequence would be dropped with the table that owns it
+            update("ALTER SEQUENCE message_msg_id_seq OWNED BY MESSAGE_COMPACT.msg_id");
+            update("DROP TABLE MESSAGE");
+            update("ALTER TABLE MESSAGE_COMPACT RENAME TO MESSAGE");
+            update("ALTER INDEX message_compact_pkey RENAME TO message_pkey");
+            for (String[] index : indexes)
+                update("ALTER INDEX " + index[0] + "_compact RENAME TO " + index[0]);
+            for (String[] trigger : triggers)
+                update(trigger[0]);
+            _connection.commit();
+        } catch (SQLException e) {
+            _connection.rollback();
+            throw e;
+        } finally {
+            _connection.setAutoCommit(true);
+        }
+        update("DROP FUNCTION message_compact_copy()");
+        update("ANALYZE MESSAGE");
+        System.out.println("MESSAGE replaced by the compact table");
+    }//end swap
+
+    /**
+     * @param args <dbname> <port> <user> prepare|backfill|swap [pause millis]
+     */
+    public static void main(String[] args) {
+        if (args.length < 4) {
+            System.err.println(
+                    "Usage: " +
+                    "java [-classpath <classpath>] " +
+                    CompactMigration.class.getName() +
+                    " <dbname> <port> <user> prepare|backfill|swap [pause millis]");
+            return;
+        }
+        Connection connection = null;
+        try {
+            Class.forName("org.postgresql.Driver").newInstance();
+            String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+            connection = DriverManager.getConnection(url, args[2], "");
+            long pause = args.length > 4 ? Long.parseLong(args[4]) : 50;
+            CompactMigration migration = new CompactMigration(connection, pause);
+            if (args[3].equals("prepare"))
+                migration.prepare();
+            else if (args[3].equals("backfill"))
+                migration.backfill();
+            else if (args[3].equals("swap"))
+                migration.swap();
+            else
+                throw new IllegalArgumentException("unknown step " + args[3]);
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        } finally {
+            try {
+                if (connection != null)
+                    connection.close();
+            } catch (SQLException e) {
+                // ignored.
+            }
+        }
+    }//end main
+}//end CompactMigration
@@ -0,0 +1,214 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded pool of database connections. Each pooled connection is wrapped
+ * in its own Messenger, so its prepared statements (see StatementCache)
+ * survive across borrows and are only prepared once per connection.
+ *
+ * At most maxSize connections exist at a time; borrowers wait up to the
+ * borrow timeout for one to be returned. A connection that has been idle
+ * for longer than the validation interval is checked with a trivial query
+ * before it is handed out, and connections that fail the check, or that the
+ * borrower reports as broken, are closed and replaced.
+ */
+public class ConnectionPool {
+
+    // idle connections older than this are validated before being handed out
+    private static final long VALIDATE_AFTER_MILLIS = 30 * 1000;
+
+    private final String _url;
+    private final String _user;
+    private final String _passwd;
+    private final long _borrowTimeoutMillis;
+
+    // one permit per connection that may still be borrowed
+    private final Semaphore _permits;
+
+    // idle connections, most recently used first
+    private final Deque<Pooled> _idle = new ArrayDeque<Pooled>();
+
+    private volatile boolean _closed = false;
+
+    /**
+     * An idle connection and the time it was returned to the pool.
+     */
+    private static class Pooled {
+        final Messenger esql;
+        final long returnedAt;
+
+        Pooled(Messenger esql, long returnedAt) {
+            this.esql = esql;
+            this.returnedAt = returnedAt;
+        }
+    }//end Pooled
+
+    /**
+     * Creates a pool. Connections are opened lazily on first use.
+     *
+     * @param dbname the name of the database
+     * @param dbport the port Postgres listens on
+     * @param user the user name used to login to the database
+     * @param passwd the user login password
+     * @param maxSize the maximum number of open connections
+     * @param borrowTimeoutMillis how long borrow() waits for a free connection
+     */
+    public ConnectionPool(String dbname, String dbport, String user, String passwd,
+                          int maxSize, long borrowTimeoutMillis) {
+        this("jdbc:postgresql://localhost:" + dbport + "/" + dbname, user, passwd,
+                maxSize, borrowTimeoutMillis);
+    }
+
+    /**
+     * Creates a pool for an explicit JDBC URL.
+     */
+    public ConnectionPool(String url, String user, String passwd,
+                          int maxSize, long borrowTimeoutMillis) {
+        this._url = url;
+        this._user = user;
+        this._passwd = passwd;
+        this._borrowTimeoutMillis = borrowTimeoutMillis;
+        this._permits = new Semaphore(maxSize, true);
+    }
+
+    /**
+     * Takes a connection out of the pool, waiting if all are in use.
+     *
+     * @return a Messenger bound to a healthy connection; hand it back with
+     *         release() when done
+     * @throws java.sql.SQLException when no connection became free in time
+     *         or a new one could not be opened
+     */
+    public Messenger borrow() throws SQLException {
+        if (_closed)
+            throw new SQLException("Connection pool is closed");
+        try {
+            if (!_permits.tryAcquire(_borrowTimeoutMillis, TimeUnit.MILLISECONDS))
+                throw new SQLException("Timed out waiting for a database connection");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a database connection");
+        }
+        try {
+            while (true) {
+                Pooled pooled;
+                synchronized (_idle) {
+                    pooled = _idle.pollFirst();
+                }
+                if (pooled == null)
+                    return open();
+                if (System.currentTimeMillis() - pooled.returnedAt < VALIDATE_AFTER_MILLIS
+                        || isHealthy(pooled.esql))
+                    return pooled.esql;
+                pooled.esql.cleanup();
+            }
+        } catch (SQLException e) {
+            _permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            _permits.release();
+            throw e;
+        }
+    }//end borrow
+
+    /**
+     * Returns a borrowed connection to the pool.
+     *
+     * @param esql the instance obtained from borrow()
+     */
+    public void release(Messenger esql) {
+        if (esql == null)
+            return;
+        boolean keep = !_closed;
+        if (keep) {
+            try {
+                // never hand out a connection in the middle of a transaction
+                if (!esql.getConnection().getAutoCommit()) {
+                    esql.getConnection().rollback();
+                    esql.getConnection().setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                keep = false;
+            }
+        }
+        if (keep) {
+            synchronized (_idle) {
+                _idle.addFirst(new Pooled(esql, System.currentTimeMillis()));
+            }
+        } else {
+            esql.cleanup();
+        }
+        _permits.release();
+    }//end release
+
+    /**
+     * Returns a borrowed connection after an operation on it failed. The
+     * connection is put back if it still passes the health check and closed
+     * otherwise.
+     *
+     * @param esql the instance obtained from borrow()
+     */
+    public void releaseAfterError(Messenger esql) {
+        if (esql == null)
+            return;
+        try {
+            if (!esql.getConnection().getAutoCommit()) {
+                esql.getConnection().rollback();
+                esql.getConnection().setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            // the health check below decides
+        }
+        if (isHealthy(esql)) {
+            release(esql);
+        } else {
+            esql.cleanup();
+            _permits.release();
+        }
+    }//end releaseAfterError
+
+    /**
+     * Closes every idle connection. Borrowed connections are closed as they
+     * are returned.
+     */
+    public void close() {
+        _closed = true;
+        synchronized (_idle) {
+            for (Pooled pooled : _idle)
+                pooled.esql.cleanup();
+            _idle.clear();
+        }
+    }
+
+    private Messenger open() throws SQLException {
+        return new Messenger(DriverManager.getConnection(_url, _user, _passwd));
+    }
+
+    /**
+     * Health check for an idle connection.
+     */
+    private static boolean isHealthy(Messenger esql) {
+        Connection connection = esql.getConnection();
+        try {
+            if (connection.isClosed())
+                return false;
+            Statement stmt = connection.createStatement();
+            try {
+                ResultSet rs = stmt.executeQuery("SELECT 1");
+                rs.close();
+            } finally {
+                stmt.close();
+            }
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }//end isHealthy
+}//end ConnectionPool
@@ -0,0 +1,40 @@
+import java.util.List;
+
+/**
+ * Position in a chat's message history, used for keyset (seek) pagination.
+ * History is ordered newest first by (msg_timestamp, msg_id); a cursor holds
+ * the key of the last row already shown so the next page can start strictly
+ * after it instead of re-reading every earlier page with OFFSET.
+ *
+ * The timestamp is kept as the text Postgres returned so that no precision
+ * is lost on the round trip back into the query.
+ */
+public class HistoryCursor {
+
+    private final String msgTimestamp;
+    private final int msgId;
+
+    public HistoryCursor(String msgTimestamp, int msgId) {
+        this.msgTimestamp = msgTimestamp;
+        this.msgId = msgId;
+    }
+
+    /**
+     * Builds the cursor that follows the given history row.
+     *
+     * @param row a row of (msg_id, msg_timestamp, ...) as returned by the
+     *            history queries
+     * @return the cursor positioned after that row
+     */
+    public static HistoryCursor after(List<String> row) {
+        return new HistoryCursor(row.get(1), Integer.parseInt(row.get(0).trim()));
+    }
+
+    public String getMsgTimestamp() {
+        return msgTimestamp;
+    }
+
+    public int getMsgId() {
+        return msgId;
+    }
+}//end HistoryCursor
@@ -0,0 +1,97 @@
+/**
+ * Fixed-size latency histogram with microsecond resolution below 128us and
+ * 64 sub-buckets per power of two above that, so any recorded value is
+ * reported within about 1.6% of its true value. Memory use is constant no
+ * matter how many values are recorded.
+ */
+public class LatencyHistogram {
+
+    // values below this are counted exactly
+    private static final int LINEAR = 128;
+
+    // sub-buckets per power of two above LINEAR
+    private static final int SUB_BUCKETS = 64;
+
+    // enough for latencies up to 2^40 us (about 12 days)
+    private static final int BUCKETS = LINEAR + (40 - 7 + 1) * SUB_BUCKETS;
+
+    private final long[] _counts = new long[BUCKETS];
+    private long _total = 0;
+    private long _sumMicros = 0;
+    private long _maxMicros = 0;
+
+    /**
+     * Records one latency.
+     *
+     * @param nanos the measured latency in nanoseconds
+     */
+    public synchronized void record(long nanos) {
+        long micros = Math.max(nanos / 1000, 0);
+        _counts[bucket(micros)]++;
+        _total++;
+        _sumMicros += micros;
+        if (micros > _maxMicros)
+            _maxMicros = micros;
+    }
+
+    /**
+     * Adds every value recorded in another histogram to this one.
+     */
+    public synchronized void merge(LatencyHistogram other) {
+        synchronized (other) {
+            for (int i = 0; i < BUCKETS; ++i)
+                _counts[i] += other._counts[i];
+            _total += other._total;
+            _sumMicros += other._sumMicros;
+            _maxMicros = Math.max(_maxMicros, other._maxMicros);
+        }
+    }
+
+    public synchronized long count() {
+        return _total;
+    }
+
+    public synchronized long maxMicros() {
+        return _maxMicros;
+    }
+
+    public synchronized double meanMicros() {
+        return _total == 0 ? 0 : (double) _sumMicros / _total;
+    }
+
+    /**
+     * @param fraction the percentile as a fraction, e.g. 0.99 for p99
+     * @return the latency in microseconds that the given fraction of the
+     *         recorded values do not exceed
+     */
+    public synchronized long percentileMicros(double fraction) {
+        if (_total == 0)
+            return 0;
+        long rank = (long) Math.ceil(fraction * _total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += _counts[i];
+            if (seen >= rank)
+                return Math.min(upperBound(i), _maxMicros);
+        }
+        return _maxMicros;
+    }
+
+    private static int bucket(long micros) {
+        if (micros < LINEAR)
+            return (int) micros;
+        int exp = 63 - Long.numberOfLeadingZeros(micros);
+        int shift = exp - 6;
+        int mantissa = (int) (micros >>> shift) - SUB_BUCKETS;
+        return Math.min(LINEAR + (exp - 7) * SUB_BUCKETS + mantissa, BUCKETS - 1);
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < LINEAR)
+            return bucket;
+        int exp = (bucket - LINEAR) / SUB_BUCKETS + 7;
+        long mantissa = (bucket - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+        int shift = exp - 6;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}//end LatencyHistogram
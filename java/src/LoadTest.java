@@ -0,0 +1,245 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load test for the messaging paths. Many concurrent clients run a weighted
+ * mix of operations through MessengerService, so the SQL, statement cache
+ * and connection pool are exactly the ones the server uses. At the end it
+ * prints throughput and p50/p99/p999 latency per operation.
+ *
+ * Participants are sampled from the database before the run: (login,
+ * password, chat) triples of existing chat members, so it works against the
+ * bundled data as well as against a WorkloadGenerator dataset.
+ *
+ * Operations and default weights:
+ *   login=5 send=25 history=35 member=5 contacts=15 chats=15
+ * "history" reads the newest page and then one older page; "member" adds a
+ * random user to a chat and removes them again. "ingest" (not in the
+ * default mix) sends through a MessageIngestor, as the server does, and
+ * waits for the acknowledgement; compare "send=100" with "ingest=100" for
+ * the gain of group commit. Run with -Dmessenger.replicas=<port>,... to
+ * route reads to replicas as the server does.
+ */
+public class LoadTest {
+
+    private static final String DEFAULT_MIX = "login=5,send=25,history=35,member=5,contacts=15,chats=15";
+
+    private final MessengerService _service;
+    private final MessageIngestor _ingestor;
+    private final List<String[]> _participants;
+    private final String[] _ops;
+    private final int[] _cumulativeWeights;
+
+    public LoadTest(MessengerService service, MessageIngestor ingestor, List<String[]> participants, String mix) {
+        this._service = service;
+        this._ingestor = ingestor;
+        this._participants = participants;
+        String[] entries = mix.split(",");
+        this._ops = new String[entries.length];
+        this._cumulativeWeights = new int[entries.length];
+        int sum = 0;
+        for (int i = 0; i < entries.length; ++i) {
+            String[] kv = entries[i].split("=");
+            _ops[i] = kv[0].trim();
+            sum += Integer.parseInt(kv[1].trim());
+            _cumulativeWeights[i] = sum;
+        }
+    }
+
+    /**
+     * Per-client measurements, merged after the run.
+     */
+    private class Client implements Runnable {
+        final Map<String, LatencyHistogram> latencies = new LinkedHashMap<String, LatencyHistogram>();
+        final Map<String, AtomicLong> errors = new LinkedHashMap<String, AtomicLong>();
+        final long deadline;
+        final Random random;
+
+        Client(long deadline, long seed) {
+            this.deadline = deadline;
+            this.random = new Random(seed);
+            for (String op : _ops) {
+                latencies.put(op, new LatencyHistogram());
+                errors.put(op, new AtomicLong());
+            }
+        }
+
+        public void run() {
+            while (System.nanoTime() < deadline) {
+                String op = pick(random);
+                String[] p = _participants.get(random.nextInt(_participants.size()));
+                long start = System.nanoTime();
+                try {
+                    execute(op, p, random);
+                    latencies.get(op).record(System.nanoTime() - start);
+                } catch (SQLException e) {
+                    errors.get(op).incrementAndGet();
+                } catch (RuntimeException e) {
+                    // counted like a failed query instead of ending the client
+                    errors.get(op).incrementAndGet();
+                }
+            }
+        }
+    }//end Client
+
+    private String pick(Random random) {
+        int r = random.nextInt(_cumulativeWeights[_cumulativeWeights.length - 1]);
+        for (int i = 0; i < _ops.length; ++i)
+            if (r < _cumulativeWeights[i])
+                return _ops[i];
+        return _ops[_ops.length - 1];
+    }
+
+    /**
+     * Runs one operation for a participant (login, password, chat_id).
+     */
+    private void execute(String op, String[] p, Random random) throws SQLException {
+        String login = p[0];
+        int chatId = Integer.parseInt(p[2]);
+        if (op.equals("login")) {
+            _service.logIn(login, p[1]);
+        } else if (op.equals("send")) {
+            _service.sendMessage(chatId, login, "load test message " + random.nextInt());
+        } else if (op.equals("ingest")) {
+            _ingestor.send(chatId, login, "load test message " + random.nextInt());
+        } else if (op.equals("history")) {
+            List<List<String>> page = _service.pageHistory(login, chatId, null, Messenger.HISTORY_PAGE_SIZE);
+            if (page.size() == Messenger.HISTORY_PAGE_SIZE)
+                _service.pageHistory(login, chatId, HistoryCursor.after(page.get(page.size() - 1)), Messenger.HISTORY_PAGE_SIZE);
+        } else if (op.equals("member")) {
+            String other = _participants.get(random.nextInt(_participants.size()))[0];
+            if (!_service.isChatMember(chatId, other)) {
+                _service.addChatMember(chatId, other);
+                _service.removeChatMember(chatId, other);
+            }
+        } else if (op.equals("contacts")) {
+            _service.listContacts(login);
+        } else if (op.equals("chats")) {
+            _service.listChats(login);
+        } else {
+            throw new IllegalArgumentException("unknown operation " + op);
+        }
+    }//end execute
+
+    /**
+     * Runs the given number of clients for the given time and prints the
+     * results.
+     */
+    public void run(int clients, int seconds) throws InterruptedException {
+        long deadline = System.nanoTime() + seconds * 1000000000L;
+        List<Client> runners = new ArrayList<Client>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < clients; ++i) {
+            Client client = new Client(deadline, 1000 + i);
+            runners.add(client);
+            Thread thread = new Thread(client, "load-client-" + i);
+            threads.add(thread);
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        System.out.println(String.format("%d clients, %.1f s", clients, elapsed));
+        System.out.println(String.format("%-10s %10s %10s %10s %10s %10s %10s %10s %8s",
+                "operation", "count", "ops/s", "mean(us)", "p50(us)", "p99(us)", "p999(us)", "max(us)", "errors"));
+        LatencyHistogram all = new LatencyHistogram();
+        for (String op : _ops) {
+            LatencyHistogram merged = new LatencyHistogram();
+            long errors = 0;
+            for (Client client : runners) {
+                merged.merge(client.latencies.get(op));
+                errors += client.errors.get(op).get();
+            }
+            all.merge(merged);
+            print(op, merged, errors, elapsed);
+        }
+        print("total", all, 0, elapsed);
+        if (_ingestor.batches() > 0)
+            System.out.println(String.format("ingest: %d messages in %d batches (%.1f per commit)",
+                    _ingestor.messages(), _ingestor.batches(), (double) _ingestor.messages() / _ingestor.batches()));
+    }//end run
+
+    private static void print(String op, LatencyHistogram h, long errors, double elapsed) {
+        System.out.println(String.format("%-10s %10d %10.1f %10.0f %10d %10d %10d %10d %8d",
+                op, h.count(), h.count() / elapsed, h.meanMicros(), h.percentileMicros(0.50),
+                h.percentileMicros(0.99), h.percentileMicros(0.999), h.maxMicros(), errors));
+    }
+
+    /**
+     * @return (login, password, chat_id) of up to limit random chat members
+     */
+    private static List<String[]> sampleParticipants(String url, String user, int limit) throws SQLException {
+        Connection connection = DriverManager.getConnection(url, user, "");
+        try {
+            Statement stmt = connection.createStatement();
+            ResultSet rs = stmt.executeQuery(
+                    "SELECT u.login, u.password, cl.chat_id FROM CHAT_LIST cl, USR u "
+                    + "WHERE u.login = cl.member ORDER BY random() LIMIT " + limit);
+            List<String[]> participants = new ArrayList<String[]>();
+            while (rs.next())
+                participants.add(new String[]{rs.getString(1).trim(), rs.getString(2).trim(), rs.getString(3)});
+            rs.close();
+            stmt.close();
+            Collections.shuffle(participants, new Random(166));
+            return participants;
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * @param args <dbname> <port> <user> [clients] [seconds] [pool size] [mix]
+     */
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.err.println(
+                    "Usage: " +
+                    "java [-classpath <classpath>] " +
+                    LoadTest.class.getName() +
+                    " <dbname> <port> <user> [clients] [seconds] [pool size] [mix]");
+            System.err.println("  mix defaults to " + DEFAULT_MIX);
+            return;
+        }
+        try {
+            Class.forName("org.postgresql.Driver").newInstance();
+            String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+            int clients = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+            int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 30;
+            int poolSize = args.length > 5 ? Integer.parseInt(args[5]) : clients;
+            String mix = args.length > 6 ? args[6] : DEFAULT_MIX;
+
+            List<String[]> participants = sampleParticipants(url, args[2], 10000);
+            if (participants.isEmpty()) {
+                System.err.println("No chat members found, load some data first");
+                return;
+            }
+            ConnectionPool pool = new ConnectionPool(url, args[2], "", poolSize, 60 * 1000);
+            MessengerService service = new MessengerService(pool,
+                    ReplicaRouter.fromProperty(pool, args[0], args[2], poolSize));
+            MessageIngestor ingestor = new MessageIngestor(service);
+            ingestor.start(Math.max(poolSize / 8, 1));
+            try {
+                new LoadTest(service, ingestor, participants, mix).run(clients, seconds);
+            } finally {
+                ingestor.close();
+                service.close();
+            }
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }//end main
+}//end LoadTest
@@ -0,0 +1,299 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-process cache of the data the chat menus re-check on every action:
+ * who is in a chat, who owns it, and each user's contact and block lists.
+ * One instance is shared by every Messenger in the JVM (see SHARED), so the
+ * interactive client and all server sessions see the same entries.
+ *
+ * Each map is a bounded LRU. Members and list entries are stored as sorted
+ * arrays of interned, trimmed logins, looked up with a binary search. Chats
+ * with more than MAX_CACHED_MEMBERS members are not cached; membership
+ * checks for those go to the database.
+ *
+ * Entries are dropped explicitly by the write paths that change them. A
+ * load that raced with an invalidation is discarded (see version()), so a
+ * stale result never replaces a newer invalidation. The cache does not see
+ * changes made by other processes, such as a member removed through another
+ * client or server, so every entry is also forgotten ttlMillis after it was
+ * loaded; that bounds how long such a change goes unnoticed.
+ */
+public class MembershipCache {
+
+    public static final MembershipCache SHARED = new MembershipCache(10000, 50000, 10000, 5000);
+
+    // bigger chats are always checked against the database
+    public static final int MAX_CACHED_MEMBERS = 2000;
+
+    // owner recorded for chats that do not exist
+    private static final String NO_OWNER = "";
+
+    /**
+     * A user's contact or block list. Statuses are kept for contact lists
+     * only, in the same order as the logins.
+     */
+    public static class UserList {
+        final String[] logins;
+        final String[] statuses;
+
+        UserList(String[] logins, String[] statuses) {
+            this.logins = logins;
+            this.statuses = statuses;
+        }
+
+        public boolean contains(String login) {
+            return Arrays.binarySearch(logins, login.trim()) >= 0;
+        }
+
+        public int size() {
+            return logins.length;
+        }
+    }//end UserList
+
+    /**
+     * A cached value and when it was loaded.
+     */
+    private static class Loaded<V> {
+        final V value;
+        final long loadedAt = System.nanoTime();
+
+        Loaded(V value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * Bounded map that evicts the least recently used entry and forgets
+     * entries older than its time to live.
+     */
+    private static class Lru<K, V> extends LinkedHashMap<K, Loaded<V>> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+        private final long ttlNanos;
+
+        Lru(int capacity, long ttlMillis) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+            this.ttlNanos = ttlMillis * 1000000L;
+        }
+
+        protected boolean removeEldestEntry(Map.Entry<K, Loaded<V>> eldest) {
+            return size() > capacity;
+        }
+
+        /**
+         * @return the value, or null if it is not cached or has expired
+         */
+        V fresh(K key) {
+            Loaded<V> entry = get(key);
+            if (entry == null)
+                return null;
+            if (System.nanoTime() - entry.loadedAt > ttlNanos) {
+                remove(key);
+                return null;
+            }
+            return entry.value;
+        }
+
+        void load(K key, V value) {
+            put(key, new Loaded<V>(value));
+        }
+    }//end Lru
+
+    private final Lru<Integer, String[]> _members;
+    private final Lru<Integer, String> _owners;
+    private final Lru<String, UserList> _contacts;
+    private final Lru<String, UserList> _blocks;
+
+    // bumped by every invalidation
+    private long _version = 0;
+
+    private long _memberHits, _memberMisses;
+    private long _ownerHits, _ownerMisses;
+    private long _listHits, _listMisses;
+
+    /**
+     * @param ttlMillis how long an entry is used before it is loaded again
+     */
+    public MembershipCache(int maxChats, int maxOwners, int maxUsers, long ttlMillis) {
+        _members = new Lru<Integer, String[]>(maxChats, ttlMillis);
+        _owners = new Lru<Integer, String>(maxOwners, ttlMillis);
+        _contacts = new Lru<String, UserList>(maxUsers, ttlMillis);
+        _blocks = new Lru<String, UserList>(maxUsers, ttlMillis);
+    }
+
+    /**
+     * Read before loading from the database and pass to the matching put
+     * method, which ignores the load if anything was invalidated meanwhile.
+     */
+    public synchronized long version() {
+        return _version;
+    }
+
+    /**
+     * @return the sorted members of a chat, or null if not cached
+     */
+    public synchronized String[] members(int chatId) {
+        String[] members = _members.fresh(chatId);
+        if (members == null)
+            _memberMisses++;
+        else
+            _memberHits++;
+        return members;
+    }
+
+    /**
+     * Caches the members of a chat, unless there are too many of them.
+     *
+     * @param members the member logins as returned by the database; the
+     *                array is interned and sorted in place
+     * @return the sorted members, or null if the chat is too big to cache
+     */
+    public synchronized String[] putMembers(int chatId, String[] members, long version) {
+        if (members.length > MAX_CACHED_MEMBERS)
+            return null;
+        for (int i = 0; i < members.length; ++i)
+            members[i] = members[i].trim().intern();
+        Arrays.sort(members);
+        if (version == _version)
+            _members.load(chatId, members);
+        return members;
+    }
+
+    public static boolean contains(String[] sorted, String login) {
+        return Arrays.binarySearch(sorted, login.trim()) >= 0;
+    }
+
+    /**
+     * @return the owner of a chat, "" if the chat does not exist, or null if
+     *         not cached
+     */
+    public synchronized String owner(int chatId) {
+        String owner = _owners.fresh(chatId);
+        if (owner == null)
+            _ownerMisses++;
+        else
+            _ownerHits++;
+        return owner;
+    }
+
+    /**
+     * @param owner the owner's login, or null if the chat does not exist
+     */
+    public synchronized void putOwner(int chatId, String owner, long version) {
+        if (version != _version)
+            return;
+        _owners.load(chatId, owner == null ? NO_OWNER : owner.trim().intern());
+    }
+
+    public synchronized UserList contacts(String login) {
+        return list(_contacts, login);
+    }
+
+    public synchronized UserList blocks(String login) {
+        return list(_blocks, login);
+    }
+
+    /**
+     * @param logins the contacts' logins as returned by the database
+     * @param statuses the contacts' statuses, in the same order
+     */
+    public synchronized UserList putContacts(String login, String[] logins, String[] statuses, long version) {
+        return putList(_contacts, login, logins, statuses, version);
+    }
+
+    /**
+     * @param logins the blocked users' logins as returned by the database
+     */
+    public synchronized UserList putBlocks(String login, String[] logins, long version) {
+        return putList(_blocks, login, logins, null, version);
+    }
+
+    private UserList list(Lru<String, UserList> map, String login) {
+        UserList list = map.fresh(login.trim());
+        if (list == null)
+            _listMisses++;
+        else
+            _listHits++;
+        return list;
+    }
+
+    /**
+     * Builds the compact list and caches it if nothing was invalidated since
+     * the load started. The list is returned either way.
+     */
+    private UserList putList(Lru<String, UserList> map, String login, String[] rowLogins,
+                             String[] rowStatuses, long version) {
+        boolean withStatus = rowStatuses != null;
+        // sort the rows by login so the parallel arrays stay aligned
+        String[][] pairs = new String[rowLogins.length][];
+        for (int i = 0; i < pairs.length; ++i) {
+            String status = withStatus && rowStatuses[i] != null ? rowStatuses[i].trim() : null;
+            pairs[i] = new String[]{rowLogins[i].trim().intern(), status};
+        }
+        Arrays.sort(pairs, new java.util.Comparator<String[]>() {
+            public int compare(String[] a, String[] b) {
+                return a[0].compareTo(b[0]);
+            }
+        });
+        String[] logins = new String[pairs.length];
+        String[] statuses = withStatus ? new String[pairs.length] : null;
+        for (int i = 0; i < pairs.length; ++i) {
+            logins[i] = pairs[i][0];
+            if (withStatus)
+                statuses[i] = pairs[i][1];
+        }
+        UserList list = new UserList(logins, statuses);
+        if (version == _version)
+            map.load(login.trim(), list);
+        return list;
+    }//end putList
+
+    public synchronized void invalidateChat(int chatId) {
+        _version++;
+        _members.remove(chatId);
+        _owners.remove(chatId);
+    }
+
+    public synchronized void invalidateContacts(String login) {
+        _version++;
+        _contacts.remove(login.trim());
+    }
+
+    public synchronized void invalidateBlocks(String login) {
+        _version++;
+        _blocks.remove(login.trim());
+    }
+
+    /**
+     * Deleting an account removes it and the members of its chats from
+     * CHAT_LIST and hides it from other users' contact lists, so everything
+     * is dropped.
+     */
+    public synchronized void invalidateAccount(String login) {
+        _version++;
+        _members.clear();
+        _owners.clear();
+        _contacts.clear();
+        _blocks.clear();
+    }
+
+    /**
+     * @return hit/miss counts and sizes for each map
+     */
+    public synchronized String report() {
+        return String.format("%-14s %10s %10s %8s %8s%n", "cache", "hits", "misses", "hit%", "size")
+                + line("chat_members", _memberHits, _memberMisses, _members.size())
+                + line("chat_owners", _ownerHits, _ownerMisses, _owners.size())
+                + line("user_lists", _listHits, _listMisses, _contacts.size() + _blocks.size());
+    }
+
+    private static String line(String name, long hits, long misses, int size) {
+        long total = hits + misses;
+        return String.format("%-14s %10d %10d %7.1f%% %8d%n", name, hits, misses,
+                total == 0 ? 0.0 : hits * 100.0 / total, size);
+    }
+}//end MembershipCache
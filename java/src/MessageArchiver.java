@@ -0,0 +1,367 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Moves old MESSAGE partitions through the archive tier (see
+ * create_partitions.sql):
+ *
+ *   maintain [months]     creates the partitions up to the given number of
+ *                         months ahead (MessengerServer also does this daily)
+ *   detach <months>       moves the partitions of MESSAGE that ended more
+ *                         than the given number of months ago into the
+ *                         archive schema, as partitions of archive.message
+ *   export <dir> <months> writes the archived partitions that ended more
+ *                         than the given number of months ago to
+ *                         <dir>/<partition>.tsv.gz and drops them
+ *   restore <file>        loads an exported file back into archive.message
+ *
+ * The history pager reads archive.message but not exported files; restore
+ * a file to make its messages visible again.
+ *
+ * An exported file starts with a "-- FOR VALUES ..." line holding the
+ * partition bounds, followed by the rows in COPY text format. The file is
+ * written and synced before the partition is dropped.
+ */
+public class MessageArchiver {
+
+    private static final String LOCK_TIMEOUT = "5s";
+
+    // rows per INSERT batch when restoring
+    private static final int BATCH = 1000;
+
+    // rows fetched from the export cursor at a time
+    private static final int FETCH_SIZE = 5000;
+
+    private static final String COLUMNS = "msg_id, msg_text, msg_timestamp, sender_login, chat_id";
+
+    private final Connection _connection;
+
+    public MessageArchiver(Connection connection) {
+        this._connection = connection;
+    }
+
+    private void update(String sql) throws SQLException {
+        Statement stmt = _connection.createStatement();
+        try {
+            stmt.executeUpdate(sql);
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * @return (name, bound) of the monthly partitions of the given table
+     *         that ended more than the given number of months ago, oldest
+     *         first
+     */
+    private List<String[]> partitionsBefore(String parent, int months) throws SQLException {
+        PreparedStatement stmt = _connection.prepareStatement(
+                "SELECT c.relname, pg_get_expr(c.relpartbound, c.oid) FROM pg_inherits i, pg_class c "
+                + "WHERE c.oid = i.inhrelid AND i.inhparent = CAST(? AS regclass) "
+                + "AND c.relname LIKE 'message\\_y%' "
+                + "AND to_date(substr(c.relname, 9), '\"y\"YYYY\"m\"MM') + interval '1 month' "
+                + "<= date_trunc('month', now()) - ? * interval '1 month' "
+                + "ORDER BY c.relname");
+        try {
+            stmt.setString(1, parent);
+            stmt.setInt(2, months);
+            ResultSet rs = stmt.executeQuery();
+            List<String[]> partitions = new ArrayList<String[]>();
+            while (rs.next())
+                partitions.add(new String[]{rs.getString(1), rs.getString(2)});
+            rs.close();
+            return partitions;
+        } finally {
+            stmt.close();
+        }
+    }//end partitionsBefore
+
+    public void maintain(int monthsAhead) throws SQLException {
+        PreparedStatement stmt = _connection.prepareStatement(Query.CREATE_MESSAGE_PARTITIONS.sql());
+        try {
+            stmt.setInt(1, monthsAhead);
+            ResultSet rs = stmt.executeQuery();
+            rs.next();
+            System.out.println("Created " + rs.getInt(1) + " partitions");
+            rs.close();
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Moves old partitions of MESSAGE into archive.message, one short
+     * transaction each.
+     */
+    public void detach(int keepMonths) throws SQLException {
+        update("SET lock_timeout = '" + LOCK_TIMEOUT + "'");
+        for (String[] partition : partitionsBefore("message", keepMonths)) {
+            String name = partition[0];
+            _connection.setAutoCommit(false);
+            try {
+                update("ALTER TABLE MESSAGE DETACH PARTITION " + name);
+                // archived messages do not hold on to chats and users
+                Statement stmt = _connection.createStatement();
+                ResultSet rs = stmt.executeQuery(
+                        "SELECT conname FROM pg_constraint WHERE contype = 'f' AND conrelid = '" + name + "'::regclass");
+                List<String> keys = new ArrayList<String>();
+                while (rs.next())
+                    keys.add(rs.getString(1));
+                rs.close();
+                stmt.close();
+                for (String key : keys)
+                    update("ALTER TABLE " + name + " DROP CONSTRAINT " + key);
+                update("ALTER TABLE " + name + " SET SCHEMA archive");
+                update("ALTER TABLE archive.message ATTACH PARTITION archive." + name + " " + partition[1]);
+                _connection.commit();
+            } catch (SQLException e) {
+                _connection.rollback();
+                throw e;
+            } finally {
+                _connection.setAutoCommit(true);
+            }
+            System.out.println(name + ": moved to archive.message");
+        }
+    }//end detach
+
+    /**
+     * Writes old partitions of archive.message to compressed files in the
+     * directory and drops them.
+     */
+    public void export(File dir, int keepMonths) throws SQLException, IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Cannot create " + dir);
+        for (String[] partition : partitionsBefore("archive.message", keepMonths)) {
+            String name = partition[0];
+            File file = new File(dir, name + ".tsv.gz");
+            if (file.exists())
+                throw new IOException(file + " already exists");
+            long start = System.nanoTime();
+            // the cursor lives until the end of the transaction
+            _connection.setAutoCommit(false);
+            try {
+                long rows = 0;
+                Writer out = new BufferedWriter(new OutputStreamWriter(
+                        new GZIPOutputStream(new FileOutputStream(file), 1 << 16), "UTF-8"));
+                try {
+                    out.write("-- " + partition[1] + "\n");
+                    // the driver reads a whole result into memory, so the
+                    // rows come through a cursor FETCH_SIZE at a time
+                    update("DECLARE export_rows NO SCROLL CURSOR FOR SELECT " + COLUMNS
+                            + " FROM archive." + name + " ORDER BY msg_id");
+                    Statement stmt = _connection.createStatement();
+                    try {
+                        int fetched;
+                        do {
+                            fetched = 0;
+                            ResultSet rs = stmt.executeQuery("FETCH " + FETCH_SIZE + " FROM export_rows");
+                            while (rs.next()) {
+                                for (int i = 1; i <= 6; ++i) {
+                                    if (i > 1)
+                                        out.write('\t');
+                                    out.write(escape(rs.getString(i)));
+                                }
+                                out.write('\n');
+                                fetched++;
+                            }
+                            rs.close();
+                            rows += fetched;
+                        } while (fetched == FETCH_SIZE);
+                    } finally {
+                        stmt.close();
+                    }
+                    update("CLOSE export_rows");
+                } finally {
+                    out.close();
+                }
+                syncFile(file);
+                update("ALTER TABLE archive.message DETACH PARTITION archive." + name);
+                update("DROP TABLE archive." + name);
+                _connection.commit();
+                System.out.println(String.format("%s: %d rows exported to %s in %.1f s",
+                        name, rows, file, (System.nanoTime() - start) / 1e9));
+            } catch (SQLException e) {
+                _connection.rollback();
+                file.delete();
+                throw e;
+            } catch (IOException e) {
+                _connection.rollback();
+                file.delete();
+                throw e;
+            } finally {
+                _connection.setAutoCommit(true);
+            }
+        }
+    }//end export
+
+    private static void syncFile(File file) throws IOException {
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Loads an exported file back into archive.message.
+     */
+    public void restore(File file) throws SQLException, IOException {
+        String name = file.getName();
+        if (!name.matches("message_y\\d{4}m\\d{2}\\.tsv\\.gz"))
+            throw new IOException(file + " is not an exported partition");
+        name = name.substring(0, name.indexOf('.'));
+        long start = System.nanoTime();
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(file), 1 << 16), "UTF-8"));
+        _connection.setAutoCommit(false);
+        try {
+            String bound = in.readLine();
+            if (bound == null || !bound.startsWith("-- FOR VALUES"))
+                throw new IOException(file + " has no partition bounds");
+            update("CREATE TABLE archive." + name + " (LIKE archive.message)");
+            PreparedStatement insert = _connection.prepareStatement(
+                    "INSERT INTO archive." + name + " (" + COLUMNS + ", msg_tsv) "
+                    + "VALUES (?, ?, CAST(? AS timestamp), ?, ?, to_tsvector('english', CAST(? AS text)))");
+            long rows = 0;
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] f = line.split("\t", -1);
+                    insert.setInt(1, Integer.parseInt(f[0]));
+                    insert.setString(2, unescape(f[1]));
+                    insert.setString(3, unescape(f[2]));
+                    insert.setString(4, unescape(f[3]));
+                    setInteger(insert, 5, unescape(f[4]));
+                    // the search vector is not exported; rebuild it. Files
+                    // exported while MESSAGE had sender_id end with it.
+                    insert.setString(6, unescape(f[1]));
+                    insert.addBatch();
+                    if (++rows % BATCH == 0)
+                        insert.executeBatch();
+                }
+                insert.executeBatch();
+            } finally {
+                insert.close();
+            }
+            update("ALTER TABLE archive.message ATTACH PARTITION archive." + name + " " + bound.substring(3));
+            _connection.commit();
+            System.out.println(String.format("%s: %d rows restored to archive.message in %.1f s",
+                    name, rows, (System.nanoTime() - start) / 1e9));
+        } catch (SQLException e) {
+            _connection.rollback();
+            throw e;
+        } finally {
+            _connection.setAutoCommit(true);
+            in.close();
+        }
+    }//end restore
+
+    private static void setInteger(PreparedStatement stmt, int index, String value) throws SQLException {
+        if (value == null)
+            stmt.setNull(index, Types.INTEGER);
+        else
+            stmt.setInt(index, Integer.parseInt(value));
+    }
+
+    /**
+     * @return the value in COPY text format, \N for NULL
+     */
+    static String escape(String value) {
+        if (value == null)
+            return "\\N";
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\': sb.append("\\\\"); break;
+                case '\t': sb.append("\\t"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                default: sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the value of a field in COPY text format, null for \N
+     */
+    static String unescape(String field) {
+        if (field.equals("\\N"))
+            return null;
+        if (field.indexOf('\\') < 0)
+            return field;
+        StringBuilder sb = new StringBuilder(field.length());
+        for (int i = 0; i < field.length(); ++i) {
+            char c = field.charAt(i);
+            if (c == '\\' && i + 1 < field.length()) {
+                char n = field.charAt(++i);
+                sb.append(n == 't' ? '\t' : n == 'n' ? '\n' : n == 'r' ? '\r' : n);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param args <dbname> <port> <user> maintain [months] | detach <months> |
+     *             export <dir> <months> | restore <file>
+     */
+    public static void main(String[] args) {
+        if (args.length < 4) {
+            System.err.println(
+                    "Usage: " +
+                    "java [-classpath <classpath>] " +
+                    MessageArchiver.class.getName() +
+                    " <dbname> <port> <user> maintain [months] | detach <months> | export <dir> <months> | restore <file>");
+            return;
+        }
+        Connection connection = null;
+        try {
+            Class.forName("org.postgresql.Driver").newInstance();
+            String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+            connection = DriverManager.getConnection(url, args[2], "");
+            MessageArchiver archiver = new MessageArchiver(connection);
+            if (args[3].equals("maintain"))
+                archiver.maintain(args.length > 4 ? Integer.parseInt(args[4]) : 3);
+            else if (args[3].equals("detach"))
+                archiver.detach(Integer.parseInt(args[4]));
+            else if (args[3].equals("export"))
+                archiver.export(new File(args[4]), Integer.parseInt(args[5]));
+            else if (args[3].equals("restore"))
+                archiver.restore(new File(args[4]));
+            else
+                throw new IllegalArgumentException("unknown command " + args[3]);
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        } finally {
+            try {
+                if (connection != null)
+                    connection.close();
+            } catch (SQLException e) {
+                // ignored.
+            }
+        }
+    }//end main
+}//end MessageArchiver
@@ -0,0 +1,509 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * The client's copy of the history of recently viewed chats, kept across
+ * restarts in one file per user, so reopening a chat reads only what
+ * changed since it was last viewed.
+ *
+ * The file is a memory-mapped segment of SEGMENT_BYTES holding a log of
+ * records: messages, edits, deletions and syncs, each tagged with its chat
+ * and msg_id. Records are only appended; the header holds the end of the
+ * last complete record, so a record cut short by a crash is ignored. On
+ * open the log is replayed into an index of each chat's messages by
+ * (msg_timestamp, msg_id) and by msg_id, pointing into the mapped file.
+ * When the segment is full it is rewritten with the current state of the
+ * MAX_CHATS most recently viewed chats, up to half its size.
+ *
+ * A cached chat holds its history from some message up to the newest, plus
+ * the server time of its last sync. Opening it runs one query (see
+ * Messenger.syncChat) for the messages from a minute before the newest one
+ * cached, skipping those it has, and the edits and deletions logged since
+ * the last sync (MESSAGE_CHANGE, see create_triggers.sql); older pages come
+ * from the cache until it runs out and then from the server, and are added
+ * to the cache. The server keeps changes for CHANGE_RETENTION_DAYS, so a
+ * chat not synced for almost that long is dropped and read again.
+ *
+ * Not thread-safe; the file is locked so only one client of the user uses
+ * it at a time.
+ */
+public class MessageCache {
+
+    // how long MESSAGE_CHANGE keeps a change (see PurgeJob)
+    static final int CHANGE_RETENTION_DAYS = 7;
+
+    // a chat not synced for this long is read again
+    private static final long STALE_MILLIS = (CHANGE_RETENTION_DAYS - 1) * 24L * 60 * 60 * 1000;
+
+    static final int SEGMENT_BYTES = 64 << 20;
+
+    // chats kept when the segment is rewritten
+    static final int MAX_CHATS = 50;
+
+    // new messages read per sync round trip
+    static final int SYNC_LIMIT = 1000;
+
+    private static final int MAGIC = 0x4d534743;
+    private static final int VERSION = 1;
+
+    // magic, version and the end of the last complete record
+    private static final int HEADER = 12;
+
+    // length of the body, type, chat_id and msg_id before each body
+    private static final int RECORD_HEADER = 13;
+
+    // record types and their bodies
+    private static final byte MESSAGE = 'm';  // msg_timestamp, sender_login, msg_text
+    private static final byte EDIT = 'e';     // msg_text
+    private static final byte DELETE = 'd';
+    private static final byte SYNC = 's';     // server time, client time in ms
+    private static final byte COMPLETE = 'c'; // nothing before the oldest message cached
+    private static final byte DROP = 'x';     // the chat is no longer cached
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Position of a message in its chat's history.
+     */
+    private static final class Key implements Comparable<Key> {
+        final String timestamp;
+        final int msgId;
+
+        Key(String timestamp, int msgId) {
+            this.timestamp = timestamp;
+            this.msgId = msgId;
+        }
+
+        // timestamps as Postgres prints them sort as text
+        public int compareTo(Key other) {
+            int c = timestamp.compareTo(other.timestamp);
+            return c != 0 ? c : msgId < other.msgId ? -1 : msgId == other.msgId ? 0 : 1;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof Key && compareTo((Key) o) == 0;
+        }
+
+        public int hashCode() {
+            return timestamp.hashCode() * 31 + msgId;
+        }
+    }//end Key
+
+    /**
+     * What is cached of one chat.
+     */
+    private static final class Chat {
+        final int chatId;
+        // message -> (body of its MESSAGE record, position of its current text)
+        final TreeMap<Key, int[]> messages = new TreeMap<Key, int[]>();
+        final Map<Integer, Key> keys = new HashMap<Integer, Key>();
+        String syncedAt;
+        long syncedMillis;
+        boolean complete;
+
+        Chat(int chatId) {
+            this.chatId = chatId;
+        }
+    }//end Chat
+
+    private final File _file;
+    private RandomAccessFile _raf;
+    private FileLock _lock;
+    private MappedByteBuffer _buf;
+    private int _end;
+
+    private final Map<Integer, Chat> _chats = new HashMap<Integer, Chat>();
+    private final Map<Integer, Chat> _byMsgId = new HashMap<Integer, Chat>();
+
+    // the chat being opened, kept first when the segment is rewritten
+    private int _opening = -1;
+
+    private MessageCache(File file) throws IOException {
+        this._file = file;
+        map();
+        load();
+    }
+
+    /**
+     * Opens the cache of the user in the directory given by the system
+     * property messenger.cache, ~/.messenger by default.
+     *
+     * @throws java.io.IOException if the file cannot be used, e.g. because
+     *         another client of the user has it open
+     */
+    public static MessageCache open(String login) throws IOException {
+        File dir = new File(System.getProperty("messenger.cache",
+                System.getProperty("user.home") + File.separator + ".messenger"));
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Cannot create " + dir);
+        return new MessageCache(new File(dir, login.replaceAll("[^A-Za-z0-9_.-]", "_") + ".cache"));
+    }
+
+    private void map() throws IOException {
+        _raf = new RandomAccessFile(_file, "rw");
+        FileChannel channel = _raf.getChannel();
+        _lock = channel.tryLock();
+        if (_lock == null) {
+            _raf.close();
+            throw new IOException(_file + " is in use");
+        }
+        if (_raf.length() < SEGMENT_BYTES)
+            _raf.setLength(SEGMENT_BYTES);
+        _buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_BYTES);
+        _end = _buf.getInt(8);
+        if (_buf.getInt(0) != MAGIC || _buf.getInt(4) != VERSION || _end < HEADER || _end > SEGMENT_BYTES)
+            reset();
+    }
+
+    private void reset() {
+        _buf.putInt(0, MAGIC);
+        _buf.putInt(4, VERSION);
+        _buf.putInt(8, HEADER);
+        _end = HEADER;
+        _chats.clear();
+        _byMsgId.clear();
+    }
+
+    /**
+     * Replays the log into the index.
+     */
+    private void load() {
+        int pos = HEADER;
+        while (pos < _end) {
+            int length = _buf.getInt(pos);
+            if (length < 0 || pos + RECORD_HEADER + length > _end) {
+                // not written by this class; start over
+                reset();
+                return;
+            }
+            apply(_buf.get(pos + 4), _buf.getInt(pos + 5), _buf.getInt(pos + 9), pos + RECORD_HEADER);
+            pos += RECORD_HEADER + length;
+        }
+    }//end load
+
+    private Chat chat(int chatId) {
+        Chat chat = _chats.get(chatId);
+        if (chat == null) {
+            chat = new Chat(chatId);
+            _chats.put(chatId, chat);
+        }
+        return chat;
+    }
+
+    /**
+     * Applies one record to the index.
+     */
+    private void apply(byte type, int chatId, int msgId, int body) {
+        Chat chat = type == MESSAGE || type == SYNC ? chat(chatId) : _chats.get(chatId);
+        if (chat == null)
+            return;
+        Key key = chat.keys.get(msgId);
+        switch (type) {
+            case MESSAGE:
+                if (key != null)
+                    chat.messages.remove(key);
+                key = new Key(readString(body), msgId);
+                chat.messages.put(key, new int[]{body, skip(skip(body))});
+                chat.keys.put(msgId, key);
+                _byMsgId.put(msgId, chat);
+                break;
+            case EDIT:
+                if (key != null)
+                    chat.messages.get(key)[1] = body;
+                break;
+            case DELETE:
+                if (key != null) {
+                    chat.messages.remove(key);
+                    chat.keys.remove(msgId);
+                    _byMsgId.remove(msgId);
+                }
+                break;
+            case SYNC:
+                chat.syncedAt = readString(body);
+                chat.syncedMillis = _buf.getLong(skip(body));
+                break;
+            case COMPLETE:
+                chat.complete = true;
+                break;
+            case DROP:
+                for (Integer id : chat.keys.keySet())
+                    _byMsgId.remove(id);
+                _chats.remove(chatId);
+                break;
+        }
+    }//end apply
+
+    private String readString(int pos) {
+        int length = _buf.getInt(pos);
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        ByteBuffer in = _buf.duplicate();
+        in.position(pos + 4);
+        in.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * @return the position after the string at pos
+     */
+    private int skip(int pos) {
+        return pos + 4 + Math.max(_buf.getInt(pos), 0);
+    }
+
+    /**
+     * @return the most bytes a MESSAGE record of the row can take
+     */
+    private static int recordBytes(List<String> row) {
+        int bytes = RECORD_HEADER;
+        for (int i = 1; i < row.size(); ++i)
+            bytes += 4 + (row.get(i) == null ? 0 : 3 * row.get(i).length());
+        return bytes;
+    }
+
+    /**
+     * Rewrites the segment first if the given number of bytes would not
+     * fit.
+     */
+    private void reserve(int bytes) throws IOException {
+        if (_end + bytes > SEGMENT_BYTES)
+            compact();
+        if (_end + bytes > SEGMENT_BYTES)
+            throw new IOException("message cache is full");
+    }
+
+    /**
+     * Appends a record and applies it.
+     */
+    private void append(byte type, int chatId, int msgId, long millis, String... strings) throws IOException {
+        byte[][] bytes = new byte[strings.length][];
+        int length = type == SYNC ? 8 : 0;
+        for (int i = 0; i < strings.length; ++i) {
+            bytes[i] = strings[i] == null ? null : strings[i].getBytes(UTF8);
+            length += 4 + (bytes[i] == null ? 0 : bytes[i].length);
+        }
+        reserve(RECORD_HEADER + length);
+        int pos = _end;
+        _buf.putInt(pos, length);
+        _buf.put(pos + 4, type);
+        _buf.putInt(pos + 5, chatId);
+        _buf.putInt(pos + 9, msgId);
+        ByteBuffer out = _buf.duplicate();
+        out.position(pos + RECORD_HEADER);
+        for (byte[] b : bytes) {
+            out.putInt(b == null ? -1 : b.length);
+            if (b != null)
+                out.put(b);
+        }
+        if (type == SYNC)
+            out.putLong(millis);
+        _end = pos + RECORD_HEADER + length;
+        // the record counts once the header points past it
+        _buf.putInt(8, _end);
+        apply(type, chatId, msgId, pos + RECORD_HEADER);
+    }//end append
+
+    /**
+     * Rewrites the segment with the current state of the most recently
+     * synced chats, up to half its size. A chat that does not fit whole
+     * keeps its newest messages.
+     */
+    private void compact() throws IOException {
+        List<Chat> chats = new ArrayList<Chat>(_chats.values());
+        Collections.sort(chats, new Comparator<Chat>() {
+            public int compare(Chat a, Chat b) {
+                if (a.chatId == _opening || b.chatId == _opening)
+                    return a.chatId == _opening ? (b.chatId == _opening ? 0 : -1) : 1;
+                return a.syncedMillis > b.syncedMillis ? -1 : a.syncedMillis == b.syncedMillis ? 0 : 1;
+            }
+        });
+        File tmp = new File(_file.getPath() + ".tmp");
+        tmp.delete();
+        MessageCache copy = new MessageCache(tmp);
+        try {
+            for (int i = 0; i < chats.size() && i < MAX_CHATS; ++i) {
+                Chat chat = chats.get(i);
+                if (chat.syncedAt == null)
+                    continue;
+                boolean whole = true;
+                for (Map.Entry<Key, int[]> e : chat.messages.descendingMap().entrySet()) {
+                    if (copy._end >= SEGMENT_BYTES / 2) {
+                        whole = false;
+                        break;
+                    }
+                    int[] p = e.getValue();
+                    copy.append(MESSAGE, chat.chatId, e.getKey().msgId, 0,
+                            e.getKey().timestamp, readString(skip(p[0])), readString(p[1]));
+                }
+                if (whole && chat.complete)
+                    copy.append(COMPLETE, chat.chatId, 0, 0);
+                copy.append(SYNC, chat.chatId, 0, chat.syncedMillis, chat.syncedAt);
+                if (!whole)
+                    break;
+            }
+        } finally {
+            copy.close();
+        }
+        close();
+        if (!tmp.renameTo(_file))
+            throw new IOException("Cannot replace " + _file);
+        _chats.clear();
+        _byMsgId.clear();
+        map();
+        load();
+    }//end compact
+
+    /**
+     * Reads what changed in the chat since it was last synced, or starts
+     * caching it.
+     */
+    private void sync(Messenger esql, int chatId) throws SQLException, IOException {
+        Chat chat = _chats.get(chatId);
+        if (chat != null && System.currentTimeMillis() - chat.syncedMillis > STALE_MILLIS) {
+            append(DROP, chatId, 0, 0);
+            chat = null;
+        }
+        // messages from a minute before the newest one cached are read
+        // again, since one committed late can sort before it; those already
+        // cached are skipped
+        String newest = null;
+        if (chat != null && !chat.messages.isEmpty())
+            newest = chat.messages.lastKey().timestamp;
+        else if (chat != null && chat.complete)
+            newest = "-infinity";
+        HistoryCursor after = null;
+        int messages;
+        do {
+            List<List<String>> rows = esql.syncChat(chatId, newest, after, chat == null ? null : chat.syncedAt,
+                    newest == null ? 0 : SYNC_LIMIT);
+            messages = 0;
+            String syncedAt = null;
+            for (List<String> row : rows) {
+                char kind = row.get(0).charAt(0);
+                int msgId = Integer.parseInt(row.get(1).trim());
+                boolean cached = chat != null && chat.keys.containsKey(msgId);
+                if (kind == 'm') {
+                    if (!cached)
+                        append(MESSAGE, chatId, msgId, 0, row.get(2), row.get(3), row.get(4));
+                    after = new HistoryCursor(row.get(2), msgId);
+                    messages++;
+                } else if (kind == 'e' && cached) {
+                    if (row.get(4) == null)
+                        append(DELETE, chatId, msgId, 0);
+                    else
+                        append(EDIT, chatId, msgId, 0, row.get(4));
+                } else if (kind == 'd' && cached) {
+                    append(DELETE, chatId, msgId, 0);
+                } else if (kind == 's') {
+                    syncedAt = row.get(2);
+                }
+                chat = _chats.get(chatId);
+            }
+            append(SYNC, chatId, 0, System.currentTimeMillis(), syncedAt);
+            chat = _chats.get(chatId);
+        } while (messages == SYNC_LIMIT);
+    }//end sync
+
+    private List<String> row(Map.Entry<Key, int[]> e) {
+        int[] p = e.getValue();
+        List<String> row = new ArrayList<String>(4);
+        row.add(Integer.toString(e.getKey().msgId));
+        row.add(e.getKey().timestamp);
+        row.add(readString(skip(p[0])));
+        row.add(readString(p[1]));
+        return row;
+    }
+
+    /**
+     * Returns one page of a chat's history like Messenger.pageHistory,
+     * from the cache as far as it goes. The first page syncs the chat.
+     *
+     * @param before the position after the last row already seen, or null
+     *               for the newest page
+     * @return rows of (msg_id, msg_timestamp, sender_login, msg_text),
+     *         newest first
+     */
+    public List<List<String>> page(Messenger esql, int chatId, HistoryCursor before, int pageSize)
+            throws SQLException, IOException {
+        _opening = chatId;
+        try {
+            if (before == null)
+                sync(esql, chatId);
+            Chat chat = _chats.get(chatId);
+            if (chat == null)
+                return esql.pageHistory(chatId, before, pageSize);
+            NavigableMap<Key, int[]> older = before == null ? chat.messages.descendingMap()
+                    : chat.messages.headMap(new Key(before.getMsgTimestamp(), before.getMsgId()), false).descendingMap();
+            List<List<String>> page = new ArrayList<List<String>>(pageSize);
+            for (Map.Entry<Key, int[]> e : older.entrySet()) {
+                if (page.size() == pageSize)
+                    return page;
+                page.add(row(e));
+            }
+            if (chat.complete)
+                return page;
+
+            // the cache runs out here; read on from the server
+            HistoryCursor from = page.isEmpty() ? before : HistoryCursor.after(page.get(page.size() - 1));
+            int missing = pageSize - page.size();
+            List<List<String>> rest = esql.pageHistory(chatId, from, missing);
+            int bytes = RECORD_HEADER;
+            for (List<String> row : rest)
+                bytes += recordBytes(row);
+            reserve(bytes);
+            // keep the rows only if they continue the cached history
+            chat = _chats.get(chatId);
+            boolean continues = chat != null && (chat.messages.isEmpty() ? from == null
+                    : from != null && chat.messages.firstKey().equals(new Key(from.getMsgTimestamp(), from.getMsgId())));
+            if (continues) {
+                for (List<String> row : rest)
+                    append(MESSAGE, chatId, Integer.parseInt(row.get(0).trim()), 0, row.get(1), row.get(2), row.get(3));
+                if (rest.size() < missing)
+                    append(COMPLETE, chatId, 0, 0);
+            }
+            page.addAll(rest);
+            return page;
+        } finally {
+            _opening = -1;
+        }
+    }//end page
+
+    /**
+     * Records an edit this client made.
+     */
+    public void edited(int msgId, String text) throws IOException {
+        Chat chat = _byMsgId.get(msgId);
+        if (chat != null)
+            append(EDIT, chat.chatId, msgId, 0, text);
+    }
+
+    /**
+     * Records a deletion this client made.
+     */
+    public void deleted(int msgId) throws IOException {
+        Chat chat = _byMsgId.get(msgId);
+        if (chat != null)
+            append(DELETE, chat.chatId, msgId, 0);
+    }
+
+    public void close() throws IOException {
+        _buf.force();
+        _lock.release();
+        _raf.close();
+    }
+}//end MessageCache
@@ -0,0 +1,295 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind stage for new messages. Senders put their message on a
+ * bounded queue; flusher threads take whatever has queued up and insert it
+ * as one batch in one transaction, so a burst of sends pays for one commit
+ * (one WAL flush) instead of one each. A sender is acknowledged once the
+ * batch holding its message has committed, so an acknowledged message is
+ * as durable as one sent directly.
+ *
+ * A flusher sends a batch once it holds maxBatch messages or its first
+ * message has waited maxDelayMillis. While a commit is in flight the next
+ * batch keeps filling, so batches grow with the load on their own and a
+ * small delay is enough.
+ *
+ * When the queue is full, submit waits up to OFFER_TIMEOUT_MILLIS for room
+ * and then fails, so a database that falls behind slows the senders down
+ * instead of the queue growing without bound.
+ *
+ * With shards (see ShardRouter), a batch is committed in one transaction
+ * per shard it touches.
+ *
+ * Each INSERT locks rows of its chat as it goes (CHAT_SUMMARY and the
+ * unread counts in CHAT_LIST, see create_triggers.sql), so a batch is sent
+ * in chat_id order: two flushers then lock the chats they share in the same
+ * order and cannot deadlock. The sort is stable, so the messages of one
+ * chat keep the order they were sent in.
+ *
+ * A batch that is rejected as a whole (for instance because one sender is
+ * blocked, see create_triggers.sql) is retried one message at a time, so
+ * only the offending message fails.
+ */
+public class MessageIngestor {
+
+    static final int DEFAULT_CAPACITY = 10000;
+    static final int DEFAULT_MAX_BATCH = 200;
+    static final long DEFAULT_MAX_DELAY_MILLIS = 2;
+
+    private static final long OFFER_TIMEOUT_MILLIS = 1000;
+
+    // how often an idle flusher checks whether it should stop
+    private static final long IDLE_POLL_MILLIS = 100;
+
+    // the order a batch is sent in
+    private static final Comparator<Ack> BY_CHAT = new Comparator<Ack>() {
+        public int compare(Ack a, Ack b) {
+            return ((Integer) a.row[2]).compareTo((Integer) b.row[2]);
+        }
+    };
+
+    /**
+     * A queued message. await() returns once it is stored.
+     */
+    public static class Ack {
+        private final Object[] row;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile SQLException error = null;
+
+        Ack(Object[] row) {
+            this.row = row;
+        }
+
+        void complete(SQLException error) {
+            this.error = error;
+            done.countDown();
+        }
+
+        /**
+         * Waits until the batch holding the message has committed.
+         *
+         * @throws java.sql.SQLException when the message was not stored
+         */
+        public void await() throws SQLException {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("interrupted while the message was being stored");
+            }
+            if (error != null)
+                throw error;
+        }
+    }//end Ack
+
+    private final MessengerService _service;
+    private final BlockingQueue<Ack> _queue;
+    private final int _maxBatch;
+    private final long _maxDelayMillis;
+    private final List<Thread> _flushers = new ArrayList<Thread>();
+    private volatile boolean _running = true;
+
+    private final AtomicLong _batches = new AtomicLong();
+    private final AtomicLong _messages = new AtomicLong();
+
+    public MessageIngestor(MessengerService service) {
+        this(service, DEFAULT_CAPACITY, DEFAULT_MAX_BATCH, DEFAULT_MAX_DELAY_MILLIS);
+    }
+
+    /**
+     * @param capacity the number of messages that may wait for a flusher
+     * @param maxBatch the largest number of messages committed together
+     * @param maxDelayMillis how long a batch waits for more messages
+     */
+    public MessageIngestor(MessengerService service, int capacity, int maxBatch, long maxDelayMillis) {
+        this._service = service;
+        this._queue = new ArrayBlockingQueue<Ack>(capacity);
+        this._maxBatch = maxBatch;
+        this._maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Starts the flusher threads. Each one holds a pooled connection only
+     * while it commits a batch.
+     */
+    public synchronized void start(int flushers) {
+        for (int i = 0; i < flushers; ++i) {
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    flushLoop();
+                }
+            }, "message-ingestor-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            _flushers.add(thread);
+        }
+    }
+
+    /**
+     * Queues a message, waiting for room if the queue is full.
+     *
+     * @return the acknowledgement to wait on
+     * @throws java.sql.SQLException when the queue stayed full or the
+     *         ingestor is closed
+     */
+    public Ack submit(int chatId, String sender, String text) throws SQLException {
+        if (!_running)
+            throw new SQLException("message ingestion is stopped");
+        Ack ack = new Ack(new Object[]{text, sender, chatId});
+        try {
+            if (!_queue.offer(ack, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS))
+                throw new SQLException("too many messages waiting to be stored, try again later");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted while queueing the message");
+        }
+        return ack;
+    }//end submit
+
+    /**
+     * Sends a message and waits until it is stored.
+     */
+    public void send(int chatId, String sender, String text) throws SQLException {
+        submit(chatId, sender, text).await();
+    }
+
+    private void flushLoop() {
+        List<Ack> batch = new ArrayList<Ack>(_maxBatch);
+        try {
+            while (true) {
+                Ack first = _queue.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (!_running)
+                        break;
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + _maxDelayMillis * 1000000L;
+                while (batch.size() < _maxBatch) {
+                    // take what is already queued before waiting for more
+                    if (_queue.drainTo(batch, _maxBatch - batch.size()) > 0)
+                        continue;
+                    long wait = deadline - System.nanoTime();
+                    Ack next = wait > 0 ? _queue.poll(wait, TimeUnit.NANOSECONDS) : null;
+                    if (next == null)
+                        break;
+                    batch.add(next);
+                }
+                flush(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            for (Ack ack : batch)
+                ack.complete(new SQLException("message ingestion was interrupted"));
+        }
+    }//end flushLoop
+
+    /**
+     * Commits one batch, one transaction per shard, and acknowledges its
+     * messages.
+     */
+    private void flush(List<Ack> batch) {
+        Map<Integer, List<Ack>> shards = new LinkedHashMap<Integer, List<Ack>>();
+        for (Ack ack : batch) {
+            int shard;
+            try {
+                shard = _service.shardOf((Integer) ack.row[2]);
+            } catch (SQLException e) {
+                ack.complete(e);
+                continue;
+            }
+            List<Ack> group = shards.get(shard);
+            if (group == null) {
+                group = new ArrayList<Ack>();
+                shards.put(shard, group);
+            }
+            group.add(ack);
+        }
+        for (List<Ack> group : shards.values())
+            commit(group);
+    }//end flush
+
+    /**
+     * Commits the messages of one shard and acknowledges them.
+     */
+    private void commit(List<Ack> batch) {
+        Collections.sort(batch, BY_CHAT);
+        List<Object[]> rows = new ArrayList<Object[]>(batch.size());
+        for (Ack ack : batch)
+            rows.add(ack.row);
+        try {
+            _service.sendMessages(rows);
+            _batches.incrementAndGet();
+            _messages.addAndGet(batch.size());
+            for (Ack ack : batch)
+                ack.complete(null);
+            return;
+        } catch (SQLException e) {
+            if (batch.size() == 1) {
+                batch.get(0).complete(e);
+                return;
+            }
+        }
+        // find the messages that failed the batch
+        for (Ack ack : batch) {
+            try {
+                _service.sendMessage((Integer) ack.row[2], (String) ack.row[1], (String) ack.row[0]);
+                _batches.incrementAndGet();
+                _messages.incrementAndGet();
+                ack.complete(null);
+            } catch (SQLException e) {
+                ack.complete(e);
+            }
+        }
+    }//end commit
+
+    /**
+     * @return the number of batches committed so far
+     */
+    public long batches() {
+        return _batches.get();
+    }
+
+    /**
+     * @return the number of messages stored so far
+     */
+    public long messages() {
+        return _messages.get();
+    }
+
+    /**
+     * Stops accepting messages, stores the ones already queued and stops
+     * the flushers.
+     */
+    public void close() {
+        _running = false;
+        List<Thread> flushers;
+        synchronized (this) {
+            flushers = new ArrayList<Thread>(_flushers);
+        }
+        for (Thread thread : flushers) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        // queued by a sender that saw the ingestor still running
+        List<Ack> late = new ArrayList<Ack>();
+        _queue.drainTo(late);
+        for (Ack ack : late)
+            ack.complete(new SQLException("message ingestion is stopped"));
+    }//end close
+}//end MessageIngestor
@@ -0,0 +1,144 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Delivers new-message notifications to every interested session in the
+ * JVM over one dedicated connection. Sessions subscribe to a chat; the
+ * listener LISTENs on the chat's channel while it has subscribers and calls
+ * them back when a message arrives, so no session has to poll the message
+ * history.
+ *
+ * The driver only reads notifications while it runs a statement, so the
+ * listener thread makes one trivial round trip every pollMillis. That is
+ * the delivery latency, and it is the same single query however many
+ * sessions and chats are subscribed.
+ */
+public class MessageListener implements Runnable {
+
+    /**
+     * Called on the listener thread; must return quickly.
+     */
+    public interface Subscriber {
+        void messagesArrived(int chatId);
+    }
+
+    private final Messenger _esql;
+    private final long _pollMillis;
+    private final Map<Integer, List<Subscriber>> _subscribers = new HashMap<Integer, List<Subscriber>>();
+
+    // channels to LISTEN on / UNLISTEN from on the next poll
+    private final Set<Integer> _toListen = new LinkedHashSet<Integer>();
+    private final Set<Integer> _toUnlisten = new LinkedHashSet<Integer>();
+
+    private volatile boolean _running = true;
+    private Thread _thread;
+
+    /**
+     * @param esql the connection to listen on, used by nothing else
+     */
+    public MessageListener(Messenger esql, long pollMillis) {
+        this._esql = esql;
+        this._pollMillis = pollMillis;
+    }
+
+    public synchronized void start() {
+        _thread = new Thread(this, "message-listener");
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    public synchronized void subscribe(int chatId, Subscriber subscriber) {
+        List<Subscriber> list = _subscribers.get(chatId);
+        if (list == null) {
+            list = new ArrayList<Subscriber>();
+            _subscribers.put(chatId, list);
+            if (!_toUnlisten.remove(chatId))
+                _toListen.add(chatId);
+        }
+        list.add(subscriber);
+    }
+
+    public synchronized void unsubscribe(int chatId, Subscriber subscriber) {
+        List<Subscriber> list = _subscribers.get(chatId);
+        if (list == null || !list.remove(subscriber) || !list.isEmpty())
+            return;
+        _subscribers.remove(chatId);
+        if (!_toListen.remove(chatId))
+            _toUnlisten.add(chatId);
+    }
+
+    public void run() {
+        while (_running) {
+            try {
+                List<Integer> listen, unlisten;
+                synchronized (this) {
+                    listen = new ArrayList<Integer>(_toListen);
+                    unlisten = new ArrayList<Integer>(_toUnlisten);
+                    _toListen.clear();
+                    _toUnlisten.clear();
+                }
+                for (int chatId : listen)
+                    _esql.listen(chatId);
+                for (int chatId : unlisten)
+                    _esql.unlisten(chatId);
+
+                // a chat announced several times in one poll is delivered once
+                Set<Integer> chats = new LinkedHashSet<Integer>();
+                for (int chatId : _esql.pollNotifications())
+                    chats.add(chatId);
+                for (int chatId : chats) {
+                    List<Subscriber> targets;
+                    synchronized (this) {
+                        List<Subscriber> list = _subscribers.get(chatId);
+                        targets = list == null ? null : new ArrayList<Subscriber>(list);
+                    }
+                    if (targets != null)
+                        for (Subscriber subscriber : targets)
+                            subscriber.messagesArrived(chatId);
+                }
+                Thread.sleep(_pollMillis);
+            } catch (InterruptedException e) {
+                break;
+            } catch (SQLException e) {
+                System.err.println("Message listener: " + e.getMessage());
+                resubscribeAll();
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+        }
+    }//end run
+
+    /**
+     * After an error the LISTENs in effect are unknown; issue them all
+     * again on the next poll.
+     */
+    private synchronized void resubscribeAll() {
+        _toUnlisten.clear();
+        _toListen.addAll(_subscribers.keySet());
+    }
+
+    public void close() {
+        _running = false;
+        Thread thread;
+        synchronized (this) {
+            thread = _thread;
+        }
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                // ignored.
+            }
+        }
+        _esql.cleanup();
+    }
+}//end MessageListener
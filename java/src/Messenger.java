@@ -14,6 +14,7 @@
 import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -21,10 +22,18 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.IOException;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
 import java.util.TimeZone;
 import java.util.concurrent.TimeUnit;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -36,11 +45,38 @@ public class Messenger {
     // reference to physical database connection.
     private Connection _connection = null;
 
+    // prepared statements for this connection, keyed by operation.
+    private StatementCache _statements = null;
+
+    // chat membership, ownership and contact/block lists, shared in the JVM.
+    private MembershipCache _cache = MembershipCache.SHARED;
+
+    // latency, rows and errors per operation and the slow-query log, shared
+    // in the JVM.
+    private OperationMetrics _metrics = OperationMetrics.SHARED;
+
+    // number of messages fetched per "load more" in the history view.
+    static final int HISTORY_PAGE_SIZE = 10;
+
+    // how often the live view of a chat checks for notifications.
+    static final long LISTEN_POLL_MILLIS = 50;
+
+    // rows printed before the output waits for the user at a terminal.
+    static final int PRINT_PAGE_ROWS = 40;
+
     // handling the keyboard inputs through a BufferedReader
     // This variable can be global for convenience.
     static BufferedReader in = new BufferedReader(
             new InputStreamReader(System.in));
 
+    // the logged in user's copy of recently viewed chats, or null to read
+    // history from the server only.
+    static MessageCache cache = null;
+
+    // prints query results; only the interactive menu pages them (see
+    // setPrinter).
+    private ResultPrinter _printer = new ResultPrinter();
+
     /**
      * Creates a new instance of Messenger
      *
@@ -60,6 +96,7 @@ public class Messenger {
 
             // obtain a physical connection
             this._connection = DriverManager.getConnection(url, user, passwd);
+            this._statements = new StatementCache(this._connection);
             System.out.println("Done");
         }catch (Exception e){
             System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -68,6 +105,34 @@ public class Messenger {
         }//end catch
     }//end Messenger
 
+    /**
+     * Creates a Messenger on an already open connection. Used by
+     * ConnectionPool, which owns the connections it hands out.
+     *
+     * @param connection an open database connection
+     */
+    public Messenger (Connection connection) {
+        this._connection = connection;
+        this._statements = new StatementCache(connection);
+    }//end Messenger
+
+    /**
+     * @return the physical connection this instance runs on
+     */
+    public Connection getConnection() {
+        return this._connection;
+    }
+
+    /**
+     * Replaces the printer of query results, e.g. with one that pages at a
+     * terminal. Results are printed without paging by default.
+     *
+     * @param printer the printer used by executeQueryAndPrintResult
+     */
+    public void setPrinter(ResultPrinter printer) {
+        this._printer = printer;
+    }
+
     /**
      * Method to execute an update SQL statement.  Update SQL instructions
      * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
@@ -80,19 +145,25 @@ public class Messenger {
         Statement stmt = this._connection.createStatement ();
 
         // issues the update instruction
-        stmt.executeUpdate (sql);
-
-        // close the instruction
-        stmt.close ();
+        long start = System.nanoTime();
+        try {
+            this._metrics.recordSql(sql, start, stmt.executeUpdate (sql));
+        } catch (SQLException e) {
+            this._metrics.errorSql(sql, start, e);
+            throw e;
+        } finally {
+            // close the instruction
+            stmt.close ();
+        }
     }//end executeUpdate
 
     /**
      * Method to execute an input query SQL instruction (i.e. SELECT).  This
      * method issues the query to the DBMS and outputs the results to
-     * standard out.
+     * standard out through the printer (see setPrinter).
      *
      * @param query the input query string
-     * @return the number of rows returned
+     * @return the number of rows printed
      * @throws java.sql.SQLException when failed to execute the query
      */
     public int executeQueryAndPrintResult (String query) throws SQLException {
@@ -100,33 +171,18 @@ public class Messenger {
         Statement stmt = this._connection.createStatement ();
 
         // issues the query instruction
-        ResultSet rs = stmt.executeQuery (query);
-
-        /*
-         ** obtains the metadata object for the returned result set.  The metadata
-         ** contains row and column info.
-         */
-        ResultSetMetaData rsmd = rs.getMetaData ();
-        int numCol = rsmd.getColumnCount ();
-        int rowCount = 0;
-
-        // iterates through the result set and output them to standard out.
-        boolean outputHeader = true;
-        while (rs.next()){
-            if(outputHeader){
-                for(int i = 1; i <= numCol; i++){
-                    System.out.print(rsmd.getColumnName(i) + "\t");
-                }
-                System.out.println();
-                outputHeader = false;
-            }
-            for (int i=1; i<=numCol; ++i)
-                System.out.print (rs.getString (i) + "\t");
-            System.out.println ();
-            ++rowCount;
-        }//end while
-        stmt.close ();
-        return rowCount;
+        long start = System.nanoTime();
+        try {
+            ResultSet rs = stmt.executeQuery (query);
+            int rowCount = this._printer.print(rs);
+            this._metrics.recordSql(query, start, rowCount);
+            return rowCount;
+        } catch (SQLException e) {
+            this._metrics.errorSql(query, start, e);
+            throw e;
+        } finally {
+            stmt.close ();
+        }
     }//end executeQuery
 
     /**
@@ -143,27 +199,18 @@ public class Messenger {
         Statement stmt = this._connection.createStatement (); 
 
         // issues the query instruction 
-        ResultSet rs = stmt.executeQuery (query); 
-
-        /* 
-         ** obtains the metadata object for the returned result set.  The metadata 
-         ** contains row and column info. 
-         */ 
-        ResultSetMetaData rsmd = rs.getMetaData (); 
-        int numCol = rsmd.getColumnCount (); 
-        int rowCount = 0; 
-
-        // iterates through the result set and saves the data returned by the query. 
-        boolean outputHeader = false;
-        List<List<String>> result  = new ArrayList<List<String>>(); 
-        while (rs.next()){
-            List<String> record = new ArrayList<String>(); 
-            for (int i=1; i<=numCol; ++i) 
-                record.add(rs.getString (i)); 
-            result.add(record); 
-        }//end while 
-        stmt.close (); 
-        return result; 
+        long start = System.nanoTime();
+        try {
+            ResultSet rs = stmt.executeQuery (query); 
+            List<List<String>> result = collectResult(rs);
+            this._metrics.recordSql(query, start, result.size());
+            return result; 
+        } catch (SQLException e) {
+            this._metrics.errorSql(query, start, e);
+            throw e;
+        } finally {
+            stmt.close (); 
+        }
     }//end executeQueryAndReturnResult
 
     /**
@@ -179,16 +226,988 @@ public class Messenger {
         Statement stmt = this._connection.createStatement ();
 
         // issues the query instruction
-        ResultSet rs = stmt.executeQuery (query);
+        long start = System.nanoTime();
+        try {
+            ResultSet rs = stmt.executeQuery (query);
 
-        int rowCount = 0;
+            int rowCount = 0;
+
+            // iterates through the result set and count nuber of results.
+            if(rs.next()){
+                rowCount++;
+            }//end while
+            this._metrics.recordSql(query, start, rowCount);
+            return rowCount;
+        } catch (SQLException e) {
+            this._metrics.errorSql(query, start, e);
+            throw e;
+        } finally {
+            stmt.close ();
+        }
+    }
+
+    /**
+     * Outputs records to standard out in the same layout as the query
+     * results (see ResultPrinter).
+     *
+     * @param header the column names, or null to print the rows only
+     * @param rows the records to print
+     */
+    public static void printRecords (List<String> header, List<List<String>> rows) {
+        new ResultPrinter().print(header, rows);
+    }//end printRecords
+
+    /**
+     * Saves the rows of a result set as a list of records. Each record in
+     * turn is a list of attribute values.
+     *
+     * @param rs the result set to read
+     * @return the rows as a list of records
+     * @throws java.sql.SQLException when failed to read the result set
+     */
+    private static List<List<String>> collectResult (ResultSet rs) throws SQLException {
+        ResultSetMetaData rsmd = rs.getMetaData ();
+        int numCol = rsmd.getColumnCount ();
 
-        // iterates through the result set and count nuber of results.
-        if(rs.next()){
-            rowCount++;
+        // iterates through the result set and saves the data returned by the query.
+        List<List<String>> result  = new ArrayList<List<String>>();
+        while (rs.next()){
+            List<String> record = new ArrayList<String>();
+            for (int i=1; i<=numCol; ++i)
+                record.add(rs.getString (i));
+            result.add(record);
         }//end while
-        stmt.close ();
+        return result;
+    }//end collectResult
+
+    /**
+     * Binds the given values to the parameters of a prepared statement in
+     * order. Integers are bound as integers, everything else as strings.
+     */
+    private static void bind(PreparedStatement stmt, Object... params) throws SQLException {
+        for (int i = 0; i < params.length; ++i) {
+            Object p = params[i];
+            if (p instanceof Integer)
+                stmt.setInt(i + 1, (Integer) p);
+            else if (p == null)
+                stmt.setNull(i + 1, java.sql.Types.VARCHAR);
+            else
+                stmt.setString(i + 1, p.toString());
+        }
+    }
+
+    /**
+     * Method to execute a cached update statement (INSERT, UPDATE, DELETE)
+     * for the given operation with bound parameters.
+     *
+     * @param query the operation to run
+     * @param params the values for the statement parameters, in order
+     * @return the number of rows affected
+     * @throws java.sql.SQLException when update failed
+     */
+    public int executeUpdate (Query query, Object... params) throws SQLException {
+        PreparedStatement stmt = this._statements.get(query);
+        bind(stmt, params);
+        long start = System.nanoTime();
+        try {
+            int rows = stmt.executeUpdate ();
+            this._statements.record(query, System.nanoTime() - start);
+            this._metrics.record(query.opName(), start, rows, params);
+            return rows;
+        } catch (SQLException e) {
+            this._metrics.error(query.opName(), start, params, e);
+            throw e;
+        }
+    }//end executeUpdate
+
+    /**
+     * Method to execute a cached query for the given operation and print the
+     * results to standard out through the printer (see setPrinter).
+     *
+     * @param query the operation to run
+     * @param params the values for the statement parameters, in order
+     * @return the number of rows printed
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public int executeQueryAndPrintResult (Query query, Object... params) throws SQLException {
+        PreparedStatement stmt = this._statements.get(query);
+        bind(stmt, params);
+        long start = System.nanoTime();
+        try {
+            ResultSet rs = stmt.executeQuery ();
+            this._statements.record(query, System.nanoTime() - start);
+            try {
+                int rowCount = this._printer.print(rs);
+                this._metrics.record(query.opName(), start, rowCount, params);
+                return rowCount;
+            } finally {
+                rs.close();
+            }
+        } catch (SQLException e) {
+            this._metrics.error(query.opName(), start, params, e);
+            throw e;
+        }
+    }//end executeQueryAndPrintResult
+
+    /**
+     * Method to execute a cached query for the given operation and return
+     * the results as a list of records.
+     *
+     * @param query the operation to run
+     * @param params the values for the statement parameters, in order
+     * @return the query result as a list of records
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public List<List<String>> executeQueryAndReturnResult (Query query, Object... params) throws SQLException {
+        PreparedStatement stmt = this._statements.get(query);
+        bind(stmt, params);
+        long start = System.nanoTime();
+        try {
+            ResultSet rs = stmt.executeQuery ();
+            this._statements.record(query, System.nanoTime() - start);
+            try {
+                List<List<String>> result = collectResult(rs);
+                this._metrics.record(query.opName(), start, result.size(), params);
+                return result;
+            } finally {
+                rs.close();
+            }
+        } catch (SQLException e) {
+            this._metrics.error(query.opName(), start, params, e);
+            throw e;
+        }
+    }//end executeQueryAndReturnResult
+
+    /**
+     * Method to execute a cached statement for the given operation once
+     * per parameter row, sent to the DBMS as a single batch.
+     *
+     * @param query the operation to run
+     * @param rows the parameter values for each execution
+     * @return the number of rows affected by each execution
+     * @throws java.sql.SQLException when the batch failed
+     */
+    public int[] executeBatch (Query query, List<Object[]> rows) throws SQLException {
+        PreparedStatement stmt = this._statements.get(query);
+        for (Object[] row : rows){
+            bind(stmt, row);
+            stmt.addBatch();
+        }
+        long start = System.nanoTime();
+        try {
+            int[] counts = stmt.executeBatch ();
+            int total = 0;
+            for (int count : counts)
+                total += Math.max(count, 0);
+            this._metrics.record(query.opName(), start, total, null);
+            return counts;
+        } catch (SQLException e) {
+            this._metrics.error(query.opName(), start, null, e);
+            throw e;
+        } finally {
+            stmt.clearBatch();
+            this._statements.record(query, System.nanoTime() - start);
+        }
+    }//end executeBatch
+
+    /**
+     * Method to execute a cached query for the given operation that returns
+     * a single integer, such as the key generated by INSERT ... RETURNING.
+     *
+     * @param query the operation to run
+     * @param params the values for the statement parameters, in order
+     * @return the first column of the first row, or -1 if there are no rows
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public int executeQueryForInt (Query query, Object... params) throws SQLException {
+        PreparedStatement stmt = this._statements.get(query);
+        bind(stmt, params);
+        long start = System.nanoTime();
+        try {
+            ResultSet rs = stmt.executeQuery ();
+            this._statements.record(query, System.nanoTime() - start);
+            try {
+                boolean found = rs.next();
+                int value = found ? rs.getInt(1) : -1;
+                this._metrics.record(query.opName(), start, found ? 1 : 0, params);
+                return value;
+            } finally {
+                rs.close();
+            }
+        } catch (SQLException e) {
+            this._metrics.error(query.opName(), start, params, e);
+            throw e;
+        }
+    }//end executeQueryForInt
+
+    /**
+     * Method to execute a cached query for the given operation and return
+     * whether it produced any rows (1) or not (0).
+     *
+     * @param query the operation to run
+     * @param params the values for the statement parameters, in order
+     * @return the number of rows returned, at most 1
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public int executeQuery (Query query, Object... params) throws SQLException {
+        return exists(query, params) ? 1 : 0;
+    }//end executeQuery
+
+    /**
+     * Method to check whether a cached query for the given operation
+     * returns any row. The server is asked for at most one row.
+     *
+     * @param query the operation to run
+     * @param params the values for the statement parameters, in order
+     * @return true if there is at least one row
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public boolean exists (Query query, Object... params) throws SQLException {
+        PreparedStatement stmt = this._statements.get(query);
+        bind(stmt, params);
+        stmt.setMaxRows(1);
+        long start = System.nanoTime();
+        try {
+            ResultSet rs = stmt.executeQuery ();
+            this._statements.record(query, System.nanoTime() - start);
+            try {
+                boolean found = rs.next();
+                this._metrics.record(query.opName(), start, found ? 1 : 0, params);
+                return found;
+            } finally {
+                rs.close();
+            }
+        } catch (SQLException e) {
+            this._metrics.error(query.opName(), start, params, e);
+            throw e;
+        } finally {
+            stmt.setMaxRows(0);
+        }
+    }//end exists
+
+    /**
+     * Method to execute a cached query for the given operation and hand
+     * each row to the handler as it is read, without materializing the
+     * result as strings. The bundled driver reads the whole result before
+     * the first row is handed over; it has no fetch size.
+     *
+     * @param query the operation to run
+     * @param handler receives each row; returning false stops the read
+     * @param params the values for the statement parameters, in order
+     * @return the number of rows handled
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public int forEachRow (Query query, RowHandler handler, Object... params) throws SQLException {
+        PreparedStatement stmt = this._statements.get(query);
+        bind(stmt, params);
+        long start = System.nanoTime();
+        int rowCount = 0;
+        try {
+            ResultSet rs = stmt.executeQuery ();
+            this._statements.record(query, System.nanoTime() - start);
+            try {
+                ResultRow row = new ResultRow(rs);
+                while (rs.next()){
+                    ++rowCount;
+                    if (!handler.row(row))
+                        break;
+                }
+            } finally {
+                rs.close();
+            }
+        } catch (SQLException e) {
+            this._metrics.error(query.opName(), start, params, e);
+            throw e;
+        }
+        // includes the time the handler took
+        this._metrics.record(query.opName(), start, rowCount, params);
         return rowCount;
+    }//end forEachRow
+
+    /**
+     * Method to execute a cached query for the given operation and return
+     * the result column by column, with integer columns as primitives and
+     * char(n) padding trimmed.
+     *
+     * @param query the operation to run
+     * @param params the values for the statement parameters, in order
+     * @return the query result
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public ColumnarResult executeQueryColumnar (Query query, Object... params) throws SQLException {
+        PreparedStatement stmt = this._statements.get(query);
+        bind(stmt, params);
+        long start = System.nanoTime();
+        try {
+            ResultSet rs = stmt.executeQuery ();
+            this._statements.record(query, System.nanoTime() - start);
+            try {
+                ColumnarResult result = ColumnarResult.read(rs);
+                this._metrics.record(query.opName(), start, result.rowCount(), params);
+                return result;
+            } finally {
+                rs.close();
+            }
+        } catch (SQLException e) {
+            this._metrics.error(query.opName(), start, params, e);
+            throw e;
+        }
+    }//end executeQueryColumnar
+
+    /**
+     * Method to fetch one page of a chat's history, newest first. The page
+     * starts right after the cursor (or at the newest message when the
+     * cursor is null), so every page costs the same regardless of how far
+     * back it is. A page that MESSAGE cannot fill is completed from the
+     * archived partitions, so paging runs on into archived history.
+     *
+     * @param chatId the chat to read
+     * @param before the position after the last row already seen, or null
+     * @param pageSize the maximum number of messages to return
+     * @return rows of (msg_id, msg_timestamp, sender_login, msg_text)
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public List<List<String>> pageHistory (int chatId, HistoryCursor before, int pageSize) throws SQLException {
+        List<List<String>> page = before == null
+                ? executeQueryColumnar(Query.PAGE_MESSAGES_LATEST, chatId, pageSize).asRecords()
+                : executeQueryColumnar(Query.PAGE_MESSAGES_BEFORE,
+                        chatId, before.getMsgTimestamp(), before.getMsgId(), pageSize).asRecords();
+        if (page.size() == pageSize)
+            return page;
+
+        // archived messages are all older than the live ones
+        HistoryCursor from = page.isEmpty() ? before : HistoryCursor.after(page.get(page.size() - 1));
+        int missing = pageSize - page.size();
+        List<List<String>> archived = from == null
+                ? executeQueryColumnar(Query.PAGE_ARCHIVE_LATEST, chatId, missing).asRecords()
+                : executeQueryColumnar(Query.PAGE_ARCHIVE_BEFORE,
+                        chatId, from.getMsgTimestamp(), from.getMsgId(), missing).asRecords();
+        if (archived.isEmpty())
+            return page;
+        List<List<String>> combined = new ArrayList<List<String>>(page);
+        combined.addAll(archived);
+        return combined;
+    }//end pageHistory
+
+    /**
+     * Method to fetch the messages of a chat the tail has not returned yet,
+     * oldest first, and move the tail past them. Used to show new messages
+     * after a notification.
+     *
+     * Messages committed late can carry an earlier timestamp than ones
+     * already seen, so the last minute before the newest message seen is
+     * read again, pageSize rows per round trip, and the messages seen
+     * before are left out (see TailCursor).
+     *
+     * @param chatId the chat to read
+     * @param tail the messages already seen; moved past the new ones
+     * @param pageSize the number of rows read per round trip
+     * @return rows of (msg_id, msg_timestamp, sender_login, msg_text)
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public List<List<String>> tailMessages (int chatId, TailCursor tail, int pageSize) throws SQLException {
+        List<List<String>> fresh = new ArrayList<List<String>>();
+        Set<Integer> window = new HashSet<Integer>();
+        HistoryCursor page = new HistoryCursor("-infinity", 0);
+        List<String> last = null;
+        List<List<String>> rows;
+        do {
+            rows = executeQueryColumnar(Query.TAIL_MESSAGES, chatId, tail.getNewest(),
+                    page.getMsgTimestamp(), page.getMsgId(), pageSize).asRecords();
+            for (List<String> row : rows) {
+                int msgId = Integer.parseInt(row.get(0).trim());
+                window.add(msgId);
+                if (!tail.seen(msgId))
+                    fresh.add(row);
+            }
+            if (!rows.isEmpty()) {
+                last = rows.get(rows.size() - 1);
+                page = HistoryCursor.after(last);
+            }
+        } while (rows.size() == pageSize);
+        tail.advance(window, last);
+        return fresh;
+    }//end tailMessages
+
+    /**
+     * Method to fetch what changed in a chat since a client cached it (see
+     * MessageCache), in one round trip.
+     *
+     * Messages committed late can carry an earlier timestamp than ones
+     * already cached, so the messages from a minute before the newest one
+     * cached are read again; the caller skips those it has.
+     *
+     * @param chatId the chat to read
+     * @param newest the timestamp of the newest message cached, or null for
+     *               no messages
+     * @param after the last message read by the previous call of this sync,
+     *              or null for the first call
+     * @param since the time of the last sync as returned by this method, or
+     *              null for no changes
+     * @param limit the maximum number of messages to return
+     * @return rows of (kind, msg_id, msg_timestamp, sender_login, msg_text):
+     *         'm' for a message, 'e' for an edit with the current text
+     *         (null if the message is gone since), 'd' for a deletion and
+     *         one 's' row with the time of this sync in msg_timestamp
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public List<List<String>> syncChat (int chatId, String newest, HistoryCursor after, String since, int limit) throws SQLException {
+        if (after == null)
+            after = new HistoryCursor("-infinity", 0);
+        return executeQueryColumnar(Query.SYNC_CHAT, chatId, newest == null ? "infinity" : newest, after.getMsgTimestamp(),
+                after.getMsgId(), limit, chatId, since == null ? "infinity" : since).asRecords();
+    }//end syncChat
+
+    /**
+     * Method to fetch one page of full-text search results over the live and
+     * archived messages of the chats the user belongs to, best match first.
+     * The text is read as a web search query: words, "quoted phrases", or
+     * and -excluded words.
+     *
+     * @param login the user searching
+     * @param text the search query
+     * @param after the position after the last result already seen, or null
+     * @param pageSize the maximum number of results to return
+     * @return rows of (msg_id, rank, chat_id, msg_timestamp, sender_login, msg_text)
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public List<List<String>> searchMessages (String login, String text, SearchCursor after, int pageSize) throws SQLException {
+        return after == null
+                ? executeQueryColumnar(Query.SEARCH_MESSAGES_FIRST, text, login, pageSize).asRecords()
+                : executeQueryColumnar(Query.SEARCH_MESSAGES_AFTER,
+                        text, login, after.getRank(), after.getMsgId(), pageSize).asRecords();
+    }//end searchMessages
+
+    /**
+     * Subscribes this connection to the new-message notifications of a chat
+     * (see create_triggers.sql).
+     */
+    public void listen (int chatId) throws SQLException {
+        executeUpdate("LISTEN chat_" + chatId);
+    }
+
+    public void unlisten (int chatId) throws SQLException {
+        executeUpdate("UNLISTEN chat_" + chatId);
+    }
+
+    /**
+     * Method to collect the notifications received on this connection. The
+     * driver only reads them while it processes a statement, so this makes
+     * one round trip first.
+     *
+     * @return the ids of the chats with new messages, once per notification
+     * @throws java.sql.SQLException when failed to execute the query
+     */
+    public int[] pollNotifications () throws SQLException {
+        executeQuery(Query.PING);
+        PGNotification[] notifications = ((PGConnection) this._connection).getNotifications();
+        if (notifications == null)
+            return new int[0];
+        int[] chats = new int[notifications.length];
+        int n = 0;
+        for (PGNotification notification : notifications) {
+            String name = notification.getName();
+            if (name.startsWith("chat_"))
+                chats[n++] = Integer.parseInt(name.substring(5));
+        }
+        return Arrays.copyOf(chats, n);
+    }//end pollNotifications
+
+    /**
+     * @return the primary's current WAL position (see ReplicaRouter)
+     */
+    public long currentWalLsn () throws SQLException {
+        return ReplicaRouter.parseLsn(executeQueryColumnar(Query.CURRENT_WAL_LSN).stringColumn(0)[0]);
+    }
+
+    /**
+     * @return the WAL position a replica has replayed, -1 if this is not a
+     *         replica
+     */
+    public long replayLsn () throws SQLException {
+        return ReplicaRouter.parseLsn(executeQueryColumnar(Query.REPLAY_LSN).stringColumn(0)[0]);
+    }
+
+    /*
+     * Data access operations. Each one runs on this instance's connection and
+     * does no terminal I/O, so the interactive menu below and
+     * MessengerService (which hands out pooled instances to many sessions)
+     * share the same code. A Messenger instance is used by one thread at a
+     * time.
+     */
+
+    /**
+     * Creates a user together with an empty block and contact list. All
+     * three rows are inserted by one statement, so a failure (e.g. a taken
+     * login) leaves no orphaned lists behind.
+     */
+    public void createUser (String login, String password, String phone) throws SQLException {
+        executeUpdate(Query.CREATE_USER, phone, login, password);
+    }//end createUser
+
+    /**
+     * @return true if the login and password match an existing user
+     */
+    public boolean logIn (String login, String password) throws SQLException {
+        return executeQuery(Query.LOGIN, login, password) > 0;
+    }
+
+    public boolean userExists (String login) throws SQLException {
+        return executeQuery(Query.USER_EXISTS, login) > 0;
+    }
+
+    /**
+     * @return the number of users added (0 if the contact does not exist)
+     */
+    public int addToContact (String owner, String contact) throws SQLException {
+        int rows = executeUpdate(Query.ADD_CONTACT, owner, contact);
+        _cache.invalidateContacts(owner);
+        return rows;
+    }
+
+    /**
+     * @return the number of users added (0 if the user does not exist)
+     */
+    public int addToBlock (String owner, String blocked) throws SQLException {
+        int rows = executeUpdate(Query.ADD_BLOCK, owner, blocked);
+        _cache.invalidateBlocks(owner);
+        return rows;
+    }
+
+    public int deleteFromContact (String owner, String contact) throws SQLException {
+        int rows = executeUpdate(Query.DELETE_CONTACT, contact, owner);
+        _cache.invalidateContacts(owner);
+        return rows;
+    }
+
+    public int deleteFromBlock (String owner, String blocked) throws SQLException {
+        int rows = executeUpdate(Query.DELETE_BLOCK, blocked, owner);
+        _cache.invalidateBlocks(owner);
+        return rows;
+    }
+
+    /**
+     * @return rows of (login, status) for the user's contacts
+     */
+    public List<List<String>> listContacts (String login) throws SQLException {
+        MembershipCache.UserList list = _cache.contacts(login);
+        if (list == null) {
+            long version = _cache.version();
+            ColumnarResult result = executeQueryColumnar(Query.LIST_CONTACTS, login);
+            list = _cache.putContacts(login, result.stringColumn(0), result.stringColumn(1), version);
+        }
+        List<List<String>> rows = new ArrayList<List<String>>(list.size());
+        for (int i = 0; i < list.size(); ++i)
+            rows.add(Arrays.asList(list.logins[i], list.statuses[i]));
+        return rows;
+    }//end listContacts
+
+    /**
+     * @return rows of (login) for the users the given user has blocked
+     */
+    public List<List<String>> listBlocked (String login) throws SQLException {
+        MembershipCache.UserList list = _cache.blocks(login);
+        if (list == null) {
+            long version = _cache.version();
+            list = _cache.putBlocks(login, executeQueryColumnar(Query.LIST_BLOCKED, login).stringColumn(0), version);
+        }
+        List<List<String>> rows = new ArrayList<List<String>>(list.size());
+        for (String blocked : list.logins)
+            rows.add(Collections.singletonList(blocked));
+        return rows;
+    }//end listBlocked
+
+    /**
+     * @return rows of (chat_id, unread, members, messages, last_activity,
+     *         last_sender, last_text, total_unread), most recently active
+     *         chat first; total_unread is the same on every row
+     */
+    public List<List<String>> listChats (String login) throws SQLException {
+        return executeQueryColumnar(Query.LIST_CHAT_SUMMARIES, login).asRecords();
+    }
+
+    /**
+     * Marks every message of the chat sent so far read by the user.
+     *
+     * @return 0 if the user is not a member
+     */
+    public int markChatRead (int chatId, String login) throws SQLException {
+        return executeUpdate(Query.MARK_CHAT_READ, chatId, login);
+    }
+
+    /**
+     * @return the ids of the chats the user is a member of
+     */
+    public int[] listChatIds (String login) throws SQLException {
+        return executeQueryColumnar(Query.LIST_CHATS, login).intColumn(0);
+    }
+
+    public List<List<String>> listChatMembers (int chatId) throws SQLException {
+        String[] members = _cache.members(chatId);
+        if (members == null) {
+            long version = _cache.version();
+            ColumnarResult result = executeQueryColumnar(Query.LIST_CHAT_MEMBERS, chatId);
+            _cache.putMembers(chatId, result.stringColumn(0), version);
+            return result.asRecords();
+        }
+        List<List<String>> rows = new ArrayList<List<String>>(members.length);
+        for (String member : members)
+            rows.add(Collections.singletonList(member));
+        return rows;
+    }//end listChatMembers
+
+    /**
+     * Membership is answered from the cached member list of the chat,
+     * loading it on a miss. Chats too big to cache are checked directly.
+     */
+    public boolean isChatMember (int chatId, String login) throws SQLException {
+        String[] members = _cache.members(chatId);
+        if (members == null) {
+            long version = _cache.version();
+            members = _cache.putMembers(chatId, executeQueryColumnar(Query.LIST_CHAT_MEMBERS, chatId).stringColumn(0), version);
+        }
+        if (members != null)
+            return MembershipCache.contains(members, login);
+        return executeQuery(Query.IS_CHAT_MEMBER, chatId, login) > 0;
+    }//end isChatMember
+
+    public boolean isChatOwner (int chatId, String login) throws SQLException {
+        String owner = chatOwner(chatId);
+        return owner.length() > 0 && owner.equals(login.trim());
+    }
+
+    /**
+     * @return the login of the chat's owner, "" if there is no such chat
+     */
+    public String chatOwner (int chatId) throws SQLException {
+        String owner = _cache.owner(chatId);
+        if (owner == null) {
+            long version = _cache.version();
+            ColumnarResult result = executeQueryColumnar(Query.CHAT_OWNER, chatId);
+            owner = result.rowCount() == 0 || result.getString(0, 0) == null ? "" : result.getString(0, 0);
+            _cache.putOwner(chatId, owner, version);
+        }
+        return owner;
+    }//end chatOwner
+
+    /**
+     * @return the members of a new chat, the owner first and each login
+     *         once
+     */
+    private static List<String> newChatMembers (String owner, List<String> members) throws SQLException {
+        Set<String> unique = new LinkedHashSet<String>();
+        unique.add(owner);
+        for (String member : members) {
+            // the members go to the database one per line
+            if (member.indexOf('\n') >= 0)
+                throw new SQLException("no such user: " + member);
+            unique.add(member);
+        }
+        return new ArrayList<String>(unique);
+    }
+
+    private static String lines (List<String> values) {
+        StringBuilder sb = new StringBuilder();
+        for (String value : values) {
+            if (sb.length() > 0)
+                sb.append('\n');
+            sb.append(value);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Creates a chat owned by the given user with its initial members in a
+     * single transaction of two statements: one INSERT ... RETURNING for
+     * the chat and one INSERT for all member rows. If any member cannot be
+     * added nothing is created. The owner is always a member, and a login
+     * given twice is added once.
+     *
+     * @param owner the login of the user creating the chat
+     * @param members the other initial members, may be empty
+     * @return the id of the new chat
+     */
+    public int createChat (String owner, List<String> members) throws SQLException {
+        List<String> logins = newChatMembers(owner, members);
+
+        boolean autoCommit = this._connection.getAutoCommit();
+        this._connection.setAutoCommit(false);
+        try {
+            int chat_id = executeQueryForInt(Query.CREATE_CHAT, "private", owner);
+            List<List<String>> added = executeQueryColumnar(Query.ADD_CHAT_MEMBERS, chat_id, lines(logins)).asRecords();
+            if (added.size() < logins.size()) {
+                Set<String> missing = new LinkedHashSet<String>(logins);
+                for (List<String> row : added)
+                    missing.remove(row.get(0));
+                throw new SQLException("no such user: " + missing.iterator().next());
+            }
+            this._connection.commit();
+            _cache.invalidateChat(chat_id);
+            return chat_id;
+        } catch (SQLException e) {
+            this._connection.rollback();
+            throw e;
+        } finally {
+            this._connection.setAutoCommit(autoCommit);
+        }
+    }//end createChat
+
+    /**
+     * Global node of a sharded setup: checks the members of a new chat and
+     * takes a chat id for it from the directory (see ShardRouter).
+     *
+     * @param shards the number of shards; the chat goes to chat_id % shards
+     * @return the id of the new chat
+     */
+    public int allocateChat (String owner, List<String> members, int shards) throws SQLException {
+        for (String login : newChatMembers(owner, members))
+            checkChatMember(login, owner);
+        return executeQueryForInt(Query.DIRECTORY_CREATE_CHAT, shards);
+    }
+
+    /**
+     * Global node: checks that the user may join a chat of the owner, as
+     * block_check_chat_member does on a single node.
+     */
+    public void checkChatMember (String login, String owner) throws SQLException {
+        if (executeQuery(Query.CHAT_MEMBER_ALLOWED, login, owner) == 0)
+            throw new SQLException(login + " cannot be added to a chat of " + owner);
+    }
+
+    /**
+     * @return the shard holding the chat according to the directory on the
+     *         global node, -1 if it is not there
+     */
+    public int chatShard (int chatId) throws SQLException {
+        return executeQueryForInt(Query.DIRECTORY_SHARD, chatId);
+    }
+
+    public void deleteChatDirectory (int chatId) throws SQLException {
+        executeUpdate(Query.DIRECTORY_DELETE_CHAT, chatId);
+    }
+
+    /**
+     * Shard: creates a chat allocated on the global node (see
+     * allocateChat) with its initial members, in one transaction.
+     */
+    public void createShardChat (int chatId, String owner, List<String> members) throws SQLException {
+        List<String> logins = newChatMembers(owner, members);
+
+        boolean autoCommit = this._connection.getAutoCommit();
+        this._connection.setAutoCommit(false);
+        try {
+            executeUpdate(Query.CREATE_SHARD_CHAT, chatId, "private", owner);
+            executeUpdate(Query.ADD_SHARD_CHAT_MEMBERS, chatId, lines(logins));
+            this._connection.commit();
+        } catch (SQLException e) {
+            this._connection.rollback();
+            throw e;
+        } finally {
+            this._connection.setAutoCommit(autoCommit);
+            _cache.invalidateChat(chatId);
+        }
+    }//end createShardChat
+
+    /**
+     * Shard: adds a member checked on the global node (see checkChatMember).
+     */
+    public void addShardChatMember (int chatId, String login) throws SQLException {
+        executeUpdate(Query.ADD_SHARD_CHAT_MEMBER, chatId, login);
+        _cache.invalidateChat(chatId);
+    }
+
+    public void addChatMember (int chatId, String login) throws SQLException {
+        int rows = executeUpdate(Query.ADD_CHAT_MEMBER, chatId, login);
+        _cache.invalidateChat(chatId);
+        if (rows == 0)
+            throw new SQLException("no such user: " + login);
+    }
+
+    public int removeChatMember (int chatId, String login) throws SQLException {
+        int rows = executeUpdate(Query.REMOVE_CHAT_MEMBER, chatId, login);
+        _cache.invalidateChat(chatId);
+        return rows;
+    }
+
+    /**
+     * Deletes a chat: marks it deleted and removes its members in one
+     * transaction, so it is gone for everyone at once. Its messages are
+     * removed later by PurgeJob, a chunk at a time.
+     */
+    public void deleteChatById (int chatId) throws SQLException {
+        boolean autoCommit = this._connection.getAutoCommit();
+        this._connection.setAutoCommit(false);
+        try {
+            executeUpdate(Query.DELETE_CHAT, chatId);
+            executeUpdate(Query.DELETE_CHAT_MEMBERS, chatId);
+            this._connection.commit();
+        } catch (SQLException e) {
+            this._connection.rollback();
+            throw e;
+        } finally {
+            this._connection.setAutoCommit(autoCommit);
+            _cache.invalidateChat(chatId);
+        }
+    }//end deleteChatById
+
+    public void sendMessage (int chatId, String sender, String text) throws SQLException {
+        executeUpdate(Query.SEND_MESSAGE, text, sender, chatId);
+    }
+
+    /**
+     * Sends several messages in one transaction, so they share one commit
+     * (see MessageIngestor). Either all of them are stored or none is.
+     *
+     * @param messages rows of (text, sender, chat_id), as for SEND_MESSAGE
+     * @throws java.sql.SQLException when any message was rejected
+     */
+    public void sendMessages (List<Object[]> messages) throws SQLException {
+        boolean autoCommit = this._connection.getAutoCommit();
+        this._connection.setAutoCommit(false);
+        try {
+            executeBatch(Query.SEND_MESSAGE, messages);
+            this._connection.commit();
+        } catch (SQLException e) {
+            this._connection.rollback();
+            throw e;
+        } finally {
+            this._connection.setAutoCommit(autoCommit);
+        }
+    }//end sendMessages
+
+    /**
+     * @return the number of messages changed (0 unless the sender wrote it)
+     */
+    public int editMessageById (int msgId, String sender, String text) throws SQLException {
+        return executeUpdate(Query.EDIT_MESSAGE, text, msgId, sender);
+    }
+
+    /**
+     * @return the number of messages deleted (0 unless the sender wrote it)
+     */
+    public int deleteMessageById (int msgId, String sender) throws SQLException {
+        return executeUpdate(Query.DELETE_MESSAGE, msgId, sender);
+    }
+
+    /**
+     * Creates the MESSAGE partitions up to the given number of months ahead
+     * that do not exist yet.
+     *
+     * @return the number of partitions created
+     */
+    public int createMessagePartitions (int monthsAhead) throws SQLException {
+        return executeQueryForInt(Query.CREATE_MESSAGE_PARTITIONS, monthsAhead);
+    }
+
+    /**
+     * Deletes an account: marks it and the chats it owns deleted and
+     * removes it and the members of those chats from CHAT_LIST, in one
+     * transaction. The account can no longer log in or be added anywhere.
+     * Its messages, chats and lists are removed later by PurgeJob.
+     */
+    public void deleteAccount (String login) throws SQLException {
+        boolean autoCommit = this._connection.getAutoCommit();
+        this._connection.setAutoCommit(false);
+        try {
+            executeUpdate(Query.DELETE_ACCOUNT, login);
+            executeUpdate(Query.DELETE_ACCOUNT_CHATS, login);
+            executeUpdate(Query.DELETE_ACCOUNT_MEMBERSHIPS, login, login);
+            this._connection.commit();
+        } catch (SQLException e) {
+            this._connection.rollback();
+            throw e;
+        } finally {
+            this._connection.setAutoCommit(autoCommit);
+            _cache.invalidateAccount(login);
+        }
+    }//end deleteAccount
+
+    /**
+     * @return the ids of up to limit deleted chats waiting to be purged,
+     *         oldest deletion first
+     */
+    public List<Integer> pendingChatPurges (int limit) throws SQLException {
+        List<Integer> chats = new ArrayList<Integer>();
+        for (int chatId : executeQueryColumnar(Query.PURGE_PENDING_CHATS, limit).intColumn(0))
+            chats.add(chatId);
+        return chats;
+    }
+
+    /**
+     * @return the logins of up to limit deleted accounts waiting to be
+     *         purged, oldest deletion first
+     */
+    public List<String> pendingAccountPurges (int limit) throws SQLException {
+        List<String> logins = new ArrayList<String>();
+        for (String login : executeQueryColumnar(Query.PURGE_PENDING_ACCOUNTS, limit).stringColumn(0))
+            logins.add(login.trim());
+        return logins;
+    }
+
+    /**
+     * Deletes up to limit rows of a deleted chat: its remaining members,
+     * then its messages, then its archived messages.
+     *
+     * @return the number of rows deleted, 0 once none are left
+     */
+    public int purgeChatChunk (int chatId, int limit) throws SQLException {
+        int rows = executeUpdate(Query.PURGE_CHAT_MEMBERS, chatId, limit);
+        if (rows == 0)
+            rows = executeUpdate(Query.PURGE_CHAT_MESSAGES, chatId, limit);
+        if (rows == 0)
+            rows = executeUpdate(Query.PURGE_CHAT_ARCHIVED_MESSAGES, chatId, limit);
+        return rows;
+    }
+
+    /**
+     * Deletes a deleted chat once nothing references it any more.
+     *
+     * @return false if rows arrived since the last chunk; purge again
+     */
+    public boolean purgeChat (int chatId) throws SQLException {
+        return executeUpdate(Query.PURGE_CHAT, chatId) > 0;
+    }
+
+    /**
+     * Deletes up to limit rows referencing a deleted account: memberships
+     * added while it was being deleted, then the messages it sent.
+     * Archived messages are kept: they do not reference the account.
+     *
+     * @return the number of rows deleted, 0 once none are left
+     */
+    public int purgeAccountChunk (String login, int limit) throws SQLException {
+        int rows = executeUpdate(Query.PURGE_ACCOUNT_MEMBERSHIPS, login, limit);
+        if (rows == 0)
+            rows = executeUpdate(Query.PURGE_ACCOUNT_MESSAGES, login, limit);
+        return rows;
+    }
+
+    /**
+     * Deletes up to limit logged message changes older than the given
+     * number of days.
+     *
+     * @return the number of changes deleted, 0 once none are left
+     */
+    public int pruneMessageChanges (int days, int limit) throws SQLException {
+        return executeUpdate(Query.PRUNE_MESSAGE_CHANGES, days, limit);
+    }
+
+    /**
+     * Deletes a deleted account and its lists once its chats and messages
+     * are gone.
+     *
+     * @return false if something still references the account
+     */
+    public boolean purgeAccount (String login) throws SQLException {
+        return executeUpdate(Query.PURGE_ACCOUNT, login) > 0;
+    }
+
+    /**
+     * @return usage statistics for the prepared statements of this connection
+     *         and the shared membership cache
+     */
+    public String statementStats() {
+        return this._statements.report() + this._cache.report() + this._metrics.report();
     }
 
     /**
@@ -202,11 +1221,14 @@ public class Messenger {
      */
     public int getCurrSeqVal(String sequence) throws SQLException {
         Statement stmt = this._connection.createStatement ();
-
-        ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-        if (rs.next())
-            return rs.getInt(1);
-        return -1;
+        try {
+            ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
+            if (rs.next())
+                return rs.getInt(1);
+            return -1;
+        } finally {
+            stmt.close ();
+        }
     }
 
     /**
@@ -214,6 +1236,9 @@ public class Messenger {
      */
     public void cleanup(){
         try{
+            if (this._statements != null){
+                this._statements.close ();
+            }//end if
             if (this._connection != null){
                 this._connection.close ();
             }//end if
@@ -248,6 +1273,9 @@ public class Messenger {
             String dbport = args[1];
             String user = args[2];
             esql = new Messenger (dbname, dbport, user, "");
+            // page long results when the user is at a terminal
+            if (System.console() != null)
+                esql.setPrinter(new ResultPrinter(in, PRINT_PAGE_ROWS));
 
             boolean keepon = true;
             while(keepon) {
@@ -265,6 +1293,7 @@ public class Messenger {
                     default : System.out.println("Unrecognized choice!"); break;
                 }//end switch
                 if (authorisedUser != null) {
+                    openCache(authorisedUser);
                     boolean usermenu = true;
                     while(usermenu) {
                         System.out.print("\033[H\033[2J");
@@ -280,6 +1309,7 @@ public class Messenger {
                         System.out.println("7. Browse/Edit current chats");
                         System.out.println("8. Create a new chat");
                         System.out.println("9. DELETE Account");
+                        System.out.println("11. Search messages");
                         System.out.println(".........................");
                         System.out.println("10. Log out");
                         switch (readChoice()){
@@ -293,9 +1323,11 @@ public class Messenger {
                             case 8: newChat(esql, authorisedUser); Wait(); System.out.print("\033[H\033[2J"); break;
                             case 9: DeleteAccount(esql, authorisedUser); usermenu=false; Wait(); break;
                             case 10: usermenu = false; System.out.print("\033[H\033[2J"); break;
+                            case 11: SearchMessages(esql, authorisedUser); System.out.print("\033[H\033[2J"); break;
                             default : System.out.println("Unrecognized choice!"); Wait(); break;
                         }
                     }
+                    closeCache();
                 }
             }//end while
         }catch(Exception e) {
@@ -303,7 +1335,12 @@ public class Messenger {
         }finally{
             // make sure to cleanup the created table and close the connection.
             try{
+                closeCache();
                 if(esql != null) {
+                    if (System.getProperty("messenger.stats") != null)
+                        System.out.print(esql.statementStats());
+                    if (System.getProperty("messenger.metrics") != null)
+                        OperationMetrics.SHARED.export(new File(System.getProperty("messenger.metrics")));
                     System.out.print("Disconnecting from database...");
                     esql.cleanup ();
                     System.out.println("Done\n\nBye !");
@@ -322,6 +1359,30 @@ public class Messenger {
     }//end Greeting
 
 
+    /**
+     * Opens the user's message cache; without it history is read from the
+     * server only.
+     */
+    static void openCache(String login){
+        try {
+            cache = MessageCache.open(login);
+        } catch (IOException e) {
+            System.err.println("Message cache disabled: " + e.getMessage());
+            cache = null;
+        }
+    }
+
+    static void closeCache(){
+        if (cache == null)
+            return;
+        try {
+            cache.close();
+        } catch (IOException e) {
+            // ignored.
+        }
+        cache = null;
+    }
+
     public static void Wait(){
         do {
             System.out.println("\nPress ENTER to continue");
@@ -367,15 +1428,7 @@ public class Messenger {
             System.out.print("\tEnter user phone: ");
             String phone = in.readLine();
 
-            //Creating empty contact\block lists for a user
-            esql.executeUpdate("INSERT INTO USER_LIST(list_type) VALUES ('block')");
-            int block_id = esql.getCurrSeqVal("user_list_list_id_seq");
-            esql.executeUpdate("INSERT INTO USER_LIST(list_type) VALUES ('contact')");
-            int contact_id = esql.getCurrSeqVal("user_list_list_id_seq");
-
-            String query = String.format("INSERT INTO USR (phoneNum, login, password, block_list, contact_list) VALUES ('%s','%s','%s',%s,%s)", phone, login, password, block_id, contact_id);
-
-            esql.executeUpdate(query);
+            esql.createUser(login, password, phone);
             System.out.println ("User successfully created!");
         }catch(Exception e){
             System.err.println (e.getMessage ());
@@ -393,9 +1446,7 @@ public class Messenger {
             System.out.print("\tEnter user password: ");
             String password = in.readLine();
 
-            String query = String.format("SELECT * FROM Usr WHERE login = '%s' AND password = '%s'", login, password);
-            int userNum = esql.executeQuery(query);
-            if (userNum > 0)
+            if (esql.logIn(login, password))
                 return login;
             return null;
         }catch(Exception e){
@@ -408,9 +1459,7 @@ public class Messenger {
         try{
             System.out.print("Enter user: ");
             String block_contact = in.readLine();
-            String query = String.format( " INSERT INTO USER_LIST_CONTAINS SELECT u1.contact_list, u2.login FROM ( SELECT * FROM USR WHERE login = '%s') u1, USR u2 WHERE u2.login = '%s';"
-                ,authorisedUser,block_contact);
-            esql.executeUpdate(query);
+            esql.addToContact(authorisedUser, block_contact);
         }catch(Exception e){ 
             System.err.println (e.getMessage ());
         }   
@@ -420,9 +1469,7 @@ public class Messenger {
         try{
             System.out.print("Enter user to block: ");
             String block_contact = in.readLine();
-            String query = String.format( " INSERT INTO USER_LIST_CONTAINS SELECT u1.block_list, u2.login FROM ( SELECT * FROM USR WHERE login = '%s') u1, USR u2 WHERE u2.login = '%s';"
-                ,authorisedUser,block_contact);
-            esql.executeUpdate(query);
+            esql.addToBlock(authorisedUser, block_contact);
         }catch(Exception e){ 
             System.err.println (e.getMessage ());
         } 
@@ -431,9 +1478,8 @@ public class Messenger {
 
     public static void ListContacts(Messenger esql, String authorisedUser){
         try{
-            String query = String.format( "SELECT u1.login AS Contacts, u1.status AS Status_Message FROM ( SELECT con.list_member FROM USER_LIST_CONTAINS con, USR u WHERE u.login = '%s' AND u.contact_list = con.list_id) AS list, USR u1 WHERE list.list_member = u1.login" , authorisedUser);
             System.out.print("The following are your contacts\n\n");
-            esql.executeQueryAndPrintResult(query);
+            printRecords(Arrays.asList("contacts", "status_message"), esql.listContacts(authorisedUser));
         }catch(Exception e){
             System.err.println (e.getMessage ());
         }
@@ -442,32 +1488,51 @@ public class Messenger {
 
     public static void BrowseBlockList(Messenger esql, String authorisedUser){
         try{
-            String query = String.format( "SELECT u1.login AS BLOCKED_CONTACTS FROM (SELECT con.list_member FROM USER_LIST_CONTAINS con, USR u WHERE u.login = '%s' AND u.block_list = con.list_id) AS list, USR u1 WHERE list.list_member = u1.login", authorisedUser);
             System.out.print("The following are your blocked contacts\n\n");
-            esql.executeQueryAndPrintResult(query);
+            printRecords(Arrays.asList("blocked_contacts"), esql.listBlocked(authorisedUser));
         }catch(Exception e){
             System.err.println (e.getMessage ());
         }
     }//end 
 
-    public static void ListChats(Messenger esql, String authorisedUser){
+    public static void SearchMessages(Messenger esql, String authorisedUser){
         System.out.print("\033[H\033[2J");
         try{
-            String query = String.format("SELECT chats.chat_id FROM CHAT_LIST chats, USR u1 WHERE u1.login = '%s' AND chats.member = u1.login;", authorisedUser);
+            System.out.println("Search for: ");
+            String text = in.readLine();
+            System.out.println("msg_id\trank\tchat_id\tmsg_timestamp\tsender_login\tmsg_text\t");
+            SearchCursor cursor = null;
+            int choice = 1;
+            while (choice == 1)
+            {
+                List<List<String>> page = esql.searchMessages(authorisedUser, text, cursor, HISTORY_PAGE_SIZE);
+                printRecords(null, page);
+                if (page.size() < HISTORY_PAGE_SIZE){
+                    System.out.println("-- no more results --");
+                    Wait();
+                    break;
+                }
+                cursor = SearchCursor.after(page.get(page.size() - 1));
+                System.out.println("Enter '1' to view more results, or '2' to exit");
+                choice = Integer.parseInt(in.readLine());
+            }
+        }catch(Exception e){
+            System.err.println (e.getMessage ());
+            Wait();
+        }
+    }//end SearchMessages
 
-            //String query = String.format("SELECT * FROM CHAT_LIST chats, USR u1 WHERE u1.login = '%s' AND chats.member = u1.login", authorisedUser);
+    public static void ListChats(Messenger esql, String authorisedUser){
+        System.out.print("\033[H\033[2J");
+        try{
             System.out.print("Here are your current chats\n\n");
-            esql.executeQueryAndPrintResult(query);
-
-            int msg_offset = 0;
+            esql.executeQueryAndPrintResult(Query.LIST_CHAT_SUMMARIES, authorisedUser);
 
             System.out.println("Which chat do you want to work with? ");
             int chat_num = Integer.parseInt(in.readLine());
 
             boolean bool = false;
-            String query1 = String.format( "SELECT c.member FROM chat_list c WHERE c.chat_id = %d AND c.member = '%s';", chat_num, authorisedUser);
-            List<List< String> > result = esql.executeQueryAndReturnResult(query1);
-            if(result.size() != 0){
+            if(esql.isChatMember(chat_num, authorisedUser)){
                 bool = true;
             }
             if (bool)
@@ -478,11 +1543,10 @@ public class Messenger {
                     System.out.println("1. Send a Message in chat " + chat_num);
                     System.out.println("2. View messages in chat " + chat_num);
 
-                    String chat_owner = String.format("SELECT init_sender FROM CHAT WHERE chat_id = %d AND init_sender = '%s';", chat_num, authorisedUser);
-                    List<List< String> > chat_owner_result = esql.executeQueryAndReturnResult(chat_owner);
+                    boolean chat_owner = esql.isChatOwner(chat_num, authorisedUser);
 
                     //following options given if current user is the owner of the chat
-                    if (chat_owner_result.size() != 0)
+                    if (chat_owner)
                     {
                         System.out.println("3. Add members to chat " + chat_num);
                         System.out.println("4. Remove members from chat " + chat_num);
@@ -492,41 +1556,70 @@ public class Messenger {
 
                     System.out.println("7. Delete message(prepare msg_id)");
                     System.out.println("8. Edit message(prepare msg_id)");
+                    System.out.println("10. Follow new messages in chat " + chat_num);
                     System.out.println("9. return to main menu");
                     switch(readChoice()){  
                         case 1: 
                             System.out.println("Input your message: ");
                             String message = in.readLine();
-                            String insert_message = String.format("INSERT INTO message (msg_text, sender_login,chat_id, msg_timestamp) VALUES ('%s','%s','%d', now())", message, authorisedUser, chat_num);
-
-                            esql.executeUpdate(insert_message);
+                            esql.sendMessage(chat_num, authorisedUser, message);
                             System.out.println("\nMessage successfully sent!");
                             Wait();
                             break;
                         case 2: 
                             int choice = 1;
-                            int limit = 0;
+                            HistoryCursor cursor = null;
+                            System.out.print("\033[H\033[2J");
+                            System.out.println("msg_id\tmsg_timestamp\tsender_login\tmsg_text\t");
+                            esql.markChatRead(chat_num, authorisedUser);
                             while (choice == 1)
                             {
-                                limit += 10;
-                                System.out.print("\033[H\033[2J");          
-                                String get_chat_query = String.format("SELECT m.msg_id, m.msg_timestamp, m.sender_login, m.msg_text FROM message m WHERE m.chat_id = %d ORDER BY m.msg_timestamp desc LIMIT %d OFFSET %d", chat_num, limit, msg_offset);
-                                esql.executeQueryAndPrintResult(get_chat_query);
+                                // only the next batch is fetched; earlier pages stay on screen,
+                                // and pages already cached are not fetched at all
+                                List<List<String>> page = cache != null
+                                        ? cache.page(esql, chat_num, cursor, HISTORY_PAGE_SIZE)
+                                        : esql.pageHistory(chat_num, cursor, HISTORY_PAGE_SIZE);
+                                printRecords(null, page);
+                                if (page.size() < HISTORY_PAGE_SIZE){
+                                    System.out.println("-- no earlier messages --");
+                                    Wait();
+                                    break;
+                                }
+                                cursor = HistoryCursor.after(page.get(page.size() - 1));
                                 System.out.println("Enter '1' to view more messages, or '2' to exit");
                                 String line1 = in.readLine();
                                 choice = Integer.parseInt(line1);
                             }  
                             break;
 
+                        case 10:
+                            System.out.print("\033[H\033[2J");
+                            System.out.println("New messages in chat " + chat_num + " (press Enter to stop)");
+                            System.out.println("msg_id\tmsg_timestamp\tsender_login\tmsg_text\t");
+                            esql.listen(chat_num);
+                            try {
+                                List<List<String>> latest = esql.pageHistory(chat_num, null, 1);
+                                TailCursor tail = new TailCursor(latest.isEmpty() ? null : latest.get(0));
+                                while (!in.ready()) {
+                                    if (esql.pollNotifications().length > 0) {
+                                        List<List<String>> rows = esql.tailMessages(chat_num, tail, HISTORY_PAGE_SIZE);
+                                        if (!rows.isEmpty())
+                                            printRecords(null, rows);
+                                    }
+                                    Thread.sleep(LISTEN_POLL_MILLIS);
+                                }
+                                in.readLine();
+                            } finally {
+                                esql.unlisten(chat_num);
+                            }
+                            break;
+
                         case 3: 
-                            if (chat_owner_result.size() != 0){
+                            if (chat_owner){
                                 System.out.print("Who do you want to add? ");  
                                 String added_user = in.readLine();
-                                String added_user_check = String.format( "SELECT login FROM Usr WHERE login = '%s'", added_user);
-                                List<List< String>> added_user_query = esql.executeQueryAndReturnResult(added_user_check);
-                                if(added_user_query.size() != 0){
-                                    String insert_user = String.format("INSERT INTO chat_list (chat_id, member) VALUES ('%d', '%s')", chat_num, added_user);
-                                    esql.executeUpdate(insert_user);
+                                if(esql.userExists(added_user)){
+                                    esql.addChatMember(chat_num, added_user);
                                     System.out.print("Successfully added " + added_user + " to chat " + chat_num + "\n");
                                     Wait();
                                 }
@@ -543,17 +1636,13 @@ public class Messenger {
                             break;
 
                         case 4: 
-                            if (chat_owner_result.size() != 0){
+                            if (chat_owner){
                                 System.out.print("\nThe following users are currently in the chat.\n");
-                                String curr_chat_users = String.format("SELECT member FROM chat_list WHERE chat_id = '%d'", chat_num);
-                                esql.executeQueryAndPrintResult(curr_chat_users);
+                                printRecords(Arrays.asList("member"), esql.listChatMembers(chat_num));
                                 System.out.print("\nWho do you want to remove? ");  
                                 String removed_user = in.readLine();
-                                String removed_user_check = String.format( "SELECT member FROM chat_list WHERE member = '%s' AND chat_id = '%d'", removed_user, chat_num);
-                                List<List< String>> removed_user_query = esql.executeQueryAndReturnResult(removed_user_check);
-                                if(removed_user_query.size() != 0){
-                                    String delete_user = String.format("DELETE FROM chat_list WHERE member = '%s' AND chat_id = '%d'", removed_user, chat_num);
-                                    esql.executeUpdate(delete_user);
+                                if(esql.isChatMember(chat_num, removed_user)){
+                                    esql.removeChatMember(chat_num, removed_user);
                                     System.out.print("Successfully removed " + removed_user + " from chat " + chat_num + "\n");
                                     Wait();
                                 }
@@ -570,8 +1659,7 @@ public class Messenger {
 
                         case 5:
                             System.out.print("\nThe following users are currently in the chat.\n");
-                            String curr_chat_users1 = String.format("SELECT member FROM chat_list WHERE chat_id = '%d'", chat_num);
-                            esql.executeQueryAndPrintResult(curr_chat_users1);
+                            printRecords(Arrays.asList("member"), esql.listChatMembers(chat_num));
                             Wait();
                             break;
                         case 6:
@@ -610,8 +1698,7 @@ public class Messenger {
         try{
             System.out.print("\tEnter login: ");
             String login = in.readLine();
-            String query = String.format(" DELETE FROM USER_LIST_CONTAINS WHERE list_member = '%s' AND list_id = ( SELECT contact_list FROM USR WHERE login = '%s');",login, authorisedUser);
-            esql.executeUpdate(query);
+            esql.deleteFromContact(authorisedUser, login);
         }catch(Exception e){
             System.err.println (e.getMessage ());
         }
@@ -621,8 +1708,7 @@ public class Messenger {
         try{
             System.out.print("\tEnter login: ");
             String login = in.readLine();
-            String query = String.format(" DELETE FROM USER_LIST_CONTAINS WHERE list_member = '%s' AND list_id = ( SELECT block_list FROM USR WHERE login = '%s'); ", login, authorisedUser);
-            esql.executeUpdate(query);
+            esql.deleteFromBlock(authorisedUser, login);
         }catch(Exception e){
             System.err.println (e.getMessage ());
         }
@@ -630,11 +1716,8 @@ public class Messenger {
 
     public static void newChat(Messenger esql, String authorisedUser){
         try{
-            String query = String.format(" INSERT INTO CHAT VALUES (DEFAULT,'private','%s');",authorisedUser);
-            esql.executeUpdate(query);
-            Integer chat_id = esql.getCurrSeqVal("chat_chat_id_seq"); // won't be -1
-            query = String.format(" INSERT INTO CHAT_LIST VALUES ('%s', '%s');",chat_id,authorisedUser);
-            esql.executeUpdate(query);
+            // members are collected first and written in one transaction
+            List<String> members = new ArrayList<String>();
             boolean usermenu = true;
             while(usermenu) {
                 System.out.println("1. Add initial member");
@@ -643,8 +1726,10 @@ public class Messenger {
                     case 1: 
                         System.out.print("\tEnter initial member login: ");
                         String login = in.readLine();
-                        query = String.format(" INSERT INTO CHAT_LIST VALUES ('%s', '%s');",chat_id,login);
-                        esql.executeUpdate(query);
+                        if (esql.userExists(login))
+                            members.add(login);
+                        else
+                            System.out.println("Invalid User!");
                         break;
                     case 2: 
                         usermenu = false;
@@ -652,6 +1737,8 @@ public class Messenger {
                     default : System.out.println("Unrecognized choice!"); Wait(); break;
                 }
             }
+            int chat_id = esql.createChat(authorisedUser, members);
+            System.out.println("Chat " + chat_id + " created");
         }catch(Exception e){
             System.err.println(e.getMessage());
         }
@@ -663,8 +1750,9 @@ public class Messenger {
             String msg_id = in.readLine();
             System.out.print("\tEnter new message text: ");
             String msg_text = in.readLine();
-            String query = String.format("UPDATE MESSAGE SET msg_text = '%s' WHERE msg_id = '%s' AND sender_login = '%s';", msg_text, msg_id, authorisedUser);
-            esql.executeUpdate(query);
+            int id = Integer.parseInt(msg_id.trim());
+            if (esql.editMessageById(id, authorisedUser, msg_text) > 0 && cache != null)
+                cache.edited(id, msg_text);
         }catch(Exception e){
             System.err.println(e.getMessage ());
         }
@@ -673,20 +1761,16 @@ public class Messenger {
         try{
             System.out.print("\tEnter msg_id of message to delete: ");
             String msg_id = in.readLine();
-            String query = String.format(" DELETE FROM Message WHERE msg_id = '%s' AND sender_login = '%s';", msg_id, authorisedUser);
-            esql.executeUpdate(query);
+            int id = Integer.parseInt(msg_id.trim());
+            if (esql.deleteMessageById(id, authorisedUser) > 0 && cache != null)
+                cache.deleted(id);
         }catch(Exception e){
             System.err.println(e.getMessage ());
         }
     }
     public static void deleteChat(Messenger esql, String authorisedUser, int chat_id){
         try{
-            String query = String.format("DELETE FROM Message WHERE chat_id = %d;",chat_id);
-            esql.executeUpdate(query);
-            query = String.format("DELETE FROM CHAT_List WHERE chat_id = %d;",chat_id);
-            esql.executeUpdate(query);
-            query = String.format("DELETE FROM CHAT WHERE chat_id = %d;",chat_id);
-            esql.executeUpdate(query);
+            esql.deleteChatById(chat_id);
         }catch(Exception e){
             System.err.println(e.getMessage ());
         }
@@ -694,8 +1778,7 @@ public class Messenger {
 
     public static void DeleteAccount(Messenger esql, String authorisedUser){
         try{
-            String query = String.format(" DELETE FROM Usr WHERE login = '%s';", authorisedUser);
-            esql.executeUpdate(query);
+            esql.deleteAccount(authorisedUser);
         }catch(Exception e){
             System.err.println(e.getMessage ());
         }
@@ -0,0 +1,514 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Multi-session server mode for Messenger. One JVM accepts many client
+ * connections on a TCP port and runs each session on its own thread; all
+ * sessions share one MessengerService and therefore one bounded connection
+ * pool, so the number of database connections stays fixed no matter how
+ * many users are logged in.
+ *
+ * Clients speak a line protocol (try it with telnet or nc). Each request is
+ * one line; the reply is zero or more tab separated data rows followed by
+ * "OK <rows>" or "ERR <message>".
+ *
+ *   CREATE <login> <password> <phone>    LOGIN <login> <password>
+ *   CONTACTS | BLOCKED                   CHATS
+ *   ADD_CONTACT <login>                  BLOCK <login>
+ *   REMOVE_CONTACT <login>               UNBLOCK <login>
+ *   NEW_CHAT [<member> ...]              DELETE_CHAT <chat_id>
+ *   MEMBERS <chat_id>                    ADD_MEMBER <chat_id> <login>
+ *   REMOVE_MEMBER <chat_id> <login>      SEND <chat_id> <text>
+ *   HISTORY <chat_id>                    MORE
+ *   EDIT <msg_id> <text>                 DELETE <msg_id>
+ *   TAIL <chat_id>                       DELETE_ACCOUNT
+ *   SEARCH <text>                        MORE_RESULTS
+ *   READ <chat_id>                       METRICS
+ *   QUIT
+ *
+ * CHATS is the inbox: rows of (chat_id, unread, members, messages,
+ * last_activity, last_sender, last_text, total_unread), most recently
+ * active first. HISTORY and READ mark the chat read.
+ *
+ * TAIL replies "OK tailing" and then sends each new message of the chat
+ * as a row as soon as it arrives (see MessageListener), until the client
+ * sends STOP; the final reply is "OK <rows sent>".
+ *
+ * SEARCH sends the first page of the messages of the user's chats that
+ * match the text, best match first, as rows of (msg_id, rank, chat_id,
+ * msg_timestamp, sender_login, msg_text); MORE_RESULTS sends the next.
+ *
+ * SEND goes through a MessageIngestor, so the messages of all sessions
+ * are committed in shared batches; its OK comes once the message is
+ * stored.
+ *
+ * METRICS needs no login and sends the OperationMetrics report, one line
+ * per row. With -Dmessenger.metrics=<file> the report is also written to
+ * that file every METRICS_EXPORT_SECONDS.
+ *
+ * With -Dmessenger.replicas=<port>,... the browse and history reads go to
+ * those replicas (see ReplicaRouter). With -Dmessenger.shards=<port>,...
+ * the chats live on those shards instead and the given database holds the
+ * users and the chat directory (see ShardRouter).
+ *
+ * The server also creates the MESSAGE partitions for the coming months at
+ * startup and once a day after that, and runs a PurgeJob that removes
+ * deleted accounts and chats in the background.
+ */
+public class MessengerServer {
+
+    private final MessengerService _service;
+    private final MessageListener[] _listeners;
+    private final MessageIngestor _ingestor;
+    private final ThreadPoolExecutor _sessions;
+
+    // MESSAGE partitions are kept this many months ahead of the current one
+    private static final int PARTITION_MONTHS_AHEAD = 3;
+
+    // how often the metrics report is written to -Dmessenger.metrics
+    private static final int METRICS_EXPORT_SECONDS = 60;
+
+    // threads committing batches of sent messages
+    private static final int INGEST_FLUSHERS = 2;
+
+    // how often a tailing session checks for a STOP from its client
+    private static final long TAIL_CHECK_MILLIS = 200;
+
+    /**
+     * @param listeners the listener of each shard, or the one listener
+     *        without shards
+     */
+    public MessengerServer(MessengerService service, MessageListener[] listeners, MessageIngestor ingestor, int maxSessions) {
+        this._service = service;
+        this._listeners = listeners;
+        this._ingestor = ingestor;
+        // a session thread lives as long as its client stays connected
+        this._sessions = new ThreadPoolExecutor(0, maxSessions, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>());
+    }
+
+    /**
+     * Accepts clients until the process is stopped.
+     *
+     * @param listenPort the TCP port to listen on
+     */
+    public void serve(int listenPort) throws IOException {
+        ServerSocket server = new ServerSocket(listenPort);
+        System.out.println("Messenger server listening on port " + listenPort);
+        ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor();
+        maintenance.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    int created = _service.createMessagePartitions(PARTITION_MONTHS_AHEAD);
+                    if (created > 0)
+                        System.out.println("Created " + created + " MESSAGE partitions");
+                } catch (SQLException e) {
+                    System.err.println("Creating MESSAGE partitions failed: " + e.getMessage());
+                }
+            }
+        }, 0, 1, TimeUnit.DAYS);
+        final String metricsFile = System.getProperty("messenger.metrics");
+        if (metricsFile != null) {
+            maintenance.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        OperationMetrics.SHARED.export(new File(metricsFile));
+                    } catch (IOException e) {
+                        System.err.println("Writing metrics failed: " + e.getMessage());
+                    }
+                }
+            }, METRICS_EXPORT_SECONDS, METRICS_EXPORT_SECONDS, TimeUnit.SECONDS);
+        }
+        try {
+            while (true) {
+                Socket client = server.accept();
+                try {
+                    _sessions.execute(new Session(_service, _listeners, _ingestor, client));
+                } catch (RejectedExecutionException e) {
+                    PrintWriter out = new PrintWriter(client.getOutputStream(), true);
+                    out.println("ERR server busy, try again later");
+                    client.close();
+                }
+            }
+        } finally {
+            server.close();
+            maintenance.shutdown();
+            _sessions.shutdown();
+        }
+    }//end serve
+
+    /**
+     * One connected client. Holds the logged in user and the history cursor
+     * between requests; everything else lives in the database.
+     */
+    private static class Session implements Runnable {
+
+        private final MessengerService service;
+        private final MessageListener[] listeners;
+        private final MessageIngestor ingestor;
+        private final Socket client;
+        private BufferedReader in;
+        private PrintWriter out;
+
+        private String user = null;
+        private int historyChat = -1;
+        private HistoryCursor historyCursor = null;
+        private String searchText = null;
+        private SearchCursor searchCursor = null;
+
+        Session(MessengerService service, MessageListener[] listeners, MessageIngestor ingestor, Socket client) {
+            this.service = service;
+            this.listeners = listeners;
+            this.ingestor = ingestor;
+            this.client = client;
+        }
+
+        public void run() {
+            try {
+                in = new BufferedReader(new InputStreamReader(client.getInputStream(), "UTF-8"));
+                out = new PrintWriter(new OutputStreamWriter(client.getOutputStream(), "UTF-8"), true);
+                out.println("OK Messenger ready");
+                String line;
+                while ((line = in.readLine()) != null) {
+                    line = line.trim();
+                    if (line.length() == 0)
+                        continue;
+                    if (line.equalsIgnoreCase("QUIT")) {
+                        out.println("OK bye");
+                        break;
+                    }
+                    try {
+                        handle(line);
+                    } catch (SQLException e) {
+                        out.println("ERR " + e.getMessage());
+                    } catch (RuntimeException e) {
+                        out.println("ERR invalid request: " + e.getMessage());
+                    }
+                }
+            } catch (IOException e) {
+                // client went away
+            } finally {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    // ignored.
+                }
+            }
+        }//end run
+
+        private void handle(String line) throws SQLException, IOException {
+            String[] cmd = line.split("\\s+", 2);
+            String op = cmd[0].toUpperCase();
+            String rest = cmd.length > 1 ? cmd[1] : "";
+
+            if (op.equals("CREATE")) {
+                String[] a = args(rest, 3);
+                service.createUser(a[0], a[1], a[2]);
+                ok(1);
+                return;
+            }
+            if (op.equals("LOGIN")) {
+                String[] a = args(rest, 2);
+                if (service.logIn(a[0], a[1])) {
+                    user = a[0];
+                    ok(1);
+                } else {
+                    error("invalid login or password");
+                }
+                return;
+            }
+            if (op.equals("METRICS")) {
+                List<List<String>> lines = new ArrayList<List<String>>();
+                for (String metric : OperationMetrics.SHARED.report().split("\\r?\\n"))
+                    lines.add(Collections.singletonList(metric));
+                rows(lines);
+                return;
+            }
+            if (user == null) {
+                error("log in first");
+                return;
+            }
+
+            if (op.equals("CONTACTS")) {
+                rows(service.listContacts(user));
+            } else if (op.equals("BLOCKED")) {
+                rows(service.listBlocked(user));
+            } else if (op.equals("CHATS")) {
+                rows(service.listChats(user));
+            } else if (op.equals("ADD_CONTACT")) {
+                ok(service.addToContact(user, args(rest, 1)[0]));
+            } else if (op.equals("BLOCK")) {
+                ok(service.addToBlock(user, args(rest, 1)[0]));
+            } else if (op.equals("REMOVE_CONTACT")) {
+                ok(service.deleteFromContact(user, args(rest, 1)[0]));
+            } else if (op.equals("UNBLOCK")) {
+                ok(service.deleteFromBlock(user, args(rest, 1)[0]));
+            } else if (op.equals("NEW_CHAT")) {
+                List<String> members = rest.length() == 0
+                        ? new ArrayList<String>() : Arrays.asList(rest.split("\\s+"));
+                out.println(service.createChat(user, members));
+                ok(1);
+            } else if (op.equals("MEMBERS")) {
+                int chatId = requireMember(rest);
+                if (chatId >= 0)
+                    rows(service.listChatMembers(chatId));
+            } else if (op.equals("ADD_MEMBER")) {
+                String[] a = args(rest, 2);
+                int chatId = requireOwner(a[0]);
+                if (chatId < 0)
+                    return;
+                if (!service.userExists(a[1])) {
+                    error("no such user " + a[1]);
+                    return;
+                }
+                service.addChatMember(chatId, a[1]);
+                ok(1);
+            } else if (op.equals("REMOVE_MEMBER")) {
+                String[] a = args(rest, 2);
+                int chatId = requireOwner(a[0]);
+                if (chatId >= 0)
+                    ok(service.removeChatMember(chatId, a[1]));
+            } else if (op.equals("DELETE_CHAT")) {
+                int chatId = requireOwner(rest);
+                if (chatId >= 0) {
+                    service.deleteChat(chatId);
+                    ok(1);
+                }
+            } else if (op.equals("SEND")) {
+                String[] a = rest.split("\\s+", 2);
+                if (a.length < 2)
+                    throw new IllegalArgumentException("SEND <chat_id> <text>");
+                int chatId = requireMember(a[0]);
+                if (chatId >= 0) {
+                    ingestor.send(chatId, user, a[1]);
+                    ok(1);
+                }
+            } else if (op.equals("HISTORY")) {
+                int chatId = requireMember(rest);
+                if (chatId >= 0) {
+                    historyChat = chatId;
+                    historyCursor = null;
+                    service.markChatRead(chatId, user);
+                    page();
+                }
+            } else if (op.equals("READ")) {
+                int chatId = requireMember(rest);
+                if (chatId >= 0)
+                    ok(service.markChatRead(chatId, user));
+            } else if (op.equals("MORE")) {
+                if (historyChat < 0)
+                    error("no history open");
+                else
+                    page();
+            } else if (op.equals("TAIL")) {
+                int chatId = requireMember(rest);
+                if (chatId >= 0)
+                    tail(chatId);
+            } else if (op.equals("SEARCH")) {
+                if (rest.trim().length() == 0)
+                    throw new IllegalArgumentException("SEARCH <text>");
+                searchText = rest;
+                searchCursor = null;
+                searchPage();
+            } else if (op.equals("MORE_RESULTS")) {
+                if (searchText == null)
+                    error("no search open");
+                else
+                    searchPage();
+            } else if (op.equals("EDIT")) {
+                String[] a = rest.split("\\s+", 2);
+                if (a.length < 2)
+                    throw new IllegalArgumentException("EDIT <msg_id> <text>");
+                ok(service.editMessage(Integer.parseInt(a[0]), user, a[1]));
+            } else if (op.equals("DELETE")) {
+                ok(service.deleteMessage(Integer.parseInt(args(rest, 1)[0]), user));
+            } else if (op.equals("DELETE_ACCOUNT")) {
+                service.deleteAccount(user);
+                user = null;
+                ok(1);
+            } else {
+                error("unknown command " + op);
+            }
+        }//end handle
+
+        /**
+         * Sends the next page of the open chat history.
+         */
+        private void page() throws SQLException {
+            List<List<String>> page = service.pageHistory(user, historyChat, historyCursor, Messenger.HISTORY_PAGE_SIZE);
+            if (!page.isEmpty())
+                historyCursor = HistoryCursor.after(page.get(page.size() - 1));
+            rows(page);
+        }
+
+        /**
+         * Sends the next page of the open search.
+         */
+        private void searchPage() throws SQLException {
+            List<List<String>> page = service.searchMessages(user, searchText, searchCursor, Messenger.HISTORY_PAGE_SIZE);
+            if (!page.isEmpty())
+                searchCursor = SearchCursor.after(page.get(page.size() - 1));
+            rows(page);
+        }
+
+        /**
+         * Sends the messages of the chat that arrive from now on, until the
+         * client sends a line.
+         */
+        private void tail(int chatId) throws SQLException, IOException {
+            final Semaphore arrived = new Semaphore(0);
+            MessageListener.Subscriber subscriber = new MessageListener.Subscriber() {
+                public void messagesArrived(int chat) {
+                    arrived.release();
+                }
+            };
+            // notifications come from the node the messages are stored on
+            MessageListener listener = listeners[service.shardOf(chatId)];
+            listener.subscribe(chatId, subscriber);
+            int sent = 0;
+            try {
+                // subscribed first, so nothing newer than this can be missed
+                List<List<String>> latest = service.pageHistory(user, chatId, null, 1);
+                TailCursor cursor = new TailCursor(latest.isEmpty() ? null : latest.get(0));
+                out.println("OK tailing chat " + chatId + ", send STOP to end");
+                while (!in.ready()) {
+                    if (!arrived.tryAcquire(TAIL_CHECK_MILLIS, TimeUnit.MILLISECONDS))
+                        continue;
+                    arrived.drainPermits();
+                    List<List<String>> rows = service.tailMessages(chatId, cursor, Messenger.HISTORY_PAGE_SIZE);
+                    if (!rows.isEmpty()) {
+                        sent += rows.size();
+                        print(rows);
+                    }
+                }
+                in.readLine();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                listener.unsubscribe(chatId, subscriber);
+            }
+            ok(sent);
+        }//end tail
+
+        /**
+         * @return the chat id if the user is a member of it, -1 otherwise
+         *         (after reporting the error)
+         */
+        private int requireMember(String chat) throws SQLException {
+            int chatId = Integer.parseInt(chat.trim());
+            if (service.isChatMember(chatId, user))
+                return chatId;
+            error("not a member of chat " + chatId);
+            return -1;
+        }
+
+        /**
+         * @return the chat id if the user owns it, -1 otherwise (after
+         *         reporting the error)
+         */
+        private int requireOwner(String chat) throws SQLException {
+            int chatId = Integer.parseInt(chat.trim());
+            if (service.isChatOwner(chatId, user))
+                return chatId;
+            error("not the owner of chat " + chatId);
+            return -1;
+        }
+
+        private static String[] args(String rest, int count) {
+            String[] a = rest.length() == 0 ? new String[0] : rest.split("\\s+");
+            if (a.length < count)
+                throw new IllegalArgumentException("expected " + count + " argument(s)");
+            return a;
+        }
+
+        private void rows(List<List<String>> result) {
+            print(result);
+            ok(result.size());
+        }
+
+        private void print(List<List<String>> result) {
+            StringBuilder sb = new StringBuilder();
+            for (List<String> row : result) {
+                sb.setLength(0);
+                for (int i = 0; i < row.size(); ++i) {
+                    if (i > 0)
+                        sb.append('\t');
+                    String value = row.get(i);
+                    sb.append(value == null ? "" : value.trim());
+                }
+                out.println(sb);
+            }
+        }
+
+        private void ok(int rows) {
+            out.println("OK " + rows);
+        }
+
+        private void error(String message) {
+            out.println("ERR " + message);
+        }
+    }//end Session
+
+    /**
+     * Starts the server.
+     *
+     * @param args <dbname> <port> <user> <listen port> [pool size] [max sessions]
+     */
+    public static void main(String[] args) {
+        if (args.length < 4) {
+            System.err.println(
+                    "Usage: " +
+                    "java [-classpath <classpath>] " +
+                    MessengerServer.class.getName() +
+                    " <dbname> <port> <user> <listen port> [pool size] [max sessions]");
+            return;
+        }
+        try {
+            Class.forName("org.postgresql.Driver").newInstance();
+            int poolSize = args.length > 4 ? Integer.parseInt(args[4]) : 20;
+            int maxSessions = args.length > 5 ? Integer.parseInt(args[5]) : 2000;
+            ConnectionPool pool = new ConnectionPool(args[0], args[1], args[2], "", poolSize, 10 * 1000);
+            ShardRouter shards = ShardRouter.fromProperty(pool, args[0], args[2], poolSize);
+            MessengerService service = new MessengerService(pool,
+                    shards == null ? ReplicaRouter.fromProperty(pool, args[0], args[2], poolSize) : null, shards);
+            MessageListener[] listeners = new MessageListener[shards == null ? 1 : shards.shardCount()];
+            for (int i = 0; i < listeners.length; ++i) {
+                listeners[i] = new MessageListener(new Messenger(args[0], shards == null ? args[1] : shards.port(i), args[2], ""), 20);
+                listeners[i].start();
+            }
+            MessageIngestor ingestor = new MessageIngestor(service);
+            ingestor.start(INGEST_FLUSHERS);
+            PurgeJob purge = new PurgeJob(service);
+            purge.start();
+            try {
+                new MessengerServer(service, listeners, ingestor, maxSessions).serve(Integer.parseInt(args[3]));
+            } finally {
+                purge.close();
+                ingestor.close();
+                for (MessageListener listener : listeners)
+                    listener.close();
+                service.close();
+            }
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+        }
+    }//end main
+}//end MessengerServer
@@ -0,0 +1,609 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Thread-safe entry point to the Messenger data access operations. Every
+ * call borrows a connection from the pool, runs the matching Messenger
+ * instance method on it and hands the connection back, so any number of
+ * sessions can share one service while only the pool's connections are
+ * ever open.
+ *
+ * With a ReplicaRouter, the browse and history reads (contacts, block
+ * list, chat list, history pages and search) go to a replica that is
+ * fresh enough and has the reading user's own writes; everything else,
+ * including the membership and ownership checks, stays on the primary.
+ *
+ * With a ShardRouter, the pool is the global node holding the users and
+ * their lists, and every chat operation goes to the shard holding the
+ * chat. Operations that span chats (the chat list, search, edits and
+ * deletions by msg_id) are sent to all shards in parallel and their
+ * results merged. Replicas are not used together with shards.
+ *
+ * On a single node, block lists are enforced by triggers (see
+ * create_triggers.sql). The shards do not have the lists, so there the
+ * members of a chat are checked on the global node when they are added;
+ * a block added later does not stop the blocked user's messages to chats
+ * both already share.
+ */
+public class MessengerService {
+
+    private final ConnectionPool _pool;
+    private final ReplicaRouter _router;
+    private final ShardRouter _shards;
+
+    /**
+     * A unit of work run on a borrowed connection.
+     */
+    private interface Work<T> {
+        T run(Messenger esql) throws SQLException;
+    }
+
+    public MessengerService(ConnectionPool pool) {
+        this(pool, null);
+    }
+
+    /**
+     * @param router routes reads to replicas; null to use only the primary
+     */
+    public MessengerService(ConnectionPool pool, ReplicaRouter router) {
+        this(pool, router, null);
+    }
+
+    /**
+     * @param shards places the chats on shards; null to keep them in the pool
+     */
+    public MessengerService(ConnectionPool pool, ReplicaRouter router, ShardRouter shards) {
+        if (router != null && shards != null)
+            throw new IllegalArgumentException("replicas cannot be used with shards");
+        this._pool = pool;
+        this._router = router;
+        this._shards = shards;
+    }
+
+    private <T> T withConnection(Work<T> work) throws SQLException {
+        return withConnection(_pool, work);
+    }
+
+    /**
+     * Runs the work on a pooled connection and returns the connection
+     * afterwards, checking its health first if the work failed.
+     */
+    private static <T> T withConnection(ConnectionPool pool, Work<T> work) throws SQLException {
+        Messenger esql = pool.borrow();
+        boolean ok = false;
+        try {
+            T result = work.run(esql);
+            ok = true;
+            return result;
+        } finally {
+            if (ok)
+                pool.release(esql);
+            else
+                pool.releaseAfterError(esql);
+        }
+    }//end withConnection
+
+    /**
+     * Runs a write on the primary and records it for the writer's
+     * read-your-writes. Recording it does not fail the write, which is
+     * committed by then (see ReplicaRouter.noteWrite).
+     */
+    private <T> T withWrite(final String login, final Work<T> work) throws SQLException {
+        if (_router == null)
+            return withConnection(work);
+        return withConnection(new Work<T>() {
+            public T run(Messenger esql) throws SQLException {
+                T result = work.run(esql);
+                _router.noteWrite(esql, login);
+                return result;
+            }
+        });
+    }
+
+    /**
+     * Runs a read on a replica the router picks for the reader, or on the
+     * primary if there is none or the replica fails.
+     */
+    private <T> T withRead(String login, Work<T> work) throws SQLException {
+        ConnectionPool replica = _router == null ? null : _router.pick(login);
+        if (replica != null) {
+            try {
+                return withConnection(replica, work);
+            } catch (SQLException e) {
+                _router.failed(replica);
+            }
+        }
+        return withConnection(work);
+    }//end withRead
+
+    /**
+     * Runs the work on the shard holding the chat, or on the pool without
+     * shards. If it fails and the chat has moved meanwhile (see
+     * ShardRebalancer), it runs once more on the chat's new shard.
+     */
+    private <T> T withChat(int chatId, Work<T> work) throws SQLException {
+        if (_shards == null)
+            return withConnection(work);
+        ConnectionPool pool = _shards.poolFor(chatId);
+        try {
+            return withConnection(pool, work);
+        } catch (SQLException e) {
+            ConnectionPool moved = _shards.refresh(chatId);
+            if (moved == pool)
+                throw e;
+            return withConnection(moved, work);
+        }
+    }//end withChat
+
+    /**
+     * Runs the work on every shard in parallel.
+     *
+     * @return the results, in shard order
+     */
+    private <T> List<T> withEachShard(final Work<T> work) throws SQLException {
+        List<Callable<T>> calls = new ArrayList<Callable<T>>(_shards.shardCount());
+        for (int i = 0; i < _shards.shardCount(); ++i) {
+            final ConnectionPool pool = _shards.shard(i);
+            calls.add(new Callable<T>() {
+                public T call() throws SQLException {
+                    return withConnection(pool, work);
+                }
+            });
+        }
+        return _shards.gather(calls);
+    }//end withEachShard
+
+    private static int sum(List<Integer> counts) {
+        int total = 0;
+        for (int count : counts)
+            total += count;
+        return total;
+    }
+
+    /**
+     * @return the shard holding the chat, 0 without shards
+     */
+    public int shardOf(int chatId) throws SQLException {
+        return _shards == null ? 0 : _shards.shardOf(chatId);
+    }
+
+    public void createUser(final String login, final String password, final String phone) throws SQLException {
+        withWrite(login, new Work<Void>() {
+            public Void run(Messenger esql) throws SQLException {
+                esql.createUser(login, password, phone);
+                return null;
+            }
+        });
+    }
+
+    public boolean logIn(final String login, final String password) throws SQLException {
+        return withConnection(new Work<Boolean>() {
+            public Boolean run(Messenger esql) throws SQLException {
+                return esql.logIn(login, password);
+            }
+        });
+    }
+
+    public boolean userExists(final String login) throws SQLException {
+        return withConnection(new Work<Boolean>() {
+            public Boolean run(Messenger esql) throws SQLException {
+                return esql.userExists(login);
+            }
+        });
+    }
+
+    public int addToContact(final String owner, final String contact) throws SQLException {
+        return withWrite(owner, new Work<Integer>() {
+            public Integer run(Messenger esql) throws SQLException {
+                return esql.addToContact(owner, contact);
+            }
+        });
+    }
+
+    public int addToBlock(final String owner, final String blocked) throws SQLException {
+        return withWrite(owner, new Work<Integer>() {
+            public Integer run(Messenger esql) throws SQLException {
+                return esql.addToBlock(owner, blocked);
+            }
+        });
+    }
+
+    public int deleteFromContact(final String owner, final String contact) throws SQLException {
+        return withWrite(owner, new Work<Integer>() {
+            public Integer run(Messenger esql) throws SQLException {
+                return esql.deleteFromContact(owner, contact);
+            }
+        });
+    }
+
+    public int deleteFromBlock(final String owner, final String blocked) throws SQLException {
+        return withWrite(owner, new Work<Integer>() {
+            public Integer run(Messenger esql) throws SQLException {
+                return esql.deleteFromBlock(owner, blocked);
+            }
+        });
+    }
+
+    public List<List<String>> listContacts(final String login) throws SQLException {
+        return withRead(login, new Work<List<List<String>>>() {
+            public List<List<String>> run(Messenger esql) throws SQLException {
+                return esql.listContacts(login);
+            }
+        });
+    }
+
+    public List<List<String>> listBlocked(final String login) throws SQLException {
+        return withRead(login, new Work<List<List<String>>>() {
+            public List<List<String>> run(Messenger esql) throws SQLException {
+                return esql.listBlocked(login);
+            }
+        });
+    }
+
+    /**
+     * @see Messenger#listChats
+     */
+    public List<List<String>> listChats(final String login) throws SQLException {
+        Work<List<List<String>>> work = new Work<List<List<String>>>() {
+            public List<List<String>> run(Messenger esql) throws SQLException {
+                return esql.listChats(login);
+            }
+        };
+        if (_shards == null)
+            return withRead(login, work);
+        return mergeChats(withEachShard(work));
+    }
+
+    /**
+     * Merges the chat lists of the shards: most recently active first,
+     * with the unread total over all of them.
+     */
+    private static List<List<String>> mergeChats(List<List<List<String>>> lists) {
+        List<List<String>> rows = new ArrayList<List<String>>();
+        long total = 0;
+        for (List<List<String>> list : lists) {
+            for (List<String> row : list) {
+                rows.add(new ArrayList<String>(row));
+                total += Long.parseLong(row.get(1).trim());
+            }
+        }
+        Collections.sort(rows, new Comparator<List<String>>() {
+            public int compare(List<String> a, List<String> b) {
+                // timestamps in the same format sort as text
+                int c = b.get(4).compareTo(a.get(4));
+                return c != 0 ? c : Integer.parseInt(b.get(0).trim()) - Integer.parseInt(a.get(0).trim());
+            }
+        });
+        for (List<String> row : rows)
+            row.set(7, Long.toString(total));
+        return rows;
+    }//end mergeChats
+
+    public List<List<String>> listChatMembers(final int chatId) throws SQLException {
+        return withChat(chatId, new Work<List<List<String>>>() {
+            public List<List<String>> run(Messenger esql) throws SQLException {
+                return esql.listChatMembers(chatId);
+            }
+        });
+    }
+
+    public boolean isChatMember(final int chatId, final String login) throws SQLException {
+        Work<Boolean> work = new Work<Boolean>() {
+            public Boolean run(Messenger esql) throws SQLException {
+                return esql.isChatMember(chatId, login);
+            }
+        };
+        if (_shards == null)
+            return withConnection(work);
+        ConnectionPool pool = _shards.poolFor(chatId);
+        if (withConnection(pool, work))
+            return true;
+        // the chat may have moved since its shard was cached
+        ConnectionPool moved = _shards.refresh(chatId);
+        return moved != pool && withConnection(moved, work);
+    }//end isChatMember
+
+    public boolean isChatOwner(final int chatId, final String login) throws SQLException {
+        return withChat(chatId, new Work<Boolean>() {
+            public Boolean run(Messenger esql) throws SQLException {
+                return esql.isChatOwner(chatId, login);
+            }
+        });
+    }
+
+    /**
+     * With shards, the global node checks the members and allocates the
+     * chat id, then the chat is created on its shard.
+     */
+    public int createChat(final String owner, final List<String> members) throws SQLException {
+        if (_shards == null) {
+            return withWrite(owner, new Work<Integer>() {
+                public Integer run(Messenger esql) throws SQLException {
+                    return esql.createChat(owner, members);
+                }
+            });
+        }
+        final int chatId = withConnection(new Work<Integer>() {
+            public Integer run(Messenger esql) throws SQLException {
+                return esql.allocateChat(owner, members, _shards.shardCount());
+            }
+        });
+        _shards.placed(chatId, chatId % _shards.shardCount());
+        withChat(chatId, new Work<Void>() {
+            public Void run(Messenger esql) throws SQLException {
+                esql.createShardChat(chatId, owner, members);
+                return null;
+            }
+        });
+        return chatId;
+    }//end createChat
+
+    public void addChatMember(final int chatId, final String login) throws SQLException {
+        if (_shards == null) {
+            withConnection(new Work<Void>() {
+                public Void run(Messenger esql) throws SQLException {
+                    esql.addChatMember(chatId, login);
+                    return null;
+                }
+            });
+            return;
+        }
+        final String owner = withChat(chatId, new Work<String>() {
+            public String run(Messenger esql) throws SQLException {
+                return esql.chatOwner(chatId);
+            }
+        });
+        if (owner.length() == 0)
+            throw new SQLException("no such chat: " + chatId);
+        withConnection(new Work<Void>() {
+            public Void run(Messenger esql) throws SQLException {
+                esql.checkChatMember(login, owner);
+                return null;
+            }
+        });
+        withChat(chatId, new Work<Void>() {
+            public Void run(Messenger esql) throws SQLException {
+                esql.addShardChatMember(chatId, login);
+                return null;
+            }
+        });
+    }//end addChatMember
+
+    public int removeChatMember(final int chatId, final String login) throws SQLException {
+        return withChat(chatId, new Work<Integer>() {
+            public Integer run(Messenger esql) throws SQLException {
+                return esql.removeChatMember(chatId, login);
+            }
+        });
+    }
+
+    public void deleteChat(final int chatId) throws SQLException {
+        withChat(chatId, new Work<Void>() {
+            public Void run(Messenger esql) throws SQLException {
+                esql.deleteChatById(chatId);
+                return null;
+            }
+        });
+    }
+
+    public void sendMessage(final int chatId, final String sender, final String text) throws SQLException {
+        if (_shards != null) {
+            withChat(chatId, new Work<Void>() {
+                public Void run(Messenger esql) throws SQLException {
+                    esql.sendMessage(chatId, sender, text);
+                    return null;
+                }
+            });
+            return;
+        }
+        withWrite(sender, new Work<Void>() {
+            public Void run(Messenger esql) throws SQLException {
+                esql.sendMessage(chatId, sender, text);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @param messages rows of (text, sender, chat_id); with shards, all of
+     *        them for chats on one shard (see shardOf)
+     */
+    public void sendMessages(final List<Object[]> messages) throws SQLException {
+        withChat((Integer) messages.get(0)[2], new Work<Void>() {
+            public Void run(Messenger esql) throws SQLException {
+                esql.sendMessages(messages);
+                if (_router != null) {
+                    String[] senders = new String[messages.size()];
+                    for (int i = 0; i < senders.length; ++i)
+                        senders[i] = (String) messages.get(i)[1];
+                    _router.noteWrite(esql, senders);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @param reader the user reading, for read-your-writes
+     */
+    public List<List<String>> pageHistory(String reader, final int chatId, final HistoryCursor before, final int pageSize) throws SQLException {
+        Work<List<List<String>>> work = new Work<List<List<String>>>() {
+            public List<List<String>> run(Messenger esql) throws SQLException {
+                return esql.pageHistory(chatId, before, pageSize);
+            }
+        };
+        return _shards == null ? withRead(reader, work) : withChat(chatId, work);
+    }
+
+    public int markChatRead(final int chatId, final String login) throws SQLException {
+        Work<Integer> work = new Work<Integer>() {
+            public Integer run(Messenger esql) throws SQLException {
+                return esql.markChatRead(chatId, login);
+            }
+        };
+        return _shards == null ? withWrite(login, work) : withChat(chatId, work);
+    }
+
+    public List<List<String>> tailMessages(final int chatId, final TailCursor tail, final int pageSize) throws SQLException {
+        return withChat(chatId, new Work<List<List<String>>>() {
+            public List<List<String>> run(Messenger esql) throws SQLException {
+                return esql.tailMessages(chatId, tail, pageSize);
+            }
+        });
+    }
+
+    public List<List<String>> searchMessages(final String login, final String text, final SearchCursor after, final int pageSize) throws SQLException {
+        Work<List<List<String>>> work = new Work<List<List<String>>>() {
+            public List<List<String>> run(Messenger esql) throws SQLException {
+                return esql.searchMessages(login, text, after, pageSize);
+            }
+        };
+        if (_shards == null)
+            return withRead(login, work);
+        // each shard's page starts after the same cursor, so the best
+        // pageSize of all of them are the next page
+        List<List<String>> rows = new ArrayList<List<String>>();
+        for (List<List<String>> page : withEachShard(work))
+            rows.addAll(page);
+        Collections.sort(rows, new Comparator<List<String>>() {
+            public int compare(List<String> a, List<String> b) {
+                int c = Float.compare(Float.parseFloat(b.get(1).trim()), Float.parseFloat(a.get(1).trim()));
+                return c != 0 ? c : Integer.parseInt(b.get(0).trim()) - Integer.parseInt(a.get(0).trim());
+            }
+        });
+        return rows.size() > pageSize ? new ArrayList<List<String>>(rows.subList(0, pageSize)) : rows;
+    }//end searchMessages
+
+    public int createMessagePartitions(final int monthsAhead) throws SQLException {
+        Work<Integer> work = new Work<Integer>() {
+            public Integer run(Messenger esql) throws SQLException {
+                return esql.createMessagePartitions(monthsAhead);
+            }
+        };
+        int created = withConnection(work);
+        return _shards == null ? created : created + sum(withEachShard(work));
+    }
+
+    public int editMessage(final int msgId, final String sender, final String text) throws SQLException {
+        Work<Integer> work = new Work<Integer>() {
+            public Integer run(Messenger esql) throws SQLException {
+                return esql.editMessageById(msgId, sender, text);
+            }
+        };
+        // message ids are unique across shards
+        return _shards == null ? withWrite(sender, work) : sum(withEachShard(work));
+    }
+
+    public int deleteMessage(final int msgId, final String sender) throws SQLException {
+        Work<Integer> work = new Work<Integer>() {
+            public Integer run(Messenger esql) throws SQLException {
+                return esql.deleteMessageById(msgId, sender);
+            }
+        };
+        return _shards == null ? withWrite(sender, work) : sum(withEachShard(work));
+    }
+
+    /**
+     * With shards, the account is marked deleted on the global node and
+     * its chats and memberships on every shard.
+     */
+    public void deleteAccount(final String login) throws SQLException {
+        Work<Void> work = new Work<Void>() {
+            public Void run(Messenger esql) throws SQLException {
+                esql.deleteAccount(login);
+                return null;
+            }
+        };
+        withConnection(work);
+        if (_shards != null)
+            withEachShard(work);
+    }
+
+    public List<Integer> pendingChatPurges(final int limit) throws SQLException {
+        Work<List<Integer>> work = new Work<List<Integer>>() {
+            public List<Integer> run(Messenger esql) throws SQLException {
+                return esql.pendingChatPurges(limit);
+            }
+        };
+        if (_shards == null)
+            return withConnection(work);
+        List<Integer> chats = new ArrayList<Integer>();
+        for (List<Integer> pending : withEachShard(work))
+            chats.addAll(pending);
+        return chats;
+    }
+
+    public List<String> pendingAccountPurges(final int limit) throws SQLException {
+        return withConnection(new Work<List<String>>() {
+            public List<String> run(Messenger esql) throws SQLException {
+                return esql.pendingAccountPurges(limit);
+            }
+        });
+    }
+
+    public int purgeChatChunk(final int chatId, final int limit) throws SQLException {
+        return withChat(chatId, new Work<Integer>() {
+            public Integer run(Messenger esql) throws SQLException {
+                return esql.purgeChatChunk(chatId, limit);
+            }
+        });
+    }
+
+    public boolean purgeChat(final int chatId) throws SQLException {
+        boolean purged = withChat(chatId, new Work<Boolean>() {
+            public Boolean run(Messenger esql) throws SQLException {
+                return esql.purgeChat(chatId);
+            }
+        });
+        if (purged && _shards != null) {
+            withConnection(new Work<Void>() {
+                public Void run(Messenger esql) throws SQLException {
+                    esql.deleteChatDirectory(chatId);
+                    return null;
+                }
+            });
+        }
+        return purged;
+    }
+
+    public int purgeAccountChunk(final String login, final int limit) throws SQLException {
+        Work<Integer> work = new Work<Integer>() {
+            public Integer run(Messenger esql) throws SQLException {
+                return esql.purgeAccountChunk(login, limit);
+            }
+        };
+        return _shards == null ? withConnection(work) : sum(withEachShard(work));
+    }
+
+    public int pruneMessageChanges(final int days, final int limit) throws SQLException {
+        Work<Integer> work = new Work<Integer>() {
+            public Integer run(Messenger esql) throws SQLException {
+                return esql.pruneMessageChanges(days, limit);
+            }
+        };
+        return _shards == null ? withConnection(work) : sum(withEachShard(work));
+    }
+
+    public boolean purgeAccount(final String login) throws SQLException {
+        return withConnection(new Work<Boolean>() {
+            public Boolean run(Messenger esql) throws SQLException {
+                return esql.purgeAccount(login);
+            }
+        });
+    }
+
+    /**
+     * Closes the pool behind this service and the replica and shard pools.
+     */
+    public void close() {
+        if (_router != null)
+            _router.close();
+        if (_shards != null)
+            _shards.close();
+        _pool.close();
+    }
+}//end MessengerService
@@ -0,0 +1,231 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Latency, row count and error metrics per logical operation (the Query
+ * name, or "sql" for ad-hoc statements), recorded by every execute method
+ * of Messenger and shared by all instances in the JVM.
+ *
+ * Executions slower than the threshold also go to the slow-query log: the
+ * most recent ones are kept in memory for the report, and they are
+ * appended to a file if one is configured. Bound parameters are logged as
+ * their type and length only, and literals in ad-hoc SQL are replaced by
+ * '?', so the log holds no user data.
+ *
+ * Configured with system properties:
+ *   messenger.slow_ms   slow-query threshold in milliseconds (200)
+ *   messenger.slow_log  file the slow queries are appended to
+ *   messenger.metrics   file the report is written to (see export)
+ */
+public class OperationMetrics {
+
+    public static final OperationMetrics SHARED = new OperationMetrics(
+            Long.getLong("messenger.slow_ms", 200),
+            System.getProperty("messenger.slow_log"));
+
+    // slow queries kept for the report
+    private static final int RECENT_SLOW = 50;
+
+    /**
+     * The counters of one operation.
+     */
+    private static class Op {
+        final LatencyHistogram latency = new LatencyHistogram();
+        long rows = 0;
+        long errors = 0;
+    }//end Op
+
+    private final long _slowNanos;
+    private final File _slowLog;
+    private final Map<String, Op> _ops = new TreeMap<String, Op>();
+    private final Deque<String> _recentSlow = new ArrayDeque<String>();
+
+    public OperationMetrics(long slowMillis, String slowLog) {
+        this._slowNanos = slowMillis * 1000000L;
+        this._slowLog = slowLog == null ? null : new File(slowLog);
+    }
+
+    private synchronized Op op(String name) {
+        Op op = _ops.get(name);
+        if (op == null) {
+            op = new Op();
+            _ops.put(name, op);
+        }
+        return op;
+    }
+
+    /**
+     * Records one successful execution.
+     *
+     * @param name the operation
+     * @param start System.nanoTime() before the statement was sent
+     * @param rows the rows returned or affected
+     * @param params the bound parameters, for the slow-query log
+     */
+    public void record(String name, long start, int rows, Object[] params) {
+        long nanos = done(name, start, rows, false);
+        if (nanos >= _slowNanos)
+            slow(name, nanos, rows, redact(params), null);
+    }
+
+    /**
+     * Records one failed execution.
+     */
+    public void error(String name, long start, Object[] params, Exception e) {
+        long nanos = done(name, start, 0, true);
+        if (nanos >= _slowNanos)
+            slow(name, nanos, 0, redact(params), e);
+    }
+
+    /**
+     * Records one execution of ad-hoc SQL under the operation "sql".
+     */
+    public void recordSql(String sql, long start, int rows) {
+        long nanos = done("sql", start, rows, false);
+        if (nanos >= _slowNanos)
+            slow("sql", nanos, rows, redactSql(sql), null);
+    }
+
+    public void errorSql(String sql, long start, Exception e) {
+        long nanos = done("sql", start, 0, true);
+        if (nanos >= _slowNanos)
+            slow("sql", nanos, 0, redactSql(sql), e);
+    }
+
+    /**
+     * @return the latency recorded
+     */
+    private long done(String name, long start, int rows, boolean failed) {
+        long nanos = System.nanoTime() - start;
+        Op op = op(name);
+        op.latency.record(nanos);
+        synchronized (this) {
+            op.rows += rows;
+            if (failed)
+                op.errors++;
+        }
+        return nanos;
+    }
+
+    private void slow(String name, long nanos, int rows, String detail, Exception e) {
+        String line = String.format("%s %s %d us rows=%d %s%s",
+                new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date()),
+                name, nanos / 1000, rows, detail,
+                e == null ? "" : " error=" + e.getClass().getSimpleName());
+        synchronized (_recentSlow) {
+            if (_recentSlow.size() == RECENT_SLOW)
+                _recentSlow.removeFirst();
+            _recentSlow.addLast(line);
+            if (_slowLog != null) {
+                try {
+                    Writer out = new FileWriter(_slowLog, true);
+                    try {
+                        out.write(line + "\n");
+                    } finally {
+                        out.close();
+                    }
+                } catch (IOException ioe) {
+                    // the in-memory log still has it
+                }
+            }
+        }
+    }//end slow
+
+    /**
+     * @return the bound parameters as their types only, e.g.
+     *         "($1=text(5), $2=int)"
+     */
+    static String redact(Object[] params) {
+        if (params == null)
+            return "()";
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < params.length; ++i) {
+            if (i > 0)
+                sb.append(", ");
+            Object p = params[i];
+            sb.append('$').append(i + 1).append('=');
+            if (p == null)
+                sb.append("null");
+            else if (p instanceof Integer || p instanceof Long)
+                sb.append("int");
+            else
+                sb.append("text(").append(p.toString().length()).append(')');
+        }
+        return sb.append(')').toString();
+    }
+
+    /**
+     * @return the statement with its string and number literals replaced
+     */
+    static String redactSql(String sql) {
+        return sql.replaceAll("'(?:[^']|'')*'", "'?'").replaceAll("\\b\\d+(\\.\\d+)?\\b", "?")
+                .replaceAll("\\s+", " ").trim();
+    }
+
+    /**
+     * @return one line per operation with its execution count, errors,
+     *         rows per execution and latency percentiles, followed by the
+     *         most recent slow queries
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-26s %10s %8s %10s %10s %10s %10s %10s %10s%n",
+                "operation", "count", "errors", "rows/op", "mean(us)", "p50(us)", "p99(us)", "p999(us)", "max(us)"));
+        List<Map.Entry<String, Op>> ops;
+        synchronized (this) {
+            ops = new ArrayList<Map.Entry<String, Op>>(_ops.entrySet());
+        }
+        for (Map.Entry<String, Op> e : ops) {
+            Op op = e.getValue();
+            LatencyHistogram h = op.latency;
+            long count = h.count();
+            long rows, errors;
+            synchronized (this) {
+                rows = op.rows;
+                errors = op.errors;
+            }
+            sb.append(String.format("%-26s %10d %8d %10.1f %10.0f %10d %10d %10d %10d%n",
+                    e.getKey(), count, errors, count == 0 ? 0 : (double) rows / count, h.meanMicros(),
+                    h.percentileMicros(0.50), h.percentileMicros(0.99), h.percentileMicros(0.999), h.maxMicros()));
+        }
+        synchronized (_recentSlow) {
+            sb.append(String.format("slow queries (>= %d ms), most recent last:%n", _slowNanos / 1000000));
+            for (String line : _recentSlow)
+                sb.append(line).append(String.format("%n"));
+        }
+        return sb.toString();
+    }//end report
+
+    /**
+     * Writes the report to a file, replacing it only once the new one is
+     * complete so a reader never sees half a report.
+     */
+    public void export(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+        try {
+            out.println("# " + new Date());
+            out.print(report());
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file))
+                throw new IOException("Cannot replace " + file);
+        }
+    }//end export
+}//end OperationMetrics
@@ -0,0 +1,202 @@
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Removes the accounts and chats that were deleted (see deleteAccount and
+ * deleteChatById in Messenger, which only mark them) together with the
+ * rows that reference them.
+ *
+ * Rows go in chunks of at most chunkRows, each its own short transaction
+ * on a pooled connection, with a pause of pauseMillis after every chunk.
+ * No chunk holds locks or a connection for long, so purging a chat with a
+ * million messages does not stall the senders in other chats, and the
+ * pause leaves room for their commits, autovacuum and the replicas.
+ *
+ * A chat goes once its members, messages and archived messages are gone.
+ * An account goes once its memberships, messages and own chats are gone
+ * (deleting the account marked its chats deleted too, and those are purged
+ * first); its block and contact lists go with it. Archived messages of an
+ * account are kept, like the archive keeps any message: they do not
+ * reference the account. Logged message changes (MESSAGE_CHANGE) go once
+ * they are older than MessageCache.CHANGE_RETENTION_DAYS.
+ *
+ * MessengerServer runs the job in the background; it can also be run on
+ * its own (see main), which purges everything pending and exits.
+ */
+public class PurgeJob implements Runnable {
+
+    static final int DEFAULT_CHUNK_ROWS = 1000;
+    static final long DEFAULT_PAUSE_MILLIS = 50;
+
+    // how long the background job sleeps when nothing is pending
+    private static final long IDLE_MILLIS = 10 * 1000;
+
+    // accounts or chats looked up per pass
+    private static final int PENDING_LIMIT = 100;
+
+    private final MessengerService _service;
+    private final int _chunkRows;
+    private final long _pauseMillis;
+
+    private volatile boolean _running = true;
+    private Thread _thread;
+
+    private final AtomicLong _rows = new AtomicLong();
+    private final AtomicLong _chats = new AtomicLong();
+    private final AtomicLong _accounts = new AtomicLong();
+
+    public PurgeJob(MessengerService service) {
+        this(service, DEFAULT_CHUNK_ROWS, DEFAULT_PAUSE_MILLIS);
+    }
+
+    /**
+     * @param chunkRows the most rows deleted by one statement
+     * @param pauseMillis the pause after every chunk
+     */
+    public PurgeJob(MessengerService service, int chunkRows, long pauseMillis) {
+        this._service = service;
+        this._chunkRows = chunkRows;
+        this._pauseMillis = pauseMillis;
+    }
+
+    public synchronized void start() {
+        _thread = new Thread(this, "purge-job");
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    public void run() {
+        while (_running) {
+            try {
+                if (purgePending() == 0)
+                    Thread.sleep(IDLE_MILLIS);
+            } catch (InterruptedException e) {
+                break;
+            } catch (SQLException e) {
+                System.err.println("Purge job: " + e.getMessage());
+                try {
+                    Thread.sleep(IDLE_MILLIS);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+        }
+    }//end run
+
+    /**
+     * Purges what is pending: the deleted chats first, since a deleted
+     * account waits for its own chats, then the expired message changes.
+     *
+     * @return the number of rows, chats and accounts deleted; 0 when
+     *         nothing was pending or nothing could make progress
+     */
+    public int purgePending() throws SQLException, InterruptedException {
+        int done = 0;
+        for (int chatId : _service.pendingChatPurges(PENDING_LIMIT)) {
+            if (!_running)
+                return done;
+            done += purgeChat(chatId);
+        }
+        for (String login : _service.pendingAccountPurges(PENDING_LIMIT)) {
+            if (!_running)
+                return done;
+            done += purgeAccount(login);
+        }
+        int rows;
+        while (_running && (rows = _service.pruneMessageChanges(MessageCache.CHANGE_RETENTION_DAYS, _chunkRows)) > 0) {
+            done += rows;
+            _rows.addAndGet(rows);
+            Thread.sleep(_pauseMillis);
+        }
+        return done;
+    }//end purgePending
+
+    private int purgeChat(int chatId) throws SQLException, InterruptedException {
+        int done = 0;
+        int rows;
+        while (_running && (rows = _service.purgeChatChunk(chatId, _chunkRows)) > 0) {
+            done += rows;
+            _rows.addAndGet(rows);
+            Thread.sleep(_pauseMillis);
+        }
+        if (_running && _service.purgeChat(chatId)) {
+            _chats.incrementAndGet();
+            done++;
+        }
+        return done;
+    }//end purgeChat
+
+    private int purgeAccount(String login) throws SQLException, InterruptedException {
+        int done = 0;
+        int rows;
+        while (_running && (rows = _service.purgeAccountChunk(login, _chunkRows)) > 0) {
+            done += rows;
+            _rows.addAndGet(rows);
+            Thread.sleep(_pauseMillis);
+        }
+        if (_running && _service.purgeAccount(login)) {
+            _accounts.incrementAndGet();
+            done++;
+        }
+        return done;
+    }//end purgeAccount
+
+    /**
+     * @return the rows, chats and accounts purged so far
+     */
+    public String report() {
+        return String.format("purged %d rows, %d chats, %d accounts", _rows.get(), _chats.get(), _accounts.get());
+    }
+
+    /**
+     * Stops the background job after the chunk in progress.
+     */
+    public void close() {
+        _running = false;
+        Thread thread;
+        synchronized (this) {
+            thread = _thread;
+        }
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                // ignored.
+            }
+        }
+    }
+
+    /**
+     * Purges everything pending and exits.
+     *
+     * @param args <dbname> <port> <user> [chunk rows] [pause ms]
+     */
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.err.println(
+                    "Usage: " +
+                    "java [-classpath <classpath>] " +
+                    PurgeJob.class.getName() +
+                    " <dbname> <port> <user> [chunk rows] [pause ms]");
+            return;
+        }
+        MessengerService service = null;
+        try {
+            Class.forName("org.postgresql.Driver").newInstance();
+            int chunkRows = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_CHUNK_ROWS;
+            long pauseMillis = args.length > 4 ? Long.parseLong(args[4]) : DEFAULT_PAUSE_MILLIS;
+            service = new MessengerService(new ConnectionPool(args[0], args[1], args[2], "", 1, 10 * 1000));
+            PurgeJob job = new PurgeJob(service, chunkRows, pauseMillis);
+            while (job.purgePending() > 0)
+                System.out.println(job.report());
+            System.out.println(job.report());
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        } finally {
+            if (service != null)
+                service.close();
+        }
+    }//end main
+}//end PurgeJob
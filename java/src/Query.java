@@ -0,0 +1,175 @@
+/**
+ * Every SQL statement Messenger issues, keyed by the logical operation it
+ * performs. The statements are parameterised so that each one can be
+ * prepared once per connection (see StatementCache) and then executed with
+ * bound values instead of being re-parsed and re-planned on every call.
+ *
+ * The SQL mirrors the queries in queries.sql.
+ */
+public enum Query {
+
+    // account
+    // the user and both of its lists in one atomic statement
+    CREATE_USER("WITH b AS (INSERT INTO USER_LIST(list_type) VALUES ('block') RETURNING list_id), "
+            + "c AS (INSERT INTO USER_LIST(list_type) VALUES ('contact') RETURNING list_id) "
+            + "INSERT INTO USR (phoneNum, login, password, block_list, contact_list) "
+            + "SELECT ?, ?, ?, b.list_id, c.list_id FROM b, c"),
+    LOGIN("SELECT login FROM USR WHERE login = ? AND password = ? AND deleted_at IS NULL"),
+    // an account is only marked deleted; PurgeJob removes it later
+    DELETE_ACCOUNT("UPDATE USR SET deleted_at = now() WHERE login = ? AND deleted_at IS NULL"),
+    DELETE_ACCOUNT_CHATS("UPDATE CHAT SET deleted_at = now() WHERE init_sender = ? AND deleted_at IS NULL"),
+    // the account's memberships and every membership of the chats it owns
+    DELETE_ACCOUNT_MEMBERSHIPS("DELETE FROM CHAT_LIST WHERE member = ? OR chat_id IN (SELECT chat_id FROM CHAT WHERE init_sender = ?)"),
+
+    // contact / block lists
+    ADD_CONTACT("INSERT INTO USER_LIST_CONTAINS SELECT u1.contact_list, u2.login FROM USR u1, USR u2 WHERE u1.login = ? AND u2.login = ? AND u2.deleted_at IS NULL"),
+    ADD_BLOCK("INSERT INTO USER_LIST_CONTAINS SELECT u1.block_list, u2.login FROM USR u1, USR u2 WHERE u1.login = ? AND u2.login = ? AND u2.deleted_at IS NULL"),
+    DELETE_CONTACT("DELETE FROM USER_LIST_CONTAINS WHERE list_member = ? AND list_id = (SELECT contact_list FROM USR WHERE login = ?)"),
+    DELETE_BLOCK("DELETE FROM USER_LIST_CONTAINS WHERE list_member = ? AND list_id = (SELECT block_list FROM USR WHERE login = ?)"),
+    LIST_CONTACTS("SELECT u1.login AS Contacts, u1.status AS Status_Message FROM USER_LIST_CONTAINS con, USR u, USR u1 WHERE u.login = ? AND u.contact_list = con.list_id AND con.list_member = u1.login AND u1.deleted_at IS NULL"),
+    LIST_BLOCKED("SELECT u1.login AS Blocked_Contacts FROM USER_LIST_CONTAINS con, USR u, USR u1 WHERE u.login = ? AND u.block_list = con.list_id AND con.list_member = u1.login"),
+    USER_EXISTS("SELECT login FROM USR WHERE login = ? AND deleted_at IS NULL"),
+    LIST_ALL_USERS("SELECT login, phoneNum, password, status, block_list, contact_list FROM USR WHERE deleted_at IS NULL"),
+
+    // chats
+    LIST_CHATS("SELECT chat_id AS Current_Chats FROM CHAT_LIST WHERE member = ?"),
+    // the user's inbox: chats from CHAT_SUMMARY with the unread count of
+    // each and of all of them (see create_triggers.sql), most recently
+    // active first
+    LIST_CHAT_SUMMARIES("SELECT s.chat_id, greatest(s.message_count - cl.read_count, 0) AS unread, s.member_count AS members, s.message_count AS messages, s.last_activity, s.last_sender, s.last_text, "
+            + "sum(greatest(s.message_count - cl.read_count, 0)) OVER () AS total_unread FROM CHAT_LIST cl, CHAT_SUMMARY s WHERE cl.member = ? AND s.chat_id = cl.chat_id ORDER BY s.last_activity DESC, s.chat_id DESC"),
+    MARK_CHAT_READ("UPDATE CHAT_LIST cl SET read_count = s.message_count, last_read_msg_id = COALESCE(s.last_msg_id, 0) FROM CHAT_SUMMARY s WHERE s.chat_id = cl.chat_id AND cl.chat_id = ? AND cl.member = ?"),
+    IS_CHAT_MEMBER("SELECT member FROM CHAT_LIST WHERE chat_id = ? AND member = ?"),
+    CHAT_OWNER("SELECT init_sender FROM CHAT WHERE chat_id = ? AND deleted_at IS NULL"),
+    LIST_CHAT_MEMBERS("SELECT member FROM CHAT_LIST WHERE chat_id = ?"),
+    // adds nobody if the account is deleted
+    ADD_CHAT_MEMBER("INSERT INTO CHAT_LIST (chat_id, member) SELECT ?, login FROM USR WHERE login = ? AND deleted_at IS NULL"),
+    // the same for the members of a new chat, one login per line; returns
+    // the ones added
+    ADD_CHAT_MEMBERS("INSERT INTO CHAT_LIST (chat_id, member) SELECT ?, login FROM USR WHERE login = ANY (string_to_array(?, chr(10))) AND deleted_at IS NULL RETURNING member"),
+    REMOVE_CHAT_MEMBER("DELETE FROM CHAT_LIST WHERE chat_id = ? AND member = ?"),
+    CREATE_CHAT("INSERT INTO CHAT (chat_type, init_sender) VALUES (?, ?) RETURNING chat_id"),
+    // a chat is marked deleted and loses its members at once; PurgeJob
+    // removes its messages and the chat itself later
+    DELETE_CHAT("UPDATE CHAT SET deleted_at = now() WHERE chat_id = ? AND deleted_at IS NULL"),
+    DELETE_CHAT_MEMBERS("DELETE FROM CHAT_LIST WHERE chat_id = ?"),
+
+    // messages
+    SEND_MESSAGE("INSERT INTO MESSAGE (msg_text, sender_login, chat_id, msg_timestamp) VALUES (?, ?, ?, now())"),
+    PAGE_MESSAGES_LATEST("SELECT m.msg_id, m.msg_timestamp, m.sender_login, m.msg_text FROM MESSAGE m WHERE m.chat_id = ? ORDER BY m.msg_timestamp DESC, m.msg_id DESC LIMIT ?"),
+    PAGE_MESSAGES_BEFORE("SELECT m.msg_id, m.msg_timestamp, m.sender_login, m.msg_text FROM MESSAGE m WHERE m.chat_id = ? AND (m.msg_timestamp, m.msg_id) < (CAST(? AS timestamp), ?) ORDER BY m.msg_timestamp DESC, m.msg_id DESC LIMIT ?"),
+    // messages of a chat from a minute before the newest one seen (see
+    // TailCursor) and after the cursor, oldest first
+    TAIL_MESSAGES("SELECT m.msg_id, m.msg_timestamp, m.sender_login, m.msg_text FROM MESSAGE m WHERE m.chat_id = ? AND m.msg_timestamp >= CAST(? AS timestamp) - interval '1 minute' AND (m.msg_timestamp, m.msg_id) > (CAST(? AS timestamp), ?) ORDER BY m.msg_timestamp, m.msg_id LIMIT ?"),
+    EDIT_MESSAGE("UPDATE MESSAGE SET msg_text = ? WHERE msg_id = ? AND sender_login = ?"),
+    DELETE_MESSAGE("DELETE FROM MESSAGE WHERE msg_id = ? AND sender_login = ?"),
+
+    // archive tier (see create_partitions.sql): the same pages, read from
+    // the partitions detached from MESSAGE
+    PAGE_ARCHIVE_LATEST("SELECT m.msg_id, m.msg_timestamp, m.sender_login, m.msg_text FROM archive.message m WHERE m.chat_id = ? ORDER BY m.msg_timestamp DESC, m.msg_id DESC LIMIT ?"),
+    PAGE_ARCHIVE_BEFORE("SELECT m.msg_id, m.msg_timestamp, m.sender_login, m.msg_text FROM archive.message m WHERE m.chat_id = ? AND (m.msg_timestamp, m.msg_id) < (CAST(? AS timestamp), ?) ORDER BY m.msg_timestamp DESC, m.msg_id DESC LIMIT ?"),
+    CREATE_MESSAGE_PARTITIONS("SELECT create_message_partitions(now(), ?)"),
+
+    // client cache (see MessageCache): in one round trip, the messages of a
+    // chat from a minute before the newest one cached and after the cursor,
+    // oldest first, the edits ('e', with the current text or none if the
+    // message is gone since) and deletions ('d') logged since the given time
+    // less a minute, and the time of the sync ('s')
+    SYNC_CHAT("SELECT * FROM (SELECT CAST('m' AS char(1)) AS kind, m.msg_id, m.msg_timestamp, m.sender_login, m.msg_text FROM MESSAGE m "
+            + "WHERE m.chat_id = ? AND m.msg_timestamp >= CAST(? AS timestamp) - interval '1 minute' AND (m.msg_timestamp, m.msg_id) > (CAST(? AS timestamp), ?) "
+            + "ORDER BY m.msg_timestamp, m.msg_id LIMIT ?) n "
+            + "UNION ALL SELECT c.kind, c.msg_id, c.msg_timestamp, NULL, m.msg_text FROM MESSAGE_CHANGE c "
+            + "LEFT JOIN MESSAGE m ON m.msg_id = c.msg_id AND m.msg_timestamp = c.msg_timestamp "
+            + "WHERE c.chat_id = ? AND c.changed_at >= CAST(? AS timestamp) - interval '1 minute' "
+            + "UNION ALL SELECT 's', 0, CAST(now() AS timestamp), NULL, NULL"),
+    PRUNE_MESSAGE_CHANGES("DELETE FROM MESSAGE_CHANGE WHERE change_id IN (SELECT change_id FROM MESSAGE_CHANGE WHERE changed_at < now() - ? * interval '1 day' ORDER BY change_id LIMIT ?)"),
+
+    // export (see ChatExporter): the live and archived messages of a chat
+    // after the cursor, oldest first, leaving out the last minute so that
+    // a transaction that has not committed yet cannot be skipped
+    EXPORT_MESSAGES("SELECT m.msg_id, m.msg_text, m.msg_timestamp, m.sender_login, m.chat_id FROM ("
+            + "SELECT msg_id, msg_text, msg_timestamp, sender_login, chat_id FROM MESSAGE WHERE chat_id = ? AND msg_timestamp >= CAST(? AS timestamp) AND (msg_timestamp, msg_id) > (CAST(? AS timestamp), ?) "
+            + "UNION ALL SELECT msg_id, msg_text, msg_timestamp, sender_login, chat_id FROM archive.message WHERE chat_id = ? AND msg_timestamp >= CAST(? AS timestamp) AND (msg_timestamp, msg_id) > (CAST(? AS timestamp), ?)) m "
+            + "WHERE m.msg_timestamp < now() - interval '1 minute' ORDER BY m.msg_timestamp, m.msg_id"),
+    // restored messages count as read by every member of their chat: adds
+    // the number restored to each member's read_count, less the ones the
+    // member sent, which unread_message_insert has counted already; the
+    // senders and their counts are passed as lines
+    CREDIT_RESTORED_MESSAGES("UPDATE CHAT_LIST cl SET read_count = cl.read_count + ? - COALESCE((SELECT CAST(s.n AS integer) FROM "
+            + "unnest(string_to_array(?, chr(10)), string_to_array(?, chr(10))) s (member, n) WHERE s.member = cl.member), 0) WHERE cl.chat_id = ?"),
+
+    // full-text search (see create_triggers.sql) over the live and archived
+    // messages of the user's chats, best match first; the page after a
+    // cursor starts strictly after its (rank, msg_id)
+    SEARCH_MESSAGES_FIRST("WITH q AS (SELECT websearch_to_tsquery('english', ?) AS q), c AS (SELECT chat_id FROM CHAT_LIST WHERE member = ?), "
+            + "r AS (SELECT m.msg_id, ts_rank(m.msg_tsv, q.q) AS rank, m.chat_id, m.msg_timestamp, m.sender_login, m.msg_text FROM q, MESSAGE m WHERE m.msg_tsv @@ q.q AND m.chat_id IN (SELECT chat_id FROM c) "
+            + "UNION ALL SELECT m.msg_id, ts_rank(m.msg_tsv, q.q), m.chat_id, m.msg_timestamp, m.sender_login, m.msg_text FROM q, archive.message m WHERE m.msg_tsv @@ q.q AND m.chat_id IN (SELECT chat_id FROM c)) "
+            + "SELECT * FROM r ORDER BY r.rank DESC, r.msg_id DESC LIMIT ?"),
+    SEARCH_MESSAGES_AFTER("WITH q AS (SELECT websearch_to_tsquery('english', ?) AS q), c AS (SELECT chat_id FROM CHAT_LIST WHERE member = ?), "
+            + "r AS (SELECT m.msg_id, ts_rank(m.msg_tsv, q.q) AS rank, m.chat_id, m.msg_timestamp, m.sender_login, m.msg_text FROM q, MESSAGE m WHERE m.msg_tsv @@ q.q AND m.chat_id IN (SELECT chat_id FROM c) "
+            + "UNION ALL SELECT m.msg_id, ts_rank(m.msg_tsv, q.q), m.chat_id, m.msg_timestamp, m.sender_login, m.msg_text FROM q, archive.message m WHERE m.msg_tsv @@ q.q AND m.chat_id IN (SELECT chat_id FROM c)) "
+            + "SELECT * FROM r WHERE (r.rank, r.msg_id) < (CAST(? AS real), ?) ORDER BY r.rank DESC, r.msg_id DESC LIMIT ?"),
+
+    // sharding (see ShardRouter): the chat directory on the global node,
+    // and the chat writes a shard takes once the global node has checked
+    // the members. A new chat goes to shard chat_id % <shards>.
+    DIRECTORY_CREATE_CHAT("INSERT INTO CHAT_DIRECTORY (chat_id, shard) SELECT n.id, n.id % ? FROM (SELECT nextval('chat_directory_chat_id_seq') AS id) n RETURNING chat_id"),
+    DIRECTORY_SHARD("SELECT shard FROM CHAT_DIRECTORY WHERE chat_id = ?"),
+    DIRECTORY_DELETE_CHAT("DELETE FROM CHAT_DIRECTORY WHERE chat_id = ?"),
+    // a user may join a chat unless the account is deleted or it has
+    // blocked the chat's owner (block_check_chat_member on a single node)
+    CHAT_MEMBER_ALLOWED("SELECT 1 FROM USR u, USR o WHERE u.login = ? AND o.login = ? AND u.deleted_at IS NULL "
+            + "AND NOT EXISTS (SELECT 1 FROM USER_LIST_CONTAINS c WHERE c.list_id = u.block_list AND c.list_member = o.login)"),
+    CREATE_SHARD_CHAT("INSERT INTO CHAT (chat_id, chat_type, init_sender) VALUES (?, ?, ?)"),
+    ADD_SHARD_CHAT_MEMBER("INSERT INTO CHAT_LIST (chat_id, member) VALUES (?, ?)"),
+    ADD_SHARD_CHAT_MEMBERS("INSERT INTO CHAT_LIST (chat_id, member) SELECT ?, unnest(string_to_array(?, chr(10)))"),
+
+    // purge (see PurgeJob): one bounded chunk per statement, oldest
+    // deletion first
+    PURGE_PENDING_CHATS("SELECT chat_id FROM CHAT WHERE deleted_at IS NOT NULL ORDER BY deleted_at LIMIT ?"),
+    PURGE_PENDING_ACCOUNTS("SELECT login FROM USR WHERE deleted_at IS NOT NULL ORDER BY deleted_at LIMIT ?"),
+    PURGE_CHAT_MESSAGES("DELETE FROM MESSAGE WHERE (msg_id, msg_timestamp) IN (SELECT msg_id, msg_timestamp FROM MESSAGE WHERE chat_id = ? LIMIT ?)"),
+    PURGE_CHAT_ARCHIVED_MESSAGES("DELETE FROM archive.message WHERE (msg_id, msg_timestamp) IN (SELECT msg_id, msg_timestamp FROM archive.message WHERE chat_id = ? LIMIT ?)"),
+    PURGE_CHAT_MEMBERS("DELETE FROM CHAT_LIST WHERE (chat_id, member) IN (SELECT chat_id, member FROM CHAT_LIST WHERE chat_id = ? LIMIT ?)"),
+    PURGE_CHAT("DELETE FROM CHAT c WHERE c.chat_id = ? AND c.deleted_at IS NOT NULL "
+            + "AND NOT EXISTS (SELECT 1 FROM MESSAGE m WHERE m.chat_id = c.chat_id) "
+            + "AND NOT EXISTS (SELECT 1 FROM CHAT_LIST cl WHERE cl.chat_id = c.chat_id)"),
+    PURGE_ACCOUNT_MEMBERSHIPS("DELETE FROM CHAT_LIST WHERE (chat_id, member) IN (SELECT chat_id, member FROM CHAT_LIST WHERE member = ? LIMIT ?)"),
+    PURGE_ACCOUNT_MESSAGES("DELETE FROM MESSAGE WHERE (msg_id, msg_timestamp) IN (SELECT msg_id, msg_timestamp FROM MESSAGE WHERE sender_login = ? LIMIT ?)"),
+    // the account once nothing references it, then its two lists (and
+    // with them the entries of its lists); the entries naming it go by
+    // ON DELETE CASCADE
+    PURGE_ACCOUNT("WITH u AS (DELETE FROM USR u WHERE u.login = ? AND u.deleted_at IS NOT NULL "
+            + "AND NOT EXISTS (SELECT 1 FROM CHAT c WHERE c.init_sender = u.login) "
+            + "AND NOT EXISTS (SELECT 1 FROM MESSAGE m WHERE m.sender_login = u.login) "
+            + "AND NOT EXISTS (SELECT 1 FROM CHAT_LIST cl WHERE cl.member = u.login) "
+            + "RETURNING u.block_list, u.contact_list) "
+            + "DELETE FROM USER_LIST l USING u WHERE l.list_id IN (u.block_list, u.contact_list)"),
+
+    // round trip that makes the driver read pending notifications
+    PING("SELECT 1"),
+
+    // replication positions for ReplicaRouter (NULL replay on a primary)
+    CURRENT_WAL_LSN("SELECT CAST(pg_current_wal_lsn() AS text)"),
+    REPLAY_LSN("SELECT CAST(pg_last_wal_replay_lsn() AS text)");
+
+    private final String sql;
+
+    Query(String sql) {
+        this.sql = sql;
+    }
+
+    /**
+     * @return the parameterised SQL text for this operation
+     */
+    public String sql() {
+        return sql;
+    }
+
+    /**
+     * @return the name used for this operation in statistics output
+     */
+    public String opName() {
+        return name().toLowerCase();
+    }
+}//end Query
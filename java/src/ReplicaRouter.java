@@ -0,0 +1,276 @@
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Chooses a streaming replica for the read-only operations of
+ * MessengerService, or none, in which case the read goes to the primary.
+ *
+ * A monitor thread samples the primary's WAL position and every replica's
+ * replay position each MONITOR_MILLIS. A replica is used only if it has
+ * replayed everything the primary had written MAX_LAG_MILLIS ago and it
+ * answered its last check; otherwise reads fall back to the primary until
+ * it catches up.
+ *
+ * Read-your-writes: after a user writes, the service records the primary's
+ * WAL position for that user (see noteWrite), and that user's reads only
+ * go to a replica that has replayed at least that far. If the position
+ * cannot be read, the user's reads stay on the primary until any replica
+ * fresh enough to be picked must have the write.
+ *
+ * The replicas are local Postgres instances listed by port in the system
+ * property messenger.replicas, e.g. -Dmessenger.replicas=5433,5434 (see
+ * sql/scripts/create_replica.sh).
+ */
+public class ReplicaRouter implements Runnable {
+
+    static final long MAX_LAG_MILLIS = 1000;
+    private static final long MONITOR_MILLIS = 100;
+
+    /**
+     * A replica and what the monitor last saw of it.
+     */
+    private static class Replica {
+        final ConnectionPool pool;
+        final String name;
+        volatile long replayed = -1;
+        volatile boolean up = false;
+
+        Replica(ConnectionPool pool, String name) {
+            this.pool = pool;
+            this.name = name;
+        }
+    }//end Replica
+
+    private final ConnectionPool _primary;
+    private final List<Replica> _replicas = new ArrayList<Replica>();
+
+    // (time, primary WAL position) samples, oldest first
+    private final Deque<long[]> _samples = new ArrayDeque<long[]>();
+
+    // WAL position of each user's last write, until every replica has it
+    private final Map<String, Long> _lastWrite = new HashMap<String, Long>();
+
+    // time until which a user whose write position is unknown reads from
+    // the primary
+    private final Map<String, Long> _pinnedUntil = new HashMap<String, Long>();
+
+    private int _next = 0;
+    private volatile boolean _running = true;
+    private Thread _thread;
+
+    public ReplicaRouter(ConnectionPool primary) {
+        this._primary = primary;
+    }
+
+    /**
+     * Adds a replica; call before start().
+     */
+    public void addReplica(ConnectionPool pool, String name) {
+        _replicas.add(new Replica(pool, name));
+    }
+
+    /**
+     * @return a started router over the replicas in messenger.replicas, or
+     *         null if the property is not set
+     */
+    static ReplicaRouter fromProperty(ConnectionPool primary, String dbname, String user, int poolSize) {
+        String ports = System.getProperty("messenger.replicas");
+        if (ports == null || ports.trim().length() == 0)
+            return null;
+        ReplicaRouter router = new ReplicaRouter(primary);
+        for (String port : ports.split(",")) {
+            port = port.trim();
+            router.addReplica(new ConnectionPool(dbname, port, user, "", poolSize, 10 * 1000), "replica:" + port);
+        }
+        router.start();
+        return router;
+    }
+
+    public synchronized void start() {
+        _thread = new Thread(this, "replica-monitor");
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    /**
+     * @return the WAL position as a number, -1 for null
+     */
+    static long parseLsn(String lsn) {
+        if (lsn == null)
+            return -1;
+        int slash = lsn.indexOf('/');
+        return (Long.parseLong(lsn.substring(0, slash), 16) << 32) | Long.parseLong(lsn.substring(slash + 1), 16);
+    }
+
+    /**
+     * Records a write by the given users. The write is committed by now, so
+     * this does not fail: if the WAL position cannot be read, the users are
+     * kept on the primary instead.
+     *
+     * @param esql the primary connection the write was committed on
+     */
+    public void noteWrite(Messenger esql, String... logins) {
+        long lsn;
+        try {
+            lsn = esql.currentWalLsn();
+        } catch (SQLException e) {
+            System.err.println("Replica router: WAL position after a write: " + e.getMessage());
+            // a replica picked after this has replayed what the primary had
+            // written MAX_LAG_MILLIS before, by the sample taken then
+            long until = System.currentTimeMillis() + MAX_LAG_MILLIS + MONITOR_MILLIS;
+            synchronized (this) {
+                for (String login : logins)
+                    _pinnedUntil.put(login, until);
+            }
+            return;
+        }
+        synchronized (this) {
+            for (String login : logins) {
+                Long previous = _lastWrite.get(login);
+                if (previous == null || previous < lsn)
+                    _lastWrite.put(login, lsn);
+            }
+        }
+    }
+
+    /**
+     * @return the pool of a replica that is fresh and has the user's last
+     *         write, or null to read from the primary
+     */
+    public synchronized ConnectionPool pick(String login) {
+        Long pinned = login == null ? null : _pinnedUntil.get(login);
+        if (pinned != null) {
+            if (pinned > System.currentTimeMillis())
+                return null;
+            _pinnedUntil.remove(login);
+        }
+        long threshold = freshnessThreshold();
+        Long written = login == null ? null : _lastWrite.get(login);
+        if (written != null)
+            threshold = Math.max(threshold, written);
+        for (int i = 0; i < _replicas.size(); ++i) {
+            Replica replica = _replicas.get((_next + i) % _replicas.size());
+            if (replica.up && replica.replayed >= threshold) {
+                _next = (_next + i + 1) % _replicas.size();
+                return replica.pool;
+            }
+        }
+        return null;
+    }//end pick
+
+    /**
+     * Takes a replica out of rotation after a read on it failed; the next
+     * successful check puts it back.
+     */
+    public void failed(ConnectionPool pool) {
+        for (Replica replica : _replicas)
+            if (replica.pool == pool)
+                replica.up = false;
+    }
+
+    /**
+     * @return the primary WAL position a replica must have replayed to be
+     *         within MAX_LAG_MILLIS, or Long.MAX_VALUE before the first sample
+     */
+    private long freshnessThreshold() {
+        long cutoff = System.currentTimeMillis() - MAX_LAG_MILLIS;
+        long threshold = Long.MAX_VALUE;
+        for (long[] sample : _samples) {
+            if (sample[0] > cutoff && threshold != Long.MAX_VALUE)
+                break;
+            threshold = sample[1];
+        }
+        return threshold;
+    }
+
+    public void run() {
+        while (_running) {
+            try {
+                sample();
+                Thread.sleep(MONITOR_MILLIS);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Takes one sample of the primary and of every replica.
+     */
+    private void sample() {
+        long now = System.currentTimeMillis();
+        try {
+            Messenger esql = _primary.borrow();
+            try {
+                long lsn = esql.currentWalLsn();
+                synchronized (this) {
+                    _samples.addLast(new long[]{now, lsn});
+                    // keep the newest sample that is older than the lag window
+                    while (_samples.size() > 1) {
+                        Iterator<long[]> it = _samples.iterator();
+                        it.next();
+                        if (it.next()[0] > now - MAX_LAG_MILLIS)
+                            break;
+                        _samples.removeFirst();
+                    }
+                }
+            } finally {
+                _primary.release(esql);
+            }
+        } catch (SQLException e) {
+            System.err.println("Replica monitor: primary: " + e.getMessage());
+        }
+
+        long caughtUp = Long.MAX_VALUE;
+        for (Replica replica : _replicas) {
+            Messenger esql = null;
+            try {
+                esql = replica.pool.borrow();
+                replica.replayed = esql.replayLsn();
+                replica.up = replica.replayed >= 0;
+                replica.pool.release(esql);
+            } catch (SQLException e) {
+                if (replica.up)
+                    System.err.println("Replica monitor: " + replica.name + ": " + e.getMessage());
+                replica.up = false;
+                if (esql != null)
+                    replica.pool.releaseAfterError(esql);
+            }
+            caughtUp = Math.min(caughtUp, replica.up ? replica.replayed : -1);
+        }
+
+        // every replica has these writes, so their users read anywhere again
+        synchronized (this) {
+            for (Iterator<Long> it = _lastWrite.values().iterator(); it.hasNext(); )
+                if (it.next() <= caughtUp)
+                    it.remove();
+            for (Iterator<Long> it = _pinnedUntil.values().iterator(); it.hasNext(); )
+                if (it.next() <= now)
+                    it.remove();
+        }
+    }//end sample
+
+    public void close() {
+        _running = false;
+        Thread thread;
+        synchronized (this) {
+            thread = _thread;
+        }
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                // ignored.
+            }
+        }
+        for (Replica replica : _replicas)
+            replica.pool.close();
+    }
+}//end ReplicaRouter
@@ -0,0 +1,289 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Micro-benchmarks for the result materialization helpers in Messenger
+ * (executeQueryAndReturnResult, executeQueryAndPrintResult, ...), run
+ * against a local Postgres loaded with the bundled data.
+ *
+ * Every case is warmed up and then measured over several fixed-time
+ * iterations on one thread. It reports throughput (ops/s) and the bytes
+ * allocated by the JVM per operation. Printing goes to a discarding stream,
+ * so the print cases measure formatting and write calls, not the terminal.
+ *
+ * With -save <file> the results are written as a baseline. With
+ * -baseline <file> they are compared to an earlier run, and the process
+ * exits with status 1 if any case lost more than 10% throughput or
+ * allocates more than 10% more per operation. That makes it the
+ * regression gate for changes to the result mapping code. A case that
+ * fails is reported and the others still run, but the process then exits
+ * with status 2 and writes no baseline, so a failing case cannot drop out
+ * of the gate.
+ */
+public class ResultBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURE_ITERATIONS = 5;
+    private static final long ITERATION_MILLIS = 1000;
+    private static final double TOLERANCE = 0.10;
+
+    // small result: one chat's members; large result: every user
+    static final String SMALL_SQL = "SELECT member FROM CHAT_LIST WHERE chat_id = 0";
+    static final String LARGE_SQL = "SELECT * FROM USR";
+
+    /**
+     * One benchmarked operation.
+     */
+    static abstract class Case {
+        final String name;
+
+        Case(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Runs the operation once.
+         *
+         * @return a value derived from the result, so the work cannot be
+         *         optimized away
+         */
+        abstract long run(Messenger esql) throws SQLException;
+    }//end Case
+
+    /**
+     * The cases run by default. Add a case here for every new result
+     * mapping path.
+     */
+    static List<Case> cases() {
+        List<Case> cases = new ArrayList<Case>();
+        cases.add(new Case("return_small") {
+            long run(Messenger esql) throws SQLException {
+                return esql.executeQueryAndReturnResult(SMALL_SQL).size();
+            }
+        });
+        cases.add(new Case("return_large") {
+            long run(Messenger esql) throws SQLException {
+                return esql.executeQueryAndReturnResult(LARGE_SQL).size();
+            }
+        });
+        cases.add(new Case("return_small_prepared") {
+            long run(Messenger esql) throws SQLException {
+                return esql.executeQueryAndReturnResult(Query.LIST_CHAT_MEMBERS, 0).size();
+            }
+        });
+        cases.add(new Case("print_small") {
+            long run(Messenger esql) throws SQLException {
+                return esql.executeQueryAndPrintResult(SMALL_SQL);
+            }
+        });
+        cases.add(new Case("print_large") {
+            long run(Messenger esql) throws SQLException {
+                return esql.executeQueryAndPrintResult(LARGE_SQL);
+            }
+        });
+        cases.add(new Case("columnar_large") {
+            long run(Messenger esql) throws SQLException {
+                return esql.executeQueryColumnar(Query.LIST_ALL_USERS).rowCount();
+            }
+        });
+        cases.add(new Case("stream_large") {
+            long run(Messenger esql) throws SQLException {
+                final long[] length = {0};
+                esql.forEachRow(Query.LIST_ALL_USERS, new RowHandler() {
+                    public boolean row(ResultRow row) throws SQLException {
+                        length[0] += row.getString(1).length() + row.getInt(5);
+                        return true;
+                    }
+                });
+                return length[0];
+            }
+        });
+        cases.add(new Case("exists") {
+            long run(Messenger esql) throws SQLException {
+                return esql.executeQuery(Query.IS_CHAT_MEMBER, 0, "Judy");
+            }
+        });
+        return cases;
+    }
+
+    /**
+     * Throughput and allocation of one case.
+     */
+    static class Result {
+        final double opsPerSec;
+        final double bytesPerOp;
+
+        Result(double opsPerSec, double bytesPerOp) {
+            this.opsPerSec = opsPerSec;
+            this.bytesPerOp = bytesPerOp;
+        }
+    }//end Result
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    static long sink = 0;
+
+    /**
+     * Runs one fixed-time iteration.
+     *
+     * @return {operations, nanoseconds, bytes allocated}
+     */
+    private static long[] iteration(Case c, Messenger esql) throws SQLException {
+        long ops = 0;
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        long end = start + ITERATION_MILLIS * 1000000L;
+        long now;
+        do {
+            sink += c.run(esql);
+            ops++;
+            now = System.nanoTime();
+        } while (now < end);
+        return new long[]{ops, now - start, allocatedBytes() - bytes};
+    }
+
+    static Result measure(Case c, Messenger esql) throws SQLException {
+        for (int i = 0; i < WARMUP_ITERATIONS; ++i)
+            iteration(c, esql);
+        long ops = 0, nanos = 0, bytes = 0;
+        for (int i = 0; i < MEASURE_ITERATIONS; ++i) {
+            long[] r = iteration(c, esql);
+            ops += r[0];
+            nanos += r[1];
+            bytes += r[2];
+        }
+        return new Result(ops / (nanos / 1e9), (double) bytes / ops);
+    }
+
+    private static Map<String, Result> readBaseline(File file) throws IOException {
+        Map<String, Result> baseline = new LinkedHashMap<String, Result>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] f = line.trim().split("\\s+");
+                if (f.length == 3 && !line.startsWith("#"))
+                    baseline.put(f[0], new Result(Double.parseDouble(f[1]), Double.parseDouble(f[2])));
+            }
+        } finally {
+            reader.close();
+        }
+        return baseline;
+    }
+
+    /**
+     * @param args <dbname> <port> <user> [-save file] [-baseline file] [case ...]
+     */
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.err.println(
+                    "Usage: " +
+                    "java [-classpath <classpath>] " +
+                    ResultBenchmark.class.getName() +
+                    " <dbname> <port> <user> [-save file] [-baseline file] [case ...]");
+            return;
+        }
+        File save = null, baselineFile = null;
+        List<String> only = new ArrayList<String>();
+        for (int i = 3; i < args.length; ++i) {
+            if (args[i].equals("-save"))
+                save = new File(args[++i]);
+            else if (args[i].equals("-baseline"))
+                baselineFile = new File(args[++i]);
+            else
+                only.add(args[i]);
+        }
+
+        PrintStream stdout = System.out;
+        Messenger esql = null;
+        boolean regressed = false;
+        boolean failed = false;
+        try {
+            Class.forName("org.postgresql.Driver").newInstance();
+            String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+            esql = new Messenger(DriverManager.getConnection(url, args[2], ""));
+            Map<String, Result> baseline = baselineFile == null
+                    ? new LinkedHashMap<String, Result>() : readBaseline(baselineFile);
+            Map<String, Result> results = new LinkedHashMap<String, Result>();
+
+            // the print cases write here instead of the terminal
+            System.setOut(new PrintStream(new OutputStream() {
+                public void write(int b) { }
+                public void write(byte[] b, int off, int len) { }
+            }));
+
+            stdout.println(String.format("%-24s %12s %14s %10s %10s",
+                    "case", "ops/s", "bytes/op", "d(ops/s)", "d(bytes)"));
+            for (Case c : cases()) {
+                if (!only.isEmpty() && !only.contains(c.name))
+                    continue;
+                Result r;
+                try {
+                    r = measure(c, esql);
+                } catch (SQLException e) {
+                    stdout.println(String.format("%-24s FAILED: %s", c.name, e.getMessage()));
+                    failed = true;
+                    continue;
+                }
+                results.put(c.name, r);
+                Result b = baseline.get(c.name);
+                String dOps = "", dBytes = "", verdict = "";
+                if (b != null) {
+                    double opsChange = r.opsPerSec / b.opsPerSec - 1;
+                    double bytesChange = b.bytesPerOp == 0 ? 0 : r.bytesPerOp / b.bytesPerOp - 1;
+                    dOps = String.format("%+.1f%%", opsChange * 100);
+                    dBytes = String.format("%+.1f%%", bytesChange * 100);
+                    if (opsChange < -TOLERANCE || bytesChange > TOLERANCE) {
+                        verdict = "  REGRESSION";
+                        regressed = true;
+                    }
+                }
+                stdout.println(String.format("%-24s %12.1f %14.0f %10s %10s%s",
+                        c.name, r.opsPerSec, r.bytesPerOp, dOps, dBytes, verdict));
+            }
+
+            if (save != null && !failed) {
+                PrintWriter out = new PrintWriter(new FileWriter(save));
+                try {
+                    out.println("# case ops/s bytes/op");
+                    for (Map.Entry<String, Result> e : results.entrySet())
+                        out.println(e.getKey() + " " + e.getValue().opsPerSec + " " + e.getValue().bytesPerOp);
+                } finally {
+                    out.close();
+                }
+            }
+        } catch (Exception e) {
+            System.setOut(stdout);
+            System.err.println(e.getMessage());
+            System.exit(2);
+        } finally {
+            System.setOut(stdout);
+            if (esql != null)
+                esql.cleanup();
+        }
+        if (failed) {
+            System.err.println("Benchmark cases failed" + (save != null ? "; no baseline written" : ""));
+            System.exit(2);
+        }
+        if (regressed) {
+            System.err.println("Benchmark regression against " + baselineFile);
+            System.exit(1);
+        }
+    }//end main
+}//end ResultBenchmark
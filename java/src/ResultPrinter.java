@@ -0,0 +1,244 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Prints query results to standard out as aligned columns under a header.
+ *
+ * Output collects in a buffer that is reused for every result and goes to
+ * System.out FLUSH_CHARS at a time, instead of one write per cell. The
+ * column widths come from the header and the first SAMPLE_ROWS rows,
+ * capped at MAX_WIDTH; later rows are streamed with those widths, so a
+ * long value only pushes its own line out of alignment. char(n) padding is
+ * trimmed (see ResultRow).
+ *
+ * With an input to read from, the output stops every pageRows rows until
+ * the user asks for more or stops it; the interactive Messenger menu pages
+ * when it runs at a terminal. Without one everything is printed at once.
+ *
+ * An instance is not thread-safe; Messenger keeps one per connection.
+ */
+public class ResultPrinter {
+
+    // rows read before the column widths are fixed
+    static final int SAMPLE_ROWS = 100;
+
+    // the widest a column is padded to
+    static final int MAX_WIDTH = 40;
+
+    // buffered output written to System.out at once
+    static final int FLUSH_CHARS = 1 << 13;
+
+    // the gap between two columns
+    private static final String GAP = "  ";
+
+    private final BufferedReader _input;
+    private final int _pageRows;
+
+    private final StringBuilder _out = new StringBuilder(2 * FLUSH_CHARS);
+    private final List<String[]> _sample = new ArrayList<String[]>(SAMPLE_ROWS);
+    private String[] _header;
+    private int[] _widths;
+    private int _printed;
+
+    /**
+     * Prints without paging.
+     */
+    public ResultPrinter() {
+        this(null, 0);
+    }
+
+    /**
+     * @param input where the user answers the paging prompt, or null to
+     *        print without paging
+     * @param pageRows the rows printed before each prompt
+     */
+    public ResultPrinter(BufferedReader input, int pageRows) {
+        this._input = pageRows > 0 ? input : null;
+        this._pageRows = pageRows;
+    }
+
+    /**
+     * Prints the rest of a result set, preceded by a header of column names
+     * when there is at least one row.
+     *
+     * @return the number of rows printed
+     */
+    public int print(ResultSet rs) throws SQLException {
+        ResultSetMetaData rsmd = rs.getMetaData();
+        String[] header = new String[rsmd.getColumnCount()];
+        for (int i = 0; i < header.length; ++i)
+            header[i] = rsmd.getColumnName(i + 1);
+        begin(header);
+        try {
+            ResultRow row = new ResultRow(rs);
+            while (rs.next()) {
+                if (_widths == null) {
+                    String[] values = new String[header.length];
+                    for (int i = 0; i < header.length; ++i)
+                        values[i] = row.getString(i + 1);
+                    if (!add(values))
+                        break;
+                } else {
+                    // past the sample, cells go to the buffer as they are read
+                    if (!startRow())
+                        break;
+                    for (int i = 0; i < header.length; ++i)
+                        cell(i, row.getString(i + 1));
+                    endRow();
+                }
+            }
+            return end();
+        } finally {
+            flush();
+        }
+    }//end print
+
+    /**
+     * Prints records in the same layout.
+     *
+     * @param header the column names, or null to print the rows only
+     * @return the number of rows printed
+     */
+    public int print(List<String> header, List<List<String>> rows) {
+        int columns = header != null ? header.size() : rows.isEmpty() ? 0 : rows.get(0).size();
+        begin(header != null ? header.toArray(new String[columns]) : null);
+        try {
+            for (List<String> row : rows)
+                if (!add(row.toArray(new String[row.size()])))
+                    break;
+            return end();
+        } finally {
+            flush();
+        }
+    }//end print
+
+    private void begin(String[] header) {
+        _header = header;
+        _widths = null;
+        _sample.clear();
+        _printed = 0;
+    }
+
+    /**
+     * Takes one row: into the sample while the widths are not fixed yet,
+     * straight to the output after that.
+     *
+     * @return false once the user stopped the output
+     */
+    private boolean add(String[] values) {
+        if (_widths == null) {
+            _sample.add(values);
+            if (_sample.size() == SAMPLE_ROWS)
+                return printSample();
+            return true;
+        }
+        if (!startRow())
+            return false;
+        for (int i = 0; i < values.length; ++i)
+            cell(i, values[i]);
+        endRow();
+        return true;
+    }//end add
+
+    /**
+     * @return the number of rows printed
+     */
+    private int end() {
+        if (_widths == null)
+            printSample();
+        return _printed;
+    }
+
+    /**
+     * Fixes the column widths from the header and the sample and prints
+     * both.
+     *
+     * @return false once the user stopped the output
+     */
+    private boolean printSample() {
+        int columns = _header != null ? _header.length : _sample.isEmpty() ? 0 : _sample.get(0).length;
+        _widths = new int[columns];
+        if (_header != null)
+            for (int i = 0; i < columns; ++i)
+                _widths[i] = Math.min(MAX_WIDTH, _header[i].length());
+        for (String[] values : _sample)
+            for (int i = 0; i < columns && i < values.length; ++i)
+                _widths[i] = Math.min(MAX_WIDTH, Math.max(_widths[i], length(values[i])));
+        if (_header != null && !_sample.isEmpty()) {
+            int total = 0;
+            for (int i = 0; i < columns; ++i) {
+                cell(i, _header[i]);
+                total += _widths[i] + (i > 0 ? GAP.length() : 0);
+            }
+            _out.append('\n');
+            for (int i = 0; i < total; ++i)
+                _out.append('-');
+            _out.append('\n');
+        }
+        try {
+            for (String[] values : _sample) {
+                if (!startRow())
+                    return false;
+                for (int i = 0; i < values.length; ++i)
+                    cell(i, values[i]);
+                endRow();
+            }
+            return true;
+        } finally {
+            _sample.clear();
+        }
+    }//end printSample
+
+    private static int length(String value) {
+        return value == null ? 4 : value.length();
+    }
+
+    /**
+     * Pauses for the user at the end of a page.
+     *
+     * @return false if the user stopped the output
+     */
+    private boolean startRow() {
+        if (_input == null || _printed == 0 || _printed % _pageRows != 0)
+            return true;
+        _out.append("-- ").append(_printed).append(" rows, Enter for more, q to stop --");
+        flush();
+        try {
+            String answer = _input.readLine();
+            return answer != null && !answer.trim().equalsIgnoreCase("q");
+        } catch (IOException e) {
+            return false;
+        }
+    }//end startRow
+
+    private void cell(int column, String value) {
+        if (column > 0)
+            _out.append(GAP);
+        int start = _out.length();
+        _out.append(value);
+        // the last column is not padded
+        if (column < _widths.length - 1)
+            for (int pad = _widths[column] - (_out.length() - start); pad > 0; --pad)
+                _out.append(' ');
+    }
+
+    private void endRow() {
+        _out.append('\n');
+        _printed++;
+        if (_out.length() >= FLUSH_CHARS)
+            flush();
+    }
+
+    private void flush() {
+        if (_out.length() > 0) {
+            System.out.print(_out);
+            _out.setLength(0);
+        }
+        System.out.flush();
+    }
+}//end ResultPrinter
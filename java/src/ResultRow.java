@@ -0,0 +1,75 @@
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+/**
+ * Typed view of the current row of a ResultSet. One instance is reused for
+ * every row of a query, so reading a row allocates nothing beyond the
+ * strings themselves. Integer columns are read as primitives, and the blank
+ * padding of char(n) columns is trimmed here, once, so callers never see it.
+ */
+public class ResultRow {
+
+    private final ResultSet _rs;
+    private final boolean[] _padded;
+
+    public ResultRow(ResultSet rs) throws SQLException {
+        this._rs = rs;
+        ResultSetMetaData rsmd = rs.getMetaData();
+        this._padded = new boolean[rsmd.getColumnCount() + 1];
+        for (int i = 1; i < _padded.length; ++i)
+            _padded[i] = isPadded(rsmd.getColumnTypeName(i));
+    }
+
+    /**
+     * @return true for blank-padded character types, i.e. char(n)
+     */
+    static boolean isPadded(String typeName) {
+        return "bpchar".equals(typeName) || "char".equals(typeName);
+    }
+
+    /**
+     * Strips trailing blanks.
+     */
+    static String rtrim(String value) {
+        if (value == null)
+            return null;
+        int end = value.length();
+        while (end > 0 && value.charAt(end - 1) == ' ')
+            --end;
+        return end == value.length() ? value : value.substring(0, end);
+    }
+
+    public int columnCount() {
+        return _padded.length - 1;
+    }
+
+    /**
+     * @param column the 1-based column index
+     * @return the value, without char(n) padding, or null
+     */
+    public String getString(int column) throws SQLException {
+        String value = _rs.getString(column);
+        return _padded[column] ? rtrim(value) : value;
+    }
+
+    /**
+     * @param column the 1-based column index
+     * @return the value, or 0 if it is null
+     */
+    public int getInt(int column) throws SQLException {
+        return _rs.getInt(column);
+    }
+
+    /**
+     * @param column the 1-based column index
+     * @return the value, or 0 if it is null
+     */
+    public long getLong(int column) throws SQLException {
+        return _rs.getLong(column);
+    }
+
+    public boolean wasNull() throws SQLException {
+        return _rs.wasNull();
+    }
+}//end ResultRow
@@ -0,0 +1,15 @@
+import java.sql.SQLException;
+
+/**
+ * Receives the rows of a streamed query one at a time (see
+ * Messenger.forEachRow). The row object is reused for every row and is only
+ * valid during the call.
+ */
+public interface RowHandler {
+
+    /**
+     * @param row the current row
+     * @return true to keep reading, false to stop after this row
+     */
+    boolean row(ResultRow row) throws SQLException;
+}//end RowHandler
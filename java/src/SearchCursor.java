@@ -0,0 +1,39 @@
+import java.util.List;
+
+/**
+ * Position in a list of search results, used for keyset pagination like
+ * HistoryCursor. Results are ordered best match first by (rank, msg_id); a
+ * cursor holds the key of the last result already shown.
+ *
+ * The rank is kept as the text Postgres returned, which reads back as the
+ * same real, so the next page starts exactly after the last result.
+ */
+public class SearchCursor {
+
+    private final String rank;
+    private final int msgId;
+
+    public SearchCursor(String rank, int msgId) {
+        this.rank = rank;
+        this.msgId = msgId;
+    }
+
+    /**
+     * Builds the cursor that follows the given search result.
+     *
+     * @param row a row of (msg_id, rank, ...) as returned by the search
+     *            queries
+     * @return the cursor positioned after that row
+     */
+    public static SearchCursor after(List<String> row) {
+        return new SearchCursor(row.get(1), Integer.parseInt(row.get(0).trim()));
+    }
+
+    public String getRank() {
+        return rank;
+    }
+
+    public int getMsgId() {
+        return msgId;
+    }
+}//end SearchCursor
@@ -0,0 +1,450 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Moves chats between the shards of a sharded setup (see ShardRouter):
+ *
+ *   status               the number of chats on each shard, and how many
+ *                        of them belong on another one
+ *   move <chat> <shard>  moves one chat to the given shard
+ *   rebalance [chats]    moves up to the given number of chats (all of
+ *                        them by default) that are not on shard
+ *                        chat_id % <shards>, e.g. after adding a shard
+ *
+ * A chat moves with its CHAT, CHAT_SUMMARY, CHAT_LIST, MESSAGE and
+ * archive.message rows. The chat's CHAT row on the old shard stays locked
+ * while they are copied, so new messages and members of the chat wait for
+ * the move (their foreign key check needs the row). Once the copy has
+ * committed, the directory points to the new shard and the old rows are
+ * deleted; the waiting writes then fail and MessengerService retries them
+ * on the new shard. Edits, deletions and read markers of the chat made
+ * during the copy are not carried over, so move chats while they are
+ * quiet.
+ *
+ * archive.message has no default partition, so before the move the new
+ * shard gets the archive partitions it lacks, with the bounds they have
+ * on the old one; a month the new shard still keeps in MESSAGE takes the
+ * chat's archived messages there instead, to be archived with the rest.
+ *
+ * The copied rows are written with session_replication_role = replica, so
+ * the triggers do not count them a second time; that needs a superuser.
+ * The old shard's messages are deleted after the move, CHUNK rows at a
+ * time.
+ */
+public class ShardRebalancer {
+
+    private static final String LOCK_TIMEOUT = "5s";
+
+    // rows per copy batch and per delete on the old shard
+    private static final int CHUNK = 1000;
+
+    // pause between two deletes on the old shard
+    private static final long PAUSE_MILLIS = 20;
+
+    // the tables of a chat copied whole, in order
+    private static final String[] CHAT_TABLES = {"CHAT", "CHAT_SUMMARY", "CHAT_LIST"};
+
+    // the tables of a chat copied and deleted a chunk at a time
+    private static final String[] MESSAGE_TABLES = {"MESSAGE", "archive.message"};
+
+    // the partitions of a partitioned table with their bounds
+    private static final String PARTITIONS =
+            "SELECT c.oid::regclass, pg_get_expr(c.relpartbound, c.oid) FROM pg_inherits i, pg_class c "
+            + "WHERE c.oid = i.inhrelid AND i.inhparent = CAST(? AS regclass) ORDER BY c.relname";
+
+    private final Connection _global;
+    private final Connection[] _shards;
+
+    public ShardRebalancer(Connection global, Connection[] shards) {
+        this._global = global;
+        this._shards = shards;
+    }
+
+    private static void update(Connection connection, String sql) throws SQLException {
+        Statement stmt = connection.createStatement();
+        try {
+            stmt.executeUpdate(sql);
+        } finally {
+            stmt.close();
+        }
+    }
+
+    private static int update(Connection connection, String sql, int chatId) throws SQLException {
+        PreparedStatement stmt = connection.prepareStatement(sql);
+        try {
+            stmt.setInt(1, chatId);
+            return stmt.executeUpdate();
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * @return the name and bound of each partition of the table
+     */
+    private static List<String[]> partitions(Connection connection, String table) throws SQLException {
+        PreparedStatement stmt = connection.prepareStatement(PARTITIONS);
+        try {
+            stmt.setString(1, table);
+            ResultSet rs = stmt.executeQuery();
+            List<String[]> partitions = new ArrayList<String[]>();
+            while (rs.next())
+                partitions.add(new String[]{rs.getString(1), rs.getString(2)});
+            rs.close();
+            return partitions;
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * @return the shard of the chat in the directory, -1 if it is not there
+     */
+    private int shardOf(int chatId) throws SQLException {
+        PreparedStatement stmt = _global.prepareStatement(Query.DIRECTORY_SHARD.sql());
+        try {
+            stmt.setInt(1, chatId);
+            ResultSet rs = stmt.executeQuery();
+            int shard = rs.next() ? rs.getInt(1) : -1;
+            rs.close();
+            return shard;
+        } finally {
+            stmt.close();
+        }
+    }
+
+    public void status() throws SQLException {
+        PreparedStatement stmt = _global.prepareStatement(
+                "SELECT shard, count(*), count(*) FILTER (WHERE shard <> chat_id % ?) "
+                + "FROM CHAT_DIRECTORY GROUP BY shard ORDER BY shard");
+        try {
+            stmt.setInt(1, _shards.length);
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next())
+                System.out.println(String.format("shard %d: %d chats, %d to move", rs.getInt(1), rs.getInt(2), rs.getInt(3)));
+            rs.close();
+        } finally {
+            stmt.close();
+        }
+    }//end status
+
+    /**
+     * Moves up to maxChats chats that are not on shard chat_id % shards.
+     */
+    public void rebalance(int maxChats) throws SQLException {
+        PreparedStatement stmt = _global.prepareStatement(
+                "SELECT chat_id FROM CHAT_DIRECTORY WHERE shard <> chat_id % ? ORDER BY chat_id LIMIT ?");
+        List<Integer> chats = new ArrayList<Integer>();
+        try {
+            stmt.setInt(1, _shards.length);
+            stmt.setInt(2, maxChats);
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next())
+                chats.add(rs.getInt(1));
+            rs.close();
+        } finally {
+            stmt.close();
+        }
+        for (int chatId : chats)
+            move(chatId, chatId % _shards.length);
+        System.out.println("Moved " + chats.size() + " chats");
+    }//end rebalance
+
+    /**
+     * Moves one chat to the given shard.
+     */
+    public void move(int chatId, int to) throws SQLException {
+        int from = shardOf(chatId);
+        if (from < 0)
+            throw new SQLException("chat " + chatId + " is not in the directory");
+        if (from == to)
+            return;
+        if (from >= _shards.length || to >= _shards.length)
+            throw new SQLException("no shard " + Math.max(from, to));
+        Connection src = _shards[from];
+        Connection dst = _shards[to];
+        long start = System.nanoTime();
+        List<String[]> archived = archiveTargets(src, dst);
+        long rows = 0;
+        boolean copied = false;
+        boolean moved = false;
+        src.setAutoCommit(false);
+        dst.setAutoCommit(false);
+        try {
+            update(src, "SET LOCAL lock_timeout = '" + LOCK_TIMEOUT + "'");
+            update(src, "SET LOCAL session_replication_role = replica");
+            lockChat(src, chatId, from);
+            update(dst, "SET LOCAL session_replication_role = replica");
+            for (String table : CHAT_TABLES)
+                rows += copyChatRows(src, dst, table, chatId);
+            rows += copyMessages(src, dst, "MESSAGE", "MESSAGE", chatId);
+            for (String[] partition : archived)
+                rows += copyMessages(src, dst, partition[0], partition[1], chatId);
+            dst.commit();
+            copied = true;
+
+            PreparedStatement stmt = _global.prepareStatement(
+                    "UPDATE CHAT_DIRECTORY SET shard = ? WHERE chat_id = ? AND shard = ?");
+            try {
+                stmt.setInt(1, to);
+                stmt.setInt(2, chatId);
+                stmt.setInt(3, from);
+                if (stmt.executeUpdate() == 0)
+                    throw new SQLException("chat " + chatId + " was moved meanwhile");
+            } finally {
+                stmt.close();
+            }
+            moved = true;
+
+            // with triggers off, the summary does not go by ON DELETE CASCADE
+            for (int i = CHAT_TABLES.length - 1; i >= 0; --i)
+                update(src, "DELETE FROM " + CHAT_TABLES[i] + " WHERE chat_id = ?", chatId);
+            src.commit();
+        } catch (SQLException e) {
+            src.rollback();
+            dst.rollback();
+            if (moved)
+                throw new SQLException("chat " + chatId + " moved to shard " + to
+                        + ", but its rows on shard " + from + " are left: " + e.getMessage());
+            if (copied)
+                deleteChat(dst, chatId);
+            throw e;
+        } finally {
+            src.setAutoCommit(true);
+            dst.setAutoCommit(true);
+        }
+        System.out.println(String.format("Moved chat %d from shard %d to %d: %d rows in %.1f s",
+                chatId, from, to, rows, (System.nanoTime() - start) / 1e9));
+        deleteMessages(src, chatId);
+    }//end move
+
+    /**
+     * Locks the chat's CHAT row until the transaction ends.
+     */
+    private static void lockChat(Connection shard, int chatId, int from) throws SQLException {
+        PreparedStatement stmt = shard.prepareStatement("SELECT chat_id FROM CHAT WHERE chat_id = ? FOR UPDATE");
+        try {
+            stmt.setInt(1, chatId);
+            ResultSet rs = stmt.executeQuery();
+            boolean found = rs.next();
+            rs.close();
+            if (!found)
+                throw new SQLException("chat " + chatId + " is not on shard " + from);
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * @return the number of rows copied
+     */
+    private int copyChatRows(Connection src, Connection dst, String table, int chatId) throws SQLException {
+        PreparedStatement stmt = src.prepareStatement("SELECT * FROM " + table + " WHERE chat_id = ?");
+        try {
+            stmt.setInt(1, chatId);
+            ResultSet rs = stmt.executeQuery();
+            int rows = copy(rs, dst, table, null);
+            rs.close();
+            return rows;
+        } finally {
+            stmt.close();
+        }
+    }//end copyChatRows
+
+    /**
+     * Pairs each archive.message partition of src with the table of dst
+     * its messages go to: archive.message if dst has archived that month,
+     * MESSAGE if dst still has it there, else archive.message once the
+     * partition is created on dst with the same bound, in a transaction of
+     * its own.
+     *
+     * @return the source partition and the target table of each
+     */
+    private static List<String[]> archiveTargets(Connection src, Connection dst) throws SQLException {
+        List<String> present = new ArrayList<String>();
+        for (String[] partition : partitions(dst, "MESSAGE"))
+            present.add(partition[0]);
+        for (String[] partition : partitions(dst, "archive.message"))
+            present.add(partition[0]);
+        List<String[]> targets = new ArrayList<String[]>();
+        for (String[] partition : partitions(src, "archive.message")) {
+            // archive.message_yYYYYmMM
+            String name = partition[0].substring(partition[0].indexOf('.') + 1);
+            String target = "archive.message";
+            if (present.contains(name)) {
+                target = "MESSAGE";
+            } else if (!present.contains(partition[0])) {
+                dst.setAutoCommit(false);
+                try {
+                    update(dst, "SET LOCAL lock_timeout = '" + LOCK_TIMEOUT + "'");
+                    update(dst, "CREATE TABLE " + partition[0] + " PARTITION OF archive.message " + partition[1]);
+                    dst.commit();
+                } catch (SQLException e) {
+                    dst.rollback();
+                    throw e;
+                } finally {
+                    dst.setAutoCommit(true);
+                }
+                System.out.println("Created " + partition[0] + " on the new shard");
+            }
+            targets.add(new String[]{partition[0], target});
+        }
+        return targets;
+    }//end archiveTargets
+
+    /**
+     * Copies the chat's messages from a table of src to a table of dst in
+     * (msg_timestamp, msg_id) order, CHUNK rows at a time.
+     *
+     * @return the number of rows copied
+     */
+    private int copyMessages(Connection src, Connection dst, String table, String target, int chatId) throws SQLException {
+        PreparedStatement stmt = src.prepareStatement("SELECT * FROM " + table
+                + " WHERE chat_id = ? AND (msg_timestamp, msg_id) > (CAST(? AS timestamp), ?)"
+                + " ORDER BY msg_timestamp, msg_id LIMIT " + CHUNK);
+        try {
+            String[] last = {"-infinity", "0"};
+            int total = 0;
+            int rows;
+            do {
+                stmt.setInt(1, chatId);
+                stmt.setString(2, last[0]);
+                stmt.setInt(3, Integer.parseInt(last[1]));
+                ResultSet rs = stmt.executeQuery();
+                rows = copy(rs, dst, target, last);
+                rs.close();
+                total += rows;
+            } while (rows == CHUNK);
+            return total;
+        } finally {
+            stmt.close();
+        }
+    }//end copyMessages
+
+    /**
+     * Inserts the rows of the result set into the same table on dst. The
+     * values go as text, which Postgres converts back to the column types.
+     *
+     * @param last if not null, receives the msg_timestamp and msg_id of
+     *        the last row
+     * @return the number of rows copied
+     */
+    private static int copy(ResultSet rs, Connection dst, String table, String[] last) throws SQLException {
+        ResultSetMetaData meta = rs.getMetaData();
+        int columns = meta.getColumnCount();
+        StringBuilder names = new StringBuilder();
+        StringBuilder values = new StringBuilder();
+        for (int i = 1; i <= columns; ++i) {
+            names.append(i > 1 ? ", " : "").append(meta.getColumnName(i));
+            values.append(i > 1 ? ", ?" : "?");
+        }
+        PreparedStatement insert = dst.prepareStatement(
+                "INSERT INTO " + table + " (" + names + ") VALUES (" + values + ")");
+        try {
+            int rows = 0;
+            while (rs.next()) {
+                for (int i = 1; i <= columns; ++i) {
+                    String value = rs.getString(i);
+                    if (value == null)
+                        insert.setNull(i, Types.VARCHAR);
+                    else
+                        insert.setString(i, value);
+                }
+                insert.addBatch();
+                if (++rows % CHUNK == 0)
+                    insert.executeBatch();
+                if (last != null) {
+                    last[0] = rs.getString("msg_timestamp");
+                    last[1] = rs.getString("msg_id");
+                }
+            }
+            insert.executeBatch();
+            return rows;
+        } finally {
+            insert.close();
+        }
+    }//end copy
+
+    /**
+     * Deletes the messages of a chat that is no longer on this shard, one
+     * short transaction per chunk.
+     */
+    private static void deleteMessages(Connection shard, int chatId) throws SQLException {
+        for (String table : MESSAGE_TABLES) {
+            String sql = "DELETE FROM " + table + " WHERE (msg_id, msg_timestamp) IN (SELECT msg_id, msg_timestamp FROM "
+                    + table + " WHERE chat_id = ? LIMIT " + CHUNK + ")";
+            while (update(shard, sql, chatId) > 0) {
+                try {
+                    Thread.sleep(PAUSE_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }//end deleteMessages
+
+    /**
+     * Removes a copy of a chat from a shard after a failed move.
+     */
+    private static void deleteChat(Connection shard, int chatId) throws SQLException {
+        deleteMessages(shard, chatId);
+        update(shard, "DELETE FROM CHAT_LIST WHERE chat_id = ?", chatId);
+        update(shard, "DELETE FROM CHAT WHERE chat_id = ?", chatId);
+    }
+
+    /**
+     * @param args <dbname> <global port> <user> <shard port>,... status |
+     *             move <chat_id> <shard> | rebalance [chats]
+     */
+    public static void main(String[] args) {
+        if (args.length < 5) {
+            System.err.println(
+                    "Usage: " +
+                    "java [-classpath <classpath>] " +
+                    ShardRebalancer.class.getName() +
+                    " <dbname> <global port> <user> <shard port>,... status | move <chat_id> <shard> | rebalance [chats]");
+            return;
+        }
+        List<Connection> connections = new ArrayList<Connection>();
+        try {
+            Class.forName("org.postgresql.Driver").newInstance();
+            Connection global = DriverManager.getConnection("jdbc:postgresql://localhost:" + args[1] + "/" + args[0], args[2], "");
+            connections.add(global);
+            String[] ports = args[3].split(",");
+            Connection[] shards = new Connection[ports.length];
+            for (int i = 0; i < ports.length; ++i) {
+                shards[i] = DriverManager.getConnection("jdbc:postgresql://localhost:" + ports[i].trim() + "/" + args[0], args[2], "");
+                connections.add(shards[i]);
+            }
+            ShardRebalancer rebalancer = new ShardRebalancer(global, shards);
+            if (args[4].equals("status"))
+                rebalancer.status();
+            else if (args[4].equals("move"))
+                rebalancer.move(Integer.parseInt(args[5]), Integer.parseInt(args[6]));
+            else if (args[4].equals("rebalance"))
+                rebalancer.rebalance(args.length > 5 ? Integer.parseInt(args[5]) : Integer.MAX_VALUE);
+            else
+                throw new IllegalArgumentException("unknown command " + args[4]);
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        } finally {
+            for (Connection connection : connections) {
+                try {
+                    connection.close();
+                } catch (SQLException e) {
+                    // ignored.
+                }
+            }
+        }
+    }//end main
+}//end ShardRebalancer
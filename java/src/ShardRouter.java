@@ -0,0 +1,198 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Places chats on shards for MessengerService. USR, USER_LIST and
+ * USER_LIST_CONTAINS live on the global node (the service's own pool);
+ * every chat lives on one shard together with its CHAT_LIST, MESSAGE,
+ * CHAT_SUMMARY and archived rows.
+ *
+ * The global node keeps the directory of which shard holds which chat
+ * (CHAT_DIRECTORY, see create_chat_directory.sql) and hands out the chat
+ * ids; a new chat goes to shard chat_id % shardCount(). ShardRebalancer
+ * moves chats between shards and updates the directory. Lookups are
+ * cached for DIRECTORY_TTL_MILLIS, so after a move an operation may still
+ * go to the old shard for that long; a write there fails because the chat
+ * is gone and the service retries it on the new shard (see refresh).
+ *
+ * The shards are local Postgres instances listed by port in the system
+ * property messenger.shards, e.g. -Dmessenger.shards=5433,5434; shard i is
+ * the i-th port (see sql/scripts/create_shards.sh).
+ */
+public class ShardRouter {
+
+    static final long DIRECTORY_TTL_MILLIS = 5000;
+
+    // chats whose shard is remembered
+    private static final int DIRECTORY_CACHE_SIZE = 100000;
+
+    private final ConnectionPool _global;
+    private final List<ConnectionPool> _shards = new ArrayList<ConnectionPool>();
+    private final List<String> _ports = new ArrayList<String>();
+
+    // chat id -> (shard, expiry time), least recently used first
+    private final Map<Integer, long[]> _directory = new LinkedHashMap<Integer, long[]>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<Integer, long[]> eldest) {
+            return size() > DIRECTORY_CACHE_SIZE;
+        }
+    };
+
+    // runs the per-shard parts of a scatter-gather
+    private final ExecutorService _gather = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "shard-gather");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * @param global the pool of the node holding the users and the directory
+     */
+    public ShardRouter(ConnectionPool global) {
+        this._global = global;
+    }
+
+    /**
+     * Adds the next shard; call before the router is used.
+     */
+    public void addShard(ConnectionPool pool, String port) {
+        _shards.add(pool);
+        _ports.add(port);
+    }
+
+    /**
+     * @return a router over the shards in messenger.shards, or null if the
+     *         property is not set
+     */
+    static ShardRouter fromProperty(ConnectionPool global, String dbname, String user, int poolSize) {
+        String ports = System.getProperty("messenger.shards");
+        if (ports == null || ports.trim().length() == 0)
+            return null;
+        ShardRouter router = new ShardRouter(global);
+        for (String port : ports.split(",")) {
+            port = port.trim();
+            router.addShard(new ConnectionPool(dbname, port, user, "", poolSize, 10 * 1000), port);
+        }
+        return router;
+    }
+
+    public int shardCount() {
+        return _shards.size();
+    }
+
+    public ConnectionPool shard(int shard) {
+        return _shards.get(shard);
+    }
+
+    /**
+     * @return the port of the shard's server
+     */
+    public String port(int shard) {
+        return _ports.get(shard);
+    }
+
+    /**
+     * @return the shard holding the chat; a chat the directory does not
+     *         know goes to the shard a new chat with its id would go to
+     */
+    public int shardOf(int chatId) throws SQLException {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            long[] entry = _directory.get(chatId);
+            if (entry != null && entry[1] > now)
+                return (int) entry[0];
+        }
+        Messenger esql = _global.borrow();
+        int shard;
+        try {
+            shard = esql.chatShard(chatId);
+        } catch (SQLException e) {
+            _global.releaseAfterError(esql);
+            throw e;
+        }
+        _global.release(esql);
+        if (shard < 0 || shard >= _shards.size())
+            shard = chatId % _shards.size();
+        placed(chatId, shard);
+        return shard;
+    }//end shardOf
+
+    public ConnectionPool poolFor(int chatId) throws SQLException {
+        return _shards.get(shardOf(chatId));
+    }
+
+    /**
+     * Remembers where a chat is, e.g. right after it was created.
+     */
+    public synchronized void placed(int chatId, int shard) {
+        _directory.put(chatId, new long[]{shard, System.currentTimeMillis() + DIRECTORY_TTL_MILLIS});
+    }
+
+    /**
+     * Forgets the cached shard of the chat and looks it up again, after an
+     * operation on it failed.
+     *
+     * @return the pool of the shard now holding the chat
+     */
+    public ConnectionPool refresh(int chatId) throws SQLException {
+        synchronized (this) {
+            _directory.remove(chatId);
+        }
+        return poolFor(chatId);
+    }
+
+    /**
+     * Runs the calls in parallel, one per shard, and waits for all of them.
+     *
+     * @return their results, in the order of the calls
+     * @throws java.sql.SQLException the first failure, once all are done
+     */
+    public <T> List<T> gather(List<Callable<T>> calls) throws SQLException {
+        if (calls.size() == 1) {
+            try {
+                return Collections.singletonList(calls.get(0).call());
+            } catch (SQLException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new SQLException(e.toString());
+            }
+        }
+        List<Future<T>> futures = new ArrayList<Future<T>>(calls.size());
+        for (Callable<T> call : calls)
+            futures.add(_gather.submit(call));
+        List<T> results = new ArrayList<T>(calls.size());
+        SQLException failure = null;
+        for (Future<T> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                if (failure == null)
+                    failure = e.getCause() instanceof SQLException
+                            ? (SQLException) e.getCause() : new SQLException(e.getCause().toString());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("interrupted while waiting for the shards");
+            }
+        }
+        if (failure != null)
+            throw failure;
+        return results;
+    }//end gather
+
+    public void close() {
+        _gather.shutdown();
+        for (ConnectionPool pool : _shards)
+            pool.close();
+    }
+}//end ShardRouter
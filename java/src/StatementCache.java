@@ -0,0 +1,114 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Per-connection registry of prepared statements, keyed by Query. Each
+ * statement is prepared the first time its operation runs and reused with
+ * new bound parameters afterwards. Server-side prepare is switched on so
+ * that Postgres keeps the parsed and planned statement for the lifetime of
+ * the connection.
+ *
+ * The cache also counts executions per statement. The first execution pays
+ * for the parse and plan, so the difference between it and the average of
+ * the later executions gives a rough estimate of the plan time saved.
+ */
+public class StatementCache {
+
+    // the connection all statements in this cache are prepared on
+    private final Connection _connection;
+
+    private final Map<Query, Entry> _statements = new EnumMap<Query, Entry>(Query.class);
+
+    /**
+     * A prepared statement and its usage counters.
+     */
+    private static class Entry {
+        PreparedStatement stmt;
+        long executions = 0;
+        long firstNanos = 0;
+        long reuseNanos = 0;
+    }//end Entry
+
+    public StatementCache(Connection connection) {
+        this._connection = connection;
+    }
+
+    /**
+     * Returns the prepared statement for an operation, preparing it on the
+     * first call.
+     *
+     * @param query the logical operation
+     * @return the prepared statement, ready for binding
+     * @throws java.sql.SQLException when the statement cannot be prepared
+     */
+    public synchronized PreparedStatement get(Query query) throws SQLException {
+        Entry entry = _statements.get(query);
+        if (entry == null) {
+            entry = new Entry();
+            entry.stmt = _connection.prepareStatement(query.sql());
+            if (entry.stmt instanceof org.postgresql.PGStatement) {
+                ((org.postgresql.PGStatement) entry.stmt).setUseServerPrepare(true);
+            }
+            _statements.put(query, entry);
+        }
+        return entry.stmt;
+    }
+
+    /**
+     * Records one execution of an operation.
+     *
+     * @param query the logical operation
+     * @param nanos how long the execution took
+     */
+    public synchronized void record(Query query, long nanos) {
+        Entry entry = _statements.get(query);
+        if (entry == null)
+            return;
+        if (entry.executions == 0)
+            entry.firstNanos = nanos;
+        else
+            entry.reuseNanos += nanos;
+        entry.executions++;
+    }
+
+    /**
+     * @return one line per prepared statement with its execution count,
+     *         reuse ratio and estimated plan time saved
+     */
+    public synchronized String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-22s %10s %8s %12s %12s %14s%n",
+                "operation", "executions", "reuse", "first(us)", "avg(us)", "saved(ms)"));
+        long totalSaved = 0;
+        for (Map.Entry<Query, Entry> e : _statements.entrySet()) {
+            Entry entry = e.getValue();
+            long reuses = Math.max(entry.executions - 1, 0);
+            long avg = reuses == 0 ? 0 : entry.reuseNanos / reuses;
+            long saved = reuses == 0 ? 0 : Math.max(entry.firstNanos - avg, 0) * reuses;
+            totalSaved += saved;
+            double ratio = entry.executions == 0 ? 0 : (double) reuses / entry.executions;
+            sb.append(String.format("%-22s %10d %7.1f%% %12d %12d %14.2f%n",
+                    e.getKey().opName(), entry.executions, ratio * 100,
+                    entry.firstNanos / 1000, avg / 1000, saved / 1e6));
+        }
+        sb.append(String.format("estimated plan time saved: %.2f ms%n", totalSaved / 1e6));
+        return sb.toString();
+    }
+
+    /**
+     * Closes every cached statement.
+     */
+    public synchronized void close() {
+        for (Entry entry : _statements.values()) {
+            try {
+                entry.stmt.close();
+            } catch (SQLException e) {
+                // ignored.
+            }
+        }
+        _statements.clear();
+    }
+}//end StatementCache
@@ -0,0 +1,65 @@
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Position of a reader following the new messages of a chat (see
+ * Messenger.tailMessages).
+ *
+ * A message carries the time its transaction started, and a batch of sends
+ * (see MessageIngestor) can commit after a later message is already
+ * visible, so a message may show up behind the newest one seen. The tail
+ * therefore re-reads the last minute before the newest message on every
+ * read and leaves out the ones it already returned, by msg_id.
+ */
+public class TailCursor {
+
+    // timestamp of the newest message seen, as text Postgres returned
+    private String newest;
+
+    // ids of the messages seen in the window of the last read
+    private Set<Integer> seen = new HashSet<Integer>();
+
+    /**
+     * @param latest a row of (msg_id, msg_timestamp, ...) for the newest
+     *               message already shown, or null to start at the beginning
+     *               of the chat
+     */
+    public TailCursor(List<String> latest) {
+        if (latest == null) {
+            this.newest = "-infinity";
+        } else {
+            this.newest = latest.get(1);
+            this.seen.add(Integer.parseInt(latest.get(0).trim()));
+        }
+    }
+
+    /**
+     * @return the timestamp the window of the next read is taken back from
+     */
+    public String getNewest() {
+        return newest;
+    }
+
+    /**
+     * @return whether the message was returned by an earlier read
+     */
+    boolean seen(int msgId) {
+        return seen.contains(msgId);
+    }
+
+    /**
+     * Moves the cursor past a read of the whole window.
+     *
+     * @param window the ids of every message the read found
+     * @param last the newest row the read found, or null if it found none
+     */
+    void advance(Set<Integer> window, List<String> last) {
+        // timestamps as Postgres prints them sort as text
+        if (last != null && last.get(1).compareTo(newest) > 0)
+            newest = last.get(1);
+        // the next window starts no earlier, so what it finds was either
+        // found now or is new
+        seen = window;
+    }
+}//end TailCursor
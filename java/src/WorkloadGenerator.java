@@ -0,0 +1,198 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+
+/**
+ * Writes a synthetic dataset in the same ';' delimited format as data/*.csv,
+ * scaled relative to the bundled data (about 28k users and 5k chats at
+ * scale 1), and also generates the contact/block lists and messages that the
+ * bundled data lacks. Load the result with BulkLoader.
+ *
+ * The data is skewed the way messaging traffic usually is: a few users are
+ * far more popular than the rest (picked as contacts and chat members more
+ * often), chat sizes follow a power law with most chats of 2-5 members and a
+ * few large groups, and a few chats carry most of the messages.
+ *
+ * The output is deterministic for a given scale and seed.
+ */
+public class WorkloadGenerator {
+
+    private static final int BASE_USERS = 27953;
+    private static final int BASE_CHATS = 5001;
+
+    private static final int CONTACTS_PER_USER = 8;
+    private static final int MESSAGES_PER_CHAT = 40;
+    private static final int MAX_CHAT_SIZE = 500;
+    private static final long HISTORY_MILLIS = 90L * 24 * 3600 * 1000;
+
+    private final int _users;
+    private final int _chats;
+    private final Random _random;
+
+    public WorkloadGenerator(double scale, long seed) {
+        this._users = Math.max((int) (BASE_USERS * scale), 10);
+        this._chats = Math.max((int) (BASE_CHATS * scale), 2);
+        this._random = new Random(seed);
+    }
+
+    /**
+     * @return the login of the i-th generated user
+     */
+    public static String login(int i) {
+        return "user" + i;
+    }
+
+    /**
+     * @return the password of the i-th generated user
+     */
+    public static String password(int i) {
+        return "pw" + i;
+    }
+
+    /**
+     * Picks a user index in [0, users) with a Zipf-like skew: low indexes
+     * are picked far more often.
+     */
+    private int popularUser() {
+        return skewed(_users, 1.2);
+    }
+
+    /**
+     * Inverse transform sampling of a bounded power law over [0, n).
+     */
+    private int skewed(int n, double exponent) {
+        double u = _random.nextDouble();
+        double x = Math.pow(1 - u * (1 - Math.pow(n + 1, 1 - exponent)), 1 / (1 - exponent)) - 1;
+        return (int) Math.min(Math.max(x, 0), n - 1);
+    }
+
+    /**
+     * Writes all files into the given directory.
+     */
+    public void generate(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Cannot create " + dir);
+        long start = System.nanoTime();
+
+        Writer lists = open(dir, "usr_list.csv");
+        Writer users = open(dir, "usr.csv");
+        Writer contains = open(dir, "usr_list_contains.csv");
+        long listRows = 0;
+        try {
+            for (int i = 0; i < _users; ++i) {
+                int block = 2 * i, contact = 2 * i + 1;
+                lists.write(block + ";block\n");
+                lists.write(contact + ";contact\n");
+                users.write(login(i) + ";" + phone(i) + ";" + password(i) + ";status of " + login(i)
+                        + ";" + block + ";" + contact + "\n");
+            }
+            // list members may only reference users, which are all written above
+            for (int i = 0; i < _users; ++i) {
+                Set<Integer> picked = new HashSet<Integer>();
+                int contacts = 1 + _random.nextInt(2 * CONTACTS_PER_USER);
+                for (int c = 0; c < contacts; ++c) {
+                    int other = popularUser();
+                    if (other != i && picked.add(other)) {
+                        // roughly one list entry in twenty is a block
+                        int list = _random.nextInt(20) == 0 ? 2 * i : 2 * i + 1;
+                        contains.write(list + ";" + login(other) + "\n");
+                        listRows++;
+                    }
+                }
+            }
+        } finally {
+            lists.close();
+            users.close();
+            contains.close();
+        }
+
+        Writer chats = open(dir, "chat.csv");
+        Writer members = open(dir, "chat_list.csv");
+        Writer messages = open(dir, "message.csv");
+        long memberRows = 0, messageRows = 0;
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        long now = System.currentTimeMillis();
+        int msgId = 0;
+        try {
+            for (int chat = 0; chat < _chats; ++chat) {
+                int size = 2 + skewed(MAX_CHAT_SIZE - 1, 1.8);
+                int owner = popularUser();
+                chats.write(chat + ";" + (size > 2 ? "group" : "private") + ";" + login(owner) + "\n");
+
+                int[] chatMembers = new int[size];
+                Set<Integer> picked = new HashSet<Integer>();
+                chatMembers[0] = owner;
+                picked.add(owner);
+                int n = 1;
+                for (int attempts = 0; n < size && attempts < size * 4; ++attempts) {
+                    int member = popularUser();
+                    if (picked.add(member))
+                        chatMembers[n++] = member;
+                }
+                for (int m = 0; m < n; ++m)
+                    members.write(chat + ";" + login(chatMembers[m]) + "\n");
+                memberRows += n;
+
+                // busy chats: message volume follows a power law over chats
+                int count = (int) (MESSAGES_PER_CHAT * 20.0 / (1 + skewed(1000, 1.1)));
+                long ts = now - HISTORY_MILLIS;
+                long step = HISTORY_MILLIS / Math.max(count, 1);
+                for (int k = 0; k < count; ++k) {
+                    ts += 1 + (long) (_random.nextDouble() * step);
+                    String sender = login(chatMembers[_random.nextInt(n)]);
+                    messages.write(msgId++ + ";message " + k + " in chat " + chat + ";"
+                            + format.format(new Date(ts)) + ";" + sender + ";" + chat + "\n");
+                }
+                messageRows += count;
+            }
+        } finally {
+            chats.close();
+            members.close();
+            messages.close();
+        }
+
+        System.out.println(String.format(
+                "Generated %d users, %d list entries, %d chats, %d memberships, %d messages in %.1f s",
+                _users, listRows, _chats, memberRows, messageRows, (System.nanoTime() - start) / 1e9));
+    }//end generate
+
+    private static String phone(int i) {
+        return String.format("+1(%03d)%03d-%04d", (i / 10000000) % 1000, (i / 10000) % 1000, i % 10000);
+    }
+
+    private static Writer open(File dir, String name) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(dir, name)), "UTF-8"), 1 << 16);
+    }
+
+    /**
+     * @param args <output dir> [scale] [seed]
+     */
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println(
+                    "Usage: " +
+                    "java [-classpath <classpath>] " +
+                    WorkloadGenerator.class.getName() +
+                    " <output dir> [scale] [seed]");
+            return;
+        }
+        try {
+            double scale = args.length > 1 ? Double.parseDouble(args[1]) : 1;
+            long seed = args.length > 2 ? Long.parseLong(args[2]) : 166;
+            new WorkloadGenerator(scale, seed).generate(new File(args[0]));
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }//end main
+}//end WorkloadGenerator
@@ -16,6 +16,7 @@ browse block list
 
 users in block list will not be able to send you messages
 you are unable to add user to chat if you are in their block list
+(enforced by the block_check_* triggers in sql/src/create_triggers.sql)
 
 */
 SELECT u1.login AS Blocked_Contacts
@@ -56,18 +57,27 @@ FROM
 WHERE u2.login = 'Cecil.Gaylord';
 
 /*
-delete acc
-check if other records refer to acc preventing deletion. like for a chat.
-ex: chat foreign key init_sender refers to deleted acc (bad situation)
-use trigger perhaps to check for chats of init_sender = usr.login and prevent deletion
+delete acc: mark it and its own chats deleted and drop their memberships,
+in one transaction; PurgeJob removes the rows referencing it later
 */
-DELETE FROM Usr
-WHERE login = 'Norma';
+BEGIN;
+UPDATE USR SET deleted_at = now() WHERE login = 'Norma' AND deleted_at IS NULL;
+UPDATE CHAT SET deleted_at = now() WHERE init_sender = 'Norma' AND deleted_at IS NULL;
+DELETE FROM CHAT_LIST WHERE member = 'Norma'
+OR chat_id IN (SELECT chat_id FROM CHAT WHERE init_sender = 'Norma');
+COMMIT;
 
 /*
-delete chat and messages
+delete chat: mark it deleted and drop its members; PurgeJob deletes its
+messages in chunks
 */
-DELETE FROM Message WHERE chat_id = num;
+BEGIN;
+UPDATE CHAT SET deleted_at = now() WHERE chat_id = num AND deleted_at IS NULL;
+DELETE FROM CHAT_LIST WHERE chat_id = num;
+COMMIT;
+/*then, repeated until no rows are left, pausing between chunks*/
+DELETE FROM MESSAGE WHERE (msg_id, msg_timestamp) IN
+(SELECT msg_id, msg_timestamp FROM MESSAGE WHERE chat_id = num LIMIT 1000);
 /*
 browse current chats
 */
@@ -76,13 +86,115 @@ FROM CHAT_LIST chats, USR u1
 WHERE u1.login = 'Norma' AND chats.member = u1.login;
 
 /*
-add chat with initial members
+inbox: every chat with its unread count and the total, in one indexed read
+(read_count is kept by create_triggers.sql)
 */
-INSERT INTO CHAT VALUES (DEFAULT,'private','Norma');
-/*then*/
-INSERT INTO CHAT_LIST VALUES ('CHAT_ID', 'member');
+SELECT s.chat_id, greatest(s.message_count - cl.read_count, 0) AS unread,
+	s.last_activity, s.last_sender, s.last_text,
+	sum(greatest(s.message_count - cl.read_count, 0)) OVER () AS total_unread
+FROM CHAT_LIST cl, CHAT_SUMMARY s
+WHERE cl.member = 'Norma' AND s.chat_id = cl.chat_id
+ORDER BY s.last_activity DESC, s.chat_id DESC;
+
+/*
+mark a chat read
+*/
+UPDATE CHAT_LIST cl SET read_count = s.message_count, last_read_msg_id = COALESCE(s.last_msg_id, 0)
+FROM CHAT_SUMMARY s WHERE s.chat_id = cl.chat_id AND cl.chat_id = num AND cl.member = 'Norma';
+
+/*
+create user with empty block and contact lists, in one statement
+*/
+WITH b AS (INSERT INTO USER_LIST(list_type) VALUES ('block') RETURNING list_id),
+     c AS (INSERT INTO USER_LIST(list_type) VALUES ('contact') RETURNING list_id)
+INSERT INTO USR (phoneNum, login, password, block_list, contact_list)
+SELECT '+1(000)000-0000', 'Norma', 'password', b.list_id, c.list_id FROM b, c;
+
+/*
+add chat with initial members, in one transaction
+*/
+BEGIN;
+INSERT INTO CHAT (chat_type, init_sender) VALUES ('private', 'Norma') RETURNING chat_id;
+/*then every member in one statement, one login per line*/
+INSERT INTO CHAT_LIST (chat_id, member) SELECT 'CHAT_ID', login FROM USR
+WHERE login = ANY (string_to_array('Norma' || chr(10) || 'member', chr(10))) AND deleted_at IS NULL
+RETURNING member;
+COMMIT;
 /*
 browse messages
-10 at a time chronologically
+10 at a time chronologically, newest first
+first page:
+*/
+SELECT m.msg_id, m.msg_timestamp, m.sender_login, m.msg_text
+FROM MESSAGE m
+WHERE m.chat_id = 0
+ORDER BY m.msg_timestamp DESC, m.msg_id DESC
+LIMIT 10;
+/*
+each earlier page seeks past the last row shown instead of using OFFSET
+*/
+SELECT m.msg_id, m.msg_timestamp, m.sender_login, m.msg_text
+FROM MESSAGE m
+WHERE m.chat_id = 0
+AND (m.msg_timestamp, m.msg_id) < ('LAST_TIMESTAMP', LAST_MSG_ID)
+ORDER BY m.msg_timestamp DESC, m.msg_id DESC
+LIMIT 10;
+/*
+search messages in the user's chats, best match first, 10 at a time
+first page:
+*/
+WITH q AS (SELECT websearch_to_tsquery('english', 'SEARCH_TEXT') AS q),
+c AS (SELECT chat_id FROM CHAT_LIST WHERE member = 'Norma'),
+r AS (
+SELECT m.msg_id, ts_rank(m.msg_tsv, q.q) AS rank, m.chat_id, m.msg_timestamp, m.sender_login, m.msg_text
+FROM q, MESSAGE m
+WHERE m.msg_tsv @@ q.q AND m.chat_id IN (SELECT chat_id FROM c)
+UNION ALL
+SELECT m.msg_id, ts_rank(m.msg_tsv, q.q), m.chat_id, m.msg_timestamp, m.sender_login, m.msg_text
+FROM q, archive.message m
+WHERE m.msg_tsv @@ q.q AND m.chat_id IN (SELECT chat_id FROM c))
+SELECT * FROM r
+ORDER BY r.rank DESC, r.msg_id DESC
+LIMIT 10;
+/*
+each later page adds, before ORDER BY
+WHERE (r.rank, r.msg_id) < (LAST_RANK, LAST_MSG_ID)
+*/
+
+/*
+export a chat's messages oldest first, after the last one exported;
+the last minute is left for the next run
+*/
+SELECT m.msg_id, m.msg_text, m.msg_timestamp, m.sender_login, m.chat_id
+FROM (
+SELECT msg_id, msg_text, msg_timestamp, sender_login, chat_id
+FROM MESSAGE
+WHERE chat_id = 0 AND msg_timestamp >= 'LAST_TIMESTAMP'
+AND (msg_timestamp, msg_id) > ('LAST_TIMESTAMP', LAST_MSG_ID)
+UNION ALL
+SELECT msg_id, msg_text, msg_timestamp, sender_login, chat_id
+FROM archive.message
+WHERE chat_id = 0 AND msg_timestamp >= 'LAST_TIMESTAMP'
+AND (msg_timestamp, msg_id) > ('LAST_TIMESTAMP', LAST_MSG_ID)) m
+WHERE m.msg_timestamp < now() - interval '1 minute'
+ORDER BY m.msg_timestamp, m.msg_id;
+
+/*
+sync a cached chat: the messages from a minute before the newest one
+cached (the client skips those it has), the edits and deletions since the
+last sync, and the time of this sync; each later page of messages starts
+after the last row of the one before
 */
-select * from table order by timestamp desc
+SELECT * FROM (
+SELECT CAST('m' AS char(1)) AS kind, m.msg_id, m.msg_timestamp, m.sender_login, m.msg_text
+FROM MESSAGE m
+WHERE m.chat_id = 0 AND m.msg_timestamp >= 'NEWEST_CACHED' - interval '1 minute'
+AND (m.msg_timestamp, m.msg_id) > ('LAST_TIMESTAMP', LAST_MSG_ID)
+ORDER BY m.msg_timestamp, m.msg_id
+LIMIT 1000) n
+UNION ALL
+SELECT c.kind, c.msg_id, c.msg_timestamp, NULL, m.msg_text
+FROM MESSAGE_CHANGE c LEFT JOIN MESSAGE m ON m.msg_id = c.msg_id AND m.msg_timestamp = c.msg_timestamp
+WHERE c.chat_id = 0 AND c.changed_at >= 'LAST_SYNC' - interval '1 minute'
+UNION ALL
+SELECT 's', 0, CAST(now() AS timestamp), NULL, NULL;
@@ -0,0 +1,6 @@
+#!/bin/bash
+# Adds the per-chat summary behind the chat list to an existing $DB_NAME and
+# fills it from the chats and messages already there.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+psql -p $PGPORT -v ON_ERROR_STOP=1 $DB_NAME < $DIR/../src/create_triggers.sql || exit 1
+psql -p $PGPORT -v ON_ERROR_STOP=1 -c "SELECT refresh_chat_summary()" $DB_NAME || exit 1
@@ -0,0 +1,5 @@
+#!/bin/bash
+# Adds the log of message edits and deletions that caching clients sync
+# from to an existing $DB_NAME while the application keeps running.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+psql -p $PGPORT -v ON_ERROR_STOP=1 $DB_NAME < $DIR/../src/create_triggers.sql || exit 1
@@ -0,0 +1,7 @@
+#!/bin/bash
+# Adds full-text message search to an existing $DB_NAME while the
+# application keeps running.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+psql -p $PGPORT -v ON_ERROR_STOP=1 $DB_NAME < $DIR/../src/add_search.sql || exit 1
+psql -p $PGPORT -v ON_ERROR_STOP=1 $DB_NAME < $DIR/../src/create_triggers.sql || exit 1
+psql -p $PGPORT -v ON_ERROR_STOP=1 $DB_NAME < $DIR/../src/backfill_search.sql || exit 1
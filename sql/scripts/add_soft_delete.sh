@@ -0,0 +1,5 @@
+#!/bin/bash
+# Adds deferred account and chat deletion to an existing $DB_NAME while the
+# application keeps running.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+psql -p $PGPORT -v ON_ERROR_STOP=1 $DB_NAME < $DIR/../src/add_soft_delete.sql || exit 1
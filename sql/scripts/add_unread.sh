@@ -0,0 +1,7 @@
+#!/bin/bash
+# Adds read markers and unread counts to an existing $DB_NAME while the
+# application keeps running; messages sent before count as read.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+psql -p $PGPORT -v ON_ERROR_STOP=1 $DB_NAME < $DIR/../src/add_unread.sql || exit 1
+psql -p $PGPORT -v ON_ERROR_STOP=1 $DB_NAME < $DIR/../src/create_triggers.sql || exit 1
+psql -p $PGPORT -v ON_ERROR_STOP=1 -c "SELECT refresh_unread_counts()" $DB_NAME || exit 1
@@ -0,0 +1,41 @@
+#!/bin/bash
+# Measures what the block check (block_check_message in
+# create_triggers.sql) adds to a send: pgbench sends to a 500-member group
+# chat of $DB_NAME for BENCH_SECONDS seconds with the check and again without it,
+# and the difference in average latency is the cost per send. The chat and
+# its messages are deleted afterwards.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+BENCH_SECONDS=${BENCH_SECONDS:-10}
+
+read CHAT SENDER <<< "$(psql -X -A -t -q -p $PGPORT -v ON_ERROR_STOP=1 $DB_NAME < $DIR/../src/bench_block_check.sql)"
+if [ -z "$SENDER" ]; then
+	echo "No user to send as" >&2
+	exit 1
+fi
+
+cleanup() {
+	psql -X -q -p $PGPORT $DB_NAME <<-SQL
+	ALTER TABLE MESSAGE ENABLE TRIGGER block_check_message;
+	DELETE FROM MESSAGE WHERE chat_id = $CHAT;
+	DELETE FROM CHAT_LIST WHERE chat_id = $CHAT;
+	DELETE FROM CHAT WHERE chat_id = $CHAT;
+	SQL
+}
+trap cleanup EXIT
+
+run() {
+	pgbench -n -M prepared -T $BENCH_SECONDS -p $PGPORT \
+		-D chat=$CHAT -D sender="$SENDER" -f $DIR/../src/bench_block_send.sql $DB_NAME \
+		| awk '/latency average/ { print $4 }'
+}
+
+WITH=$(run) || exit 1
+psql -X -q -p $PGPORT $DB_NAME -c "ALTER TABLE MESSAGE DISABLE TRIGGER block_check_message" || exit 1
+WITHOUT=$(run) || exit 1
+
+echo "chat $CHAT (500 members), sending as $SENDER"
+awk -v with=$WITH -v without=$WITHOUT 'BEGIN {
+	printf "%-24s %10.3f ms\n", "send with block check", with
+	printf "%-24s %10.3f ms\n", "send without", without
+	printf "%-24s %10.3f ms\n", "added per send", with - without
+}'
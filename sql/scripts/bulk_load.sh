@@ -0,0 +1,10 @@
+#!/bin/bash
+# Re-creates the tables and indexes and loads data/*.csv from the client side
+# with BulkLoader (no need for the files to be on the database server).
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+psql -p $PGPORT $DB_NAME < $DIR/../src/create_tables.sql
+psql -p $PGPORT $DB_NAME < $DIR/../src/create_partitions.sql
+psql -p $PGPORT $DB_NAME < $DIR/../src/create_triggers.sql
+psql -p $PGPORT $DB_NAME < $DIR/../src/create_indexes.sql
+javac -d $DIR/../../java/classes $DIR/../../java/src/*.java
+java -cp $DIR/../../java/classes:$DIR/../../java/lib/pg73jdbc3.jar BulkLoader $DB_NAME $PGPORT $USER $DIR/../../data ${LOAD_THREADS:-2}
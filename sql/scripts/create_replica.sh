@@ -0,0 +1,17 @@
+#!/bin/bash
+# Creates a streaming replica of the local server on $PGPORT and starts it
+# on REPLICA_PORT (5433), for trying out read routing:
+#   sql/scripts/create_replica.sh
+#   java -Dmessenger.replicas=5433 ... MessengerServer ...
+# The primary must allow local replication connections (the default
+# pg_hba.conf does) and have wal_level replica or higher.
+REPLICA_PORT=${REPLICA_PORT:-5433}
+REPLICA_DIR=${REPLICA_DIR:-$PWD/replica_$REPLICA_PORT}
+
+if [ -e $REPLICA_DIR ]; then
+	echo "$REPLICA_DIR already exists" >&2
+	exit 1
+fi
+pg_basebackup -p $PGPORT -D $REPLICA_DIR -R -X stream -c fast || exit 1
+pg_ctl -D $REPLICA_DIR -o "-p $REPLICA_PORT" -l $REPLICA_DIR/logfile -w start || exit 1
+psql -X -A -t -p $REPLICA_PORT -c "SELECT 'replica on port $REPLICA_PORT, in recovery: ' || pg_is_in_recovery()" postgres
@@ -0,0 +1,30 @@
+#!/bin/bash
+# Creates SHARDS (2) local Postgres instances on the ports after
+# SHARD_PORT (5440, 5441, ...), each holding an empty $DB_NAME set up as a
+# chat shard, and adds the chat directory to $DB_NAME on $PGPORT, which
+# becomes the global node:
+#   sql/scripts/create_shards.sh
+#   java -Dmessenger.shards=5440,5441 ... MessengerServer $DB_NAME $PGPORT ...
+# Run it on a database that has no chats yet; ShardRebalancer moves chats
+# between the shards later.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+SHARDS=${SHARDS:-2}
+SHARD_PORT=${SHARD_PORT:-5440}
+
+psql -p $PGPORT -v ON_ERROR_STOP=1 $DB_NAME < $DIR/../src/create_chat_directory.sql || exit 1
+for ((i = 0; i < SHARDS; ++i)); do
+	port=$((SHARD_PORT + i))
+	data=$PWD/shard_$port
+	if [ -e $data ]; then
+		echo "$data already exists" >&2
+		exit 1
+	fi
+	initdb -D $data > /dev/null || exit 1
+	pg_ctl -D $data -o "-p $port" -l $data/logfile -w start || exit 1
+	createdb -p $port $DB_NAME || exit 1
+	for f in create_tables create_partitions create_triggers create_indexes; do
+		psql -p $port $DB_NAME < $DIR/../src/$f.sql
+	done
+	psql -p $port -v ON_ERROR_STOP=1 -v shard=$i -v shards=$SHARDS $DB_NAME < $DIR/../src/create_shard.sql || exit 1
+	echo "shard $i on port $port"
+done
@@ -0,0 +1,25 @@
+#!/bin/bash
+# Measures table and index sizes and join latency of $DB_NAME and appends
+# them, labelled, to measure_storage.out. Run it before and after the
+# compact migration to compare:
+#   sql/scripts/measure_storage.sh before
+#   sql/scripts/migrate_compact.sh
+#   sql/scripts/measure_storage.sh after
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+LABEL=${1:-$(date +%Y%m%d-%H%M%S)}
+OUT=$DIR/../../measure_storage.out
+
+psql -X -q -p $PGPORT $DB_NAME -c "VACUUM ANALYZE" || exit 1
+# the first run warms the cache, the second is the one reported
+psql -X -p $PGPORT -v ON_ERROR_STOP=1 $DB_NAME < $DIR/../src/measure_storage.sql > /dev/null || exit 1
+RESULT=$(psql -X -p $PGPORT -v ON_ERROR_STOP=1 $DB_NAME < $DIR/../src/measure_storage.sql) || exit 1
+
+{
+	echo "=== $LABEL"
+	echo "$RESULT" | awk '/^### sizes/ { p = 1; next } /^### / { p = 0 } p'
+	echo "$RESULT" | awk '
+	/^### / { op = $2; next }
+	/Execution [Tt]ime/ { printf "%-28s %10s ms\n", op, $(NF - 1) }
+	'
+	echo
+} | tee -a $OUT
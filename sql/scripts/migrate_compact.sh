@@ -0,0 +1,13 @@
+#!/bin/bash
+# Migrates $DB_NAME from the original char(n) schema to the compact one
+# while the application keeps running (see java/src/CompactMigration.java).
+# PAUSE_MS throttles the backfill between chunks.
+# The copied messages have no search vectors yet; run add_search.sh after.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+CP=$DIR/../../java/classes:$DIR/../../java/lib/pg73jdbc3.jar
+
+javac -d $DIR/../../java/classes $DIR/../../java/src/*.java || exit 1
+java -cp $CP CompactMigration $DB_NAME $PGPORT $USER prepare || exit 1
+psql -p $PGPORT -v ON_ERROR_STOP=1 $DB_NAME < $DIR/../src/create_triggers.sql || exit 1
+java -cp $CP CompactMigration $DB_NAME $PGPORT $USER backfill ${PAUSE_MS:-50} || exit 1
+java -cp $CP CompactMigration $DB_NAME $PGPORT $USER swap || exit 1
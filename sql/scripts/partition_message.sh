@@ -0,0 +1,10 @@
+#!/bin/bash
+# Converts MESSAGE of an existing $DB_NAME into monthly partitions (run the
+# compact migration first if the database still has char(n) columns).
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+psql -p $PGPORT -v ON_ERROR_STOP=1 $DB_NAME < $DIR/../src/create_partitions.sql || exit 1
+psql -p $PGPORT -v ON_ERROR_STOP=1 $DB_NAME < $DIR/../src/partition_message.sql || exit 1
+psql -p $PGPORT -v ON_ERROR_STOP=1 $DB_NAME < $DIR/../src/create_triggers.sql || exit 1
+# messages sent before the triggers were back on the new MESSAGE are not
+# counted yet
+psql -p $PGPORT -v ON_ERROR_STOP=1 -c "SELECT refresh_chat_summary()" $DB_NAME || exit 1
@@ -0,0 +1,48 @@
+#!/bin/bash
+# Builds a scratch database from the bundled data, runs EXPLAIN (ANALYZE,
+# BUFFERS) on every hot query and fails if any of them uses a sequential
+# scan. Plans are kept in verify_indexes.out for inspection.
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+VERIFY_DB=${VERIFY_DB:-${DB_NAME}_verify}
+OUT=$DIR/../../verify_indexes.out
+
+createdb -p $PGPORT $VERIFY_DB 2>/dev/null
+cd $DIR/../..
+psql -q -p $PGPORT $VERIFY_DB < sql/src/create_tables.sql > /dev/null 2>&1
+psql -q -p $PGPORT $VERIFY_DB < sql/src/create_partitions.sql > /dev/null || exit 1
+psql -q -p $PGPORT $VERIFY_DB < sql/src/create_triggers.sql || exit 1
+psql -q -p $PGPORT $VERIFY_DB < sql/src/create_indexes.sql || exit 1
+psql -q -p $PGPORT $VERIFY_DB < sql/src/verify_data.sql > /dev/null || exit 1
+psql -X -p $PGPORT -v ON_ERROR_STOP=1 $VERIFY_DB < sql/src/verify_indexes.sql > $OUT || exit 1
+
+# A sequential scan in a plan fails the check unless it read no buffers at
+# all, which is the case for the empty future partitions of MESSAGE. The
+# unindexed foreign keys reported by verify_indexes.sql are not plan nodes
+# and always fail.
+awk '
+function settle() {
+	if (scan != "" && read) { print "FAIL " op ": " scan; failed = 1 }
+	scan = ""
+}
+scan != "" {
+	if (/->/ || match($0, /[^ ]/) - 1 < indent) settle()
+	else if (/Buffers:/) read = 1
+}
+/^### / { settle(); op = $2; next }
+/unindexed foreign key/ {
+	settle()
+	problem = $0; sub(/^ */, "", problem)
+	print "FAIL " op ": " problem; failed = 1
+	next
+}
+/Seq Scan on/ {
+	indent = index($0, "Seq Scan") - 1
+	scan = $0; sub(/^[ ->]*/, "", scan); read = 0
+}
+END { settle(); exit failed }
+' $OUT
+STATUS=$?
+if [ $STATUS -eq 0 ]; then
+	echo "All hot queries use indexes (plans in $OUT)"
+fi
+exit $STATUS
@@ -0,0 +1,9 @@
+-- Adds full-text search to a database created before it: the msg_tsv
+-- column, its trigger and GIN index on MESSAGE and archive.message. Run by
+-- add_search.sh before create_triggers.sql and backfill_search.sql. Adding
+-- the column is instant, the backfill commits every chunk and the indexes
+-- are built concurrently one partition at a time, so the messenger can
+-- keep running.
+
+ALTER TABLE MESSAGE ADD COLUMN IF NOT EXISTS msg_tsv tsvector;
+ALTER TABLE archive.message ADD COLUMN IF NOT EXISTS msg_tsv tsvector;
@@ -0,0 +1,13 @@
+-- Adds deferred deletion to a database created before it: the deleted_at
+-- columns of USR and CHAT and the indexes PurgeJob uses to find what is
+-- waiting to be purged. Run by add_soft_delete.sh. Adding a nullable
+-- column is instant and the indexes are built concurrently, so the
+-- messenger can keep running.
+
+ALTER TABLE USR ADD COLUMN IF NOT EXISTS deleted_at timestamp;
+ALTER TABLE CHAT ADD COLUMN IF NOT EXISTS deleted_at timestamp;
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS usr_deleted_idx
+	ON USR (deleted_at) WHERE deleted_at IS NOT NULL;
+CREATE INDEX CONCURRENTLY IF NOT EXISTS chat_deleted_idx
+	ON CHAT (deleted_at) WHERE deleted_at IS NOT NULL;
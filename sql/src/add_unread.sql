@@ -0,0 +1,8 @@
+-- Adds read markers to a database created before them: the read_count
+-- and last_read_msg_id columns of CHAT_LIST. Run by add_unread.sh before
+-- create_triggers.sql, which installs the triggers that keep them, after
+-- which everything already sent is marked read. Adding a column with a
+-- constant default is instant, so the messenger can keep running.
+
+ALTER TABLE CHAT_LIST ADD COLUMN IF NOT EXISTS read_count bigint NOT NULL DEFAULT 0;
+ALTER TABLE CHAT_LIST ADD COLUMN IF NOT EXISTS last_read_msg_id integer NOT NULL DEFAULT 0;
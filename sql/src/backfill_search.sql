@@ -0,0 +1,56 @@
+-- Second half of add_search.sql, run once the message_tsv trigger is in
+-- place so that new and edited messages already get their vector.
+
+-- msg_id ranges keep every chunk an index range scan
+DO $$
+DECLARE
+	lo integer;
+	hi integer;
+	chunk integer := 5000;
+BEGIN
+	SELECT min(msg_id), max(msg_id) INTO lo, hi FROM MESSAGE;
+	WHILE lo <= hi LOOP
+		UPDATE MESSAGE SET msg_tsv = to_tsvector('english', msg_text)
+		WHERE msg_id >= lo AND msg_id < lo + chunk AND msg_tsv IS NULL;
+		COMMIT;
+		lo := lo + chunk;
+	END LOOP;
+
+	SELECT min(msg_id), max(msg_id) INTO lo, hi FROM archive.message;
+	WHILE lo <= hi LOOP
+		UPDATE archive.message SET msg_tsv = to_tsvector('english', msg_text)
+		WHERE msg_id >= lo AND msg_id < lo + chunk AND msg_tsv IS NULL;
+		COMMIT;
+		lo := lo + chunk;
+	END LOOP;
+END $$;
+
+-- An index on a partitioned table cannot be built concurrently: create it
+-- on the parent only, build each partition's concurrently and attach them.
+CREATE INDEX IF NOT EXISTS message_text_search_idx
+	ON ONLY MESSAGE USING gin (msg_tsv);
+CREATE INDEX IF NOT EXISTS archive_message_text_search_idx
+	ON ONLY archive.message USING gin (msg_tsv);
+
+SELECT format('CREATE INDEX CONCURRENTLY IF NOT EXISTS %I ON %s USING gin (msg_tsv)',
+	c.relname || '_text_search_idx', c.oid::regclass)
+FROM pg_inherits i, pg_class c
+WHERE c.oid = i.inhrelid AND i.inhparent IN ('message'::regclass, 'archive.message'::regclass)
+ORDER BY c.relname
+\gexec
+
+SELECT format('ALTER INDEX %s ATTACH PARTITION %s',
+	CASE WHEN i.inhparent = 'message'::regclass
+		THEN 'message_text_search_idx' ELSE 'archive.archive_message_text_search_idx' END,
+	quote_ident(n.nspname) || '.' || quote_ident(c.relname || '_text_search_idx'))
+FROM pg_inherits i, pg_class c, pg_namespace n
+WHERE c.oid = i.inhrelid AND n.oid = c.relnamespace
+	AND i.inhparent IN ('message'::regclass, 'archive.message'::regclass)
+	AND NOT EXISTS (SELECT 1 FROM pg_inherits x, pg_class xi
+		WHERE xi.oid = x.inhrelid AND xi.relname = c.relname || '_text_search_idx'
+		AND x.inhparent IN ('message_text_search_idx'::regclass,
+			'archive.archive_message_text_search_idx'::regclass))
+\gexec
+
+ANALYZE MESSAGE;
+ANALYZE archive.message;
@@ -0,0 +1,19 @@
+-- Setup for bench_block_check.sh: a 500-member group chat owned by a user
+-- that nobody has blocked, so every send passes the block check and is
+-- measured in full. Prints "<chat_id> <owner>".
+
+WITH s AS (
+	SELECT u.login FROM USR u
+	WHERE NOT EXISTS (SELECT 1 FROM USER_LIST_CONTAINS b, USR o
+		WHERE b.list_member = u.login AND o.block_list = b.list_id)
+	ORDER BY u.login LIMIT 1),
+c AS (
+	INSERT INTO CHAT (chat_type, init_sender)
+	SELECT 'group', login FROM s
+	RETURNING chat_id, init_sender),
+m AS (
+	INSERT INTO CHAT_LIST (chat_id, member)
+	SELECT c.chat_id, u.login FROM c, USR u
+	WHERE u.login = c.init_sender
+		OR u.login IN (SELECT x.login FROM USR x, s WHERE x.login <> s.login ORDER BY x.login LIMIT 499))
+SELECT chat_id || ' ' || init_sender FROM c;
@@ -0,0 +1,2 @@
+-- One send, as Query.SEND_MESSAGE; run by pgbench from bench_block_check.sh
+INSERT INTO MESSAGE (msg_text, sender_login, chat_id, msg_timestamp) VALUES ('bench', :sender, :chat, now());
@@ -0,0 +1,15 @@
+-- The chat directory of a sharded setup (see java/src/ShardRouter.java),
+-- on the global node: the database created by create_db.sh that keeps
+-- USR, USER_LIST and USER_LIST_CONTAINS. Every chat id is handed out
+-- here, and shard is the index of the shard holding the chat, its
+-- members and its messages. ShardRebalancer updates it when a chat
+-- moves. Every statement can be re-run.
+
+CREATE TABLE IF NOT EXISTS CHAT_DIRECTORY(
+	chat_id serial,
+	shard integer NOT NULL,
+	PRIMARY KEY(chat_id));
+
+-- ShardRebalancer counts and picks the chats of a shard
+CREATE INDEX IF NOT EXISTS chat_directory_shard_idx
+	ON CHAT_DIRECTORY (shard, chat_id);
@@ -0,0 +1,46 @@
+-- Secondary indexes for the queries Messenger issues (see queries.sql and
+-- java/src/Query.java). Primary keys already cover lookups by USR.login,
+-- CHAT.chat_id, CHAT_LIST(chat_id, member), USER_LIST_CONTAINS(list_id, ...)
+-- and MESSAGE.msg_id.
+
+-- chat history is read newest first, one page at a time, by seeking past
+-- the last (msg_timestamp, msg_id) already shown; also serves purging the
+-- messages of a deleted chat
+CREATE INDEX message_chat_history_idx
+	ON MESSAGE (chat_id, msg_timestamp DESC, msg_id DESC);
+
+-- FK to USR: checked when an account is purged; PurgeJob finds the
+-- messages of a deleted account
+CREATE INDEX message_sender_idx
+	ON MESSAGE (sender_login);
+
+-- full-text search over msg_text (see create_triggers.sql for msg_tsv)
+CREATE INDEX message_text_search_idx
+	ON MESSAGE USING gin (msg_tsv);
+
+-- browse current chats (by member); FK to USR
+CREATE INDEX chat_list_member_idx
+	ON CHAT_LIST (member);
+
+-- FK to USR: checked when an account is purged; an account's own chats
+-- are deleted with it
+CREATE INDEX chat_init_sender_idx
+	ON CHAT (init_sender);
+
+-- ON DELETE CASCADE from USR removes the user from everyone's lists; the
+-- block checks (create_triggers.sql) find the lists naming a sender
+CREATE INDEX user_list_contains_member_idx
+	ON USER_LIST_CONTAINS (list_member, list_id);
+
+-- FKs to USER_LIST: checked when a list is deleted
+CREATE INDEX usr_block_list_idx
+	ON USR (block_list);
+CREATE INDEX usr_contact_list_idx
+	ON USR (contact_list);
+
+-- PurgeJob finds the accounts and chats waiting to be purged; only those
+-- rows are in the index
+CREATE INDEX usr_deleted_idx
+	ON USR (deleted_at) WHERE deleted_at IS NOT NULL;
+CREATE INDEX chat_deleted_idx
+	ON CHAT (deleted_at) WHERE deleted_at IS NOT NULL;
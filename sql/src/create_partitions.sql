@@ -0,0 +1,58 @@
+-- Monthly range partitions of MESSAGE (on msg_timestamp) and the archive
+-- tier. Run after create_tables.sql; every statement can be re-run.
+--
+-- Partitions are named message_yYYYYmMM. MessageArchiver detaches old ones
+-- into the archive schema, where they become partitions of
+-- archive.message, and can export them to compressed files and restore
+-- them. The history pager reads archive.message once MESSAGE runs out.
+
+-- Creates the monthly partitions from the month of since up to
+-- months_ahead months after the current one, and the default partition
+-- for anything outside them. Returns the number of partitions created.
+CREATE OR REPLACE FUNCTION create_message_partitions(since timestamp, months_ahead integer)
+RETURNS integer AS $$
+DECLARE
+	month timestamp := date_trunc('month', since);
+	last timestamp := date_trunc('month', now()) + months_ahead * interval '1 month';
+	name text;
+	created integer := 0;
+BEGIN
+	WHILE month <= last LOOP
+		name := 'message_' || to_char(month, '"y"YYYY"m"MM');
+		IF to_regclass(name) IS NULL AND to_regclass('archive.' || name) IS NULL THEN
+			EXECUTE format('CREATE TABLE %I PARTITION OF MESSAGE FOR VALUES FROM (%L) TO (%L)',
+				name, month, month + interval '1 month');
+			created := created + 1;
+		END IF;
+		month := month + interval '1 month';
+	END LOOP;
+	IF to_regclass('message_default') IS NULL THEN
+		CREATE TABLE message_default PARTITION OF MESSAGE DEFAULT;
+	END IF;
+	RETURN created;
+END;
+$$ LANGUAGE plpgsql;
+
+-- a MESSAGE that is not partitioned yet is converted by partition_message.sql
+SELECT create_message_partitions(now() - interval '12 months', 3)
+FROM pg_partitioned_table WHERE partrelid = 'message'::regclass;
+
+-- Detached partitions keep their columns, so archive.message has exactly
+-- the columns of MESSAGE. It has no foreign keys: archived messages must
+-- not keep a chat or a user from being deleted.
+CREATE SCHEMA IF NOT EXISTS archive;
+
+CREATE TABLE IF NOT EXISTS archive.message(
+	msg_id integer NOT NULL, 
+	msg_text varchar(300) NOT NULL, 
+	msg_timestamp timestamp NOT NULL,
+	sender_login varchar(50),
+	chat_id integer,
+	msg_tsv tsvector,
+	PRIMARY KEY(msg_id, msg_timestamp))
+	PARTITION BY RANGE (msg_timestamp);
+
+CREATE INDEX IF NOT EXISTS archive_message_chat_history_idx
+	ON archive.message (chat_id, msg_timestamp DESC, msg_id DESC);
+CREATE INDEX IF NOT EXISTS archive_message_text_search_idx
+	ON archive.message USING gin (msg_tsv);
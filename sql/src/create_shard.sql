@@ -0,0 +1,34 @@
+-- Turns a database created by create_db.sh (without load_data.sql) into
+-- shard :shard of :shards of a sharded setup (see
+-- java/src/ShardRouter.java). Run with
+--   psql -v shard=<index> -v shards=<count> -f create_shard.sql
+--
+-- A shard holds CHAT, CHAT_LIST, MESSAGE and the tables derived from
+-- them; USR and the lists stay on the global node. So the foreign keys to
+-- USR go, and the block checks, which read the lists, are done on the
+-- global node when a member is added (see MessengerService). Re-running
+-- create_triggers.sql puts the block check triggers back; they find no
+-- lists on a shard and never fire.
+
+DO $$
+DECLARE
+	fk record;
+BEGIN
+	FOR fk IN SELECT conrelid::regclass AS tbl, conname FROM pg_constraint
+		WHERE contype = 'f' AND confrelid = 'usr'::regclass AND conparentid = 0
+	LOOP
+		EXECUTE format('ALTER TABLE %s DROP CONSTRAINT %I', fk.tbl, fk.conname);
+	END LOOP;
+END $$;
+
+DROP TRIGGER IF EXISTS block_check_message ON MESSAGE;
+DROP TRIGGER IF EXISTS block_check_chat_member ON CHAT_LIST;
+
+-- chat ids come from CHAT_DIRECTORY on the global node
+ALTER TABLE CHAT ALTER COLUMN chat_id DROP DEFAULT;
+
+-- message ids are unique across shards, so edits and deletions by msg_id
+-- and merged search pages need no shard: shard k of n hands out k + 1,
+-- k + 1 + n, k + 1 + 2n, ...
+SELECT :shard + 1 AS first_msg_id \gset
+ALTER SEQUENCE message_msg_id_seq INCREMENT BY :shards RESTART WITH :first_msg_id;
@@ -1,3 +1,7 @@
+DROP TABLE archive.message;
+-- derived from the tables below (see create_triggers.sql)
+DROP TABLE CHAT_SUMMARY;
+DROP TABLE MESSAGE_CHANGE;
 DROP TABLE MESSAGE;
 DROP TABLE CHAT_LIST;
 DROP TABLE CHAT;
@@ -5,51 +9,70 @@ DROP TABLE USER_LIST_CONTAINS;
 DROP TABLE USR;
 DROP TABLE USER_LIST;
 
+-- Text columns are variable length: char(n) stored every value blank
+-- padded to n. Databases created with char(n) columns are converted with
+-- CompactMigration (sql/scripts/migrate_compact.sh).
+--
+-- MESSAGE is partitioned by month on msg_timestamp, so its primary key
+-- has to include msg_timestamp; create_partitions.sql creates the
+-- partitions. msg_tsv is the search vector of msg_text, kept up to date by
+-- create_triggers.sql.
+--
+-- Deleted accounts and chats only get deleted_at set; PurgeJob removes
+-- them and the rows that reference them later, a chunk at a time.
+--
+-- CHAT_LIST.read_count and last_read_msg_id are a member's read marker in
+-- the chat, kept by create_triggers.sql.
+
 CREATE TABLE USER_LIST(
 	list_id serial,
-	list_type char(10) NOT NULL, 
+	list_type varchar(10) NOT NULL, 
 	PRIMARY KEY(list_id));
 
 CREATE TABLE USR(
-	login char(50), 
-	phoneNum CHAR(16) UNIQUE NOT NULL, 
-	password char(50) NOT NULL,
-	status char(140),
+	login varchar(50), 
+	phoneNum varchar(16) UNIQUE NOT NULL, 
+	password varchar(50) NOT NULL,
+	status varchar(140),
 	block_list integer,
 	contact_list integer,
+	deleted_at timestamp,
 	Primary Key(login),
 	FOREIGN KEY(block_list) REFERENCES USER_LIST(list_id),
 	FOREIGN KEY(contact_list) REFERENCES USER_LIST(list_id));
 
 CREATE TABLE USER_LIST_CONTAINS(
 	list_id integer,
-	list_member char(50),
+	list_member varchar(50),
 	PRIMARY KEY(list_id,list_member), 
 	FOREIGN KEY(list_id) REFERENCES USER_LIST(list_id) ON DELETE CASCADE,
 	FOREIGN KEY(list_member) REFERENCES USR(login) ON DELETE CASCADE);
 
 CREATE TABLE CHAT(
 	chat_id serial, 
-	chat_type char(50) NOT NULL,
-	init_sender char(50),
+	chat_type varchar(50) NOT NULL,
+	init_sender varchar(50),
+	deleted_at timestamp,
 	PRIMARY KEY(chat_id), 
 	FOREIGN KEY(init_sender) REFERENCES USR(login));
 
 CREATE TABLE CHAT_LIST(
 	chat_id integer, 
-	member char(50),
+	member varchar(50),
+	read_count bigint NOT NULL DEFAULT 0,
+	last_read_msg_id integer NOT NULL DEFAULT 0,
 	PRIMARY KEY(chat_id,member), 
 	FOREIGN KEY(member) REFERENCES USR(login), 
 	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id));
 
 CREATE TABLE MESSAGE(
 	msg_id serial, 
-	msg_text char(300) NOT NULL, 
+	msg_text varchar(300) NOT NULL, 
 	msg_timestamp timestamp NOT NULL,
-	sender_login char(50),
+	sender_login varchar(50),
 	chat_id integer,
-	PRIMARY KEY(msg_id), 
+	msg_tsv tsvector,
+	PRIMARY KEY(msg_id, msg_timestamp), 
 	FOREIGN KEY(sender_login) REFERENCES USR(login),
-	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id));
-
-
+	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id))
+	PARTITION BY RANGE (msg_timestamp);
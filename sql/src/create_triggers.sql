@@ -0,0 +1,401 @@
+-- Triggers for the tables in create_tables.sql, and the tables derived
+-- from them. Run after create_tables.sql
+-- (and after CompactMigration prepare on a migrated database); every
+-- statement can be re-run. The upgrade scripts in sql/scripts re-run it on
+-- databases created before some of the triggers existed, so the columns a
+-- trigger writes or reads are added here first if they are missing; the
+-- add_*.sh script of each feature then fills them in for the rows already
+-- there.
+
+-- The user_id columns of earlier versions are no longer kept.
+DROP TRIGGER IF EXISTS user_list_contains_member_id ON USER_LIST_CONTAINS;
+DROP TRIGGER IF EXISTS chat_init_sender_id ON CHAT;
+DROP TRIGGER IF EXISTS chat_list_member_id ON CHAT_LIST;
+DROP TRIGGER IF EXISTS message_sender_id ON MESSAGE;
+DROP FUNCTION IF EXISTS fill_list_member_id();
+DROP FUNCTION IF EXISTS fill_init_sender_id();
+DROP FUNCTION IF EXISTS fill_member_id();
+DROP FUNCTION IF EXISTS fill_sender_id();
+
+-- The search vector of a message follows its text. The configuration is
+-- fixed so that the vector only depends on the text.
+
+ALTER TABLE MESSAGE ADD COLUMN IF NOT EXISTS msg_tsv tsvector;
+
+CREATE OR REPLACE FUNCTION fill_msg_tsv() RETURNS trigger AS $$
+BEGIN
+	NEW.msg_tsv := to_tsvector('english', NEW.msg_text);
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS message_tsv ON MESSAGE;
+CREATE TRIGGER message_tsv
+	BEFORE INSERT OR UPDATE OF msg_text ON MESSAGE
+	FOR EACH ROW EXECUTE PROCEDURE fill_msg_tsv();
+
+-- Every new message is announced on the channel of its chat (chat_<id>),
+-- with the msg_id as payload. Listeners fetch the new rows themselves
+-- (see MessageListener), so the notification stays small.
+
+CREATE OR REPLACE FUNCTION notify_new_message() RETURNS trigger AS $$
+BEGIN
+	PERFORM pg_notify('chat_' || NEW.chat_id, CAST(NEW.msg_id AS text));
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS message_notify ON MESSAGE;
+CREATE TRIGGER message_notify
+	AFTER INSERT ON MESSAGE
+	FOR EACH ROW EXECUTE PROCEDURE notify_new_message();
+
+-- Block lists: a user cannot send to a chat that has a member who blocked
+-- them, and a chat owner cannot add a user who blocked the owner. Each
+-- check is one statement over the inserted rows that starts from the
+-- blocked login (user_list_contains_member_idx, then usr_block_list_idx),
+-- so it reads only the lists that name that user, not the chat's members:
+-- a send to a 500-member group costs the same as one to a private chat.
+
+CREATE OR REPLACE FUNCTION block_check_message() RETURNS trigger AS $$
+DECLARE
+	sender varchar;
+	chat integer;
+BEGIN
+	SELECT n.sender_login, n.chat_id INTO sender, chat
+	FROM new_rows n, USER_LIST_CONTAINS b, USR u, CHAT_LIST cl
+	WHERE b.list_member = n.sender_login AND u.block_list = b.list_id
+		AND cl.chat_id = n.chat_id AND cl.member = u.login
+	LIMIT 1;
+	IF FOUND THEN
+		RAISE EXCEPTION 'user % is blocked by a member of chat %', sender, chat
+			USING ERRCODE = 'check_violation';
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS block_check_message ON MESSAGE;
+CREATE TRIGGER block_check_message
+	AFTER INSERT ON MESSAGE REFERENCING NEW TABLE AS new_rows
+	FOR EACH STATEMENT EXECUTE PROCEDURE block_check_message();
+
+CREATE OR REPLACE FUNCTION block_check_chat_member() RETURNS trigger AS $$
+DECLARE
+	blocked_member varchar;
+BEGIN
+	SELECT n.member INTO blocked_member
+	FROM new_rows n, CHAT c, USR u, USER_LIST_CONTAINS b
+	WHERE c.chat_id = n.chat_id AND u.login = n.member
+		AND b.list_id = u.block_list AND b.list_member = c.init_sender
+	LIMIT 1;
+	IF FOUND THEN
+		RAISE EXCEPTION 'user % has blocked the chat owner', blocked_member
+			USING ERRCODE = 'check_violation';
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS block_check_chat_member ON CHAT_LIST;
+CREATE TRIGGER block_check_chat_member
+	AFTER INSERT ON CHAT_LIST REFERENCING NEW TABLE AS new_rows
+	FOR EACH STATEMENT EXECUTE PROCEDURE block_check_chat_member();
+
+-- One row per chat, so the chat list needs no aggregate over MESSAGE or
+-- CHAT_LIST. It is derived from the base tables, so it is defined here
+-- together with the triggers that maintain it.
+CREATE TABLE IF NOT EXISTS CHAT_SUMMARY(
+	chat_id integer,
+	member_count integer NOT NULL DEFAULT 0,
+	message_count bigint NOT NULL DEFAULT 0,
+	last_activity timestamp NOT NULL DEFAULT now(),
+	last_msg_id integer,
+	last_msg_timestamp timestamp,
+	last_sender varchar(50),
+	last_text varchar(300),
+	PRIMARY KEY(chat_id),
+	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id) ON DELETE CASCADE);
+
+-- CHAT_SUMMARY is maintained by statement-level triggers that read the
+-- changed rows from transition tables, so a bulk load or the deletion of
+-- a whole chat updates each summary row once per statement instead of
+-- once per row. Messages moved to the archive (MessageArchiver) still
+-- count towards message_count.
+--
+-- Every message insert updates its chat's summary row, so concurrent
+-- inserts into one chat queue on that row until they commit.
+
+CREATE OR REPLACE FUNCTION chat_summary_chat_insert() RETURNS trigger AS $$
+BEGIN
+	INSERT INTO CHAT_SUMMARY (chat_id)
+	SELECT chat_id FROM new_rows
+	ON CONFLICT (chat_id) DO NOTHING;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS chat_summary_chat_insert ON CHAT;
+CREATE TRIGGER chat_summary_chat_insert
+	AFTER INSERT ON CHAT REFERENCING NEW TABLE AS new_rows
+	FOR EACH STATEMENT EXECUTE PROCEDURE chat_summary_chat_insert();
+
+CREATE OR REPLACE FUNCTION chat_summary_member_insert() RETURNS trigger AS $$
+BEGIN
+	INSERT INTO CHAT_SUMMARY AS s (chat_id, member_count)
+	SELECT chat_id, count(*) FROM new_rows GROUP BY chat_id
+	ON CONFLICT (chat_id) DO UPDATE
+	SET member_count = s.member_count + EXCLUDED.member_count,
+		last_activity = greatest(s.last_activity, now());
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS chat_summary_member_insert ON CHAT_LIST;
+CREATE TRIGGER chat_summary_member_insert
+	AFTER INSERT ON CHAT_LIST REFERENCING NEW TABLE AS new_rows
+	FOR EACH STATEMENT EXECUTE PROCEDURE chat_summary_member_insert();
+
+CREATE OR REPLACE FUNCTION chat_summary_member_delete() RETURNS trigger AS $$
+BEGIN
+	UPDATE CHAT_SUMMARY s SET member_count = s.member_count - d.n
+	FROM (SELECT chat_id, count(*) AS n FROM old_rows GROUP BY chat_id) d
+	WHERE s.chat_id = d.chat_id;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS chat_summary_member_delete ON CHAT_LIST;
+CREATE TRIGGER chat_summary_member_delete
+	AFTER DELETE ON CHAT_LIST REFERENCING OLD TABLE AS old_rows
+	FOR EACH STATEMENT EXECUTE PROCEDURE chat_summary_member_delete();
+
+CREATE OR REPLACE FUNCTION chat_summary_message_insert() RETURNS trigger AS $$
+BEGIN
+	INSERT INTO CHAT_SUMMARY AS s (chat_id, message_count, last_activity,
+		last_msg_id, last_msg_timestamp, last_sender, last_text)
+	SELECT n.chat_id, c.n, greatest(n.msg_timestamp, now()),
+		n.msg_id, n.msg_timestamp, n.sender_login, n.msg_text
+	FROM (SELECT DISTINCT ON (chat_id) * FROM new_rows
+		ORDER BY chat_id, msg_timestamp DESC, msg_id DESC) n,
+		(SELECT chat_id, count(*) AS n FROM new_rows GROUP BY chat_id) c
+	WHERE c.chat_id = n.chat_id
+	ON CONFLICT (chat_id) DO UPDATE
+	SET message_count = s.message_count + EXCLUDED.message_count,
+		last_activity = greatest(s.last_activity, EXCLUDED.last_activity),
+		last_msg_id = CASE WHEN s.last_msg_id IS NULL
+			OR (EXCLUDED.last_msg_timestamp, EXCLUDED.last_msg_id) > (s.last_msg_timestamp, s.last_msg_id)
+			THEN EXCLUDED.last_msg_id ELSE s.last_msg_id END,
+		last_msg_timestamp = CASE WHEN s.last_msg_id IS NULL
+			OR (EXCLUDED.last_msg_timestamp, EXCLUDED.last_msg_id) > (s.last_msg_timestamp, s.last_msg_id)
+			THEN EXCLUDED.last_msg_timestamp ELSE s.last_msg_timestamp END,
+		last_sender = CASE WHEN s.last_msg_id IS NULL
+			OR (EXCLUDED.last_msg_timestamp, EXCLUDED.last_msg_id) > (s.last_msg_timestamp, s.last_msg_id)
+			THEN EXCLUDED.last_sender ELSE s.last_sender END,
+		last_text = CASE WHEN s.last_msg_id IS NULL
+			OR (EXCLUDED.last_msg_timestamp, EXCLUDED.last_msg_id) > (s.last_msg_timestamp, s.last_msg_id)
+			THEN EXCLUDED.last_text ELSE s.last_text END;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS chat_summary_message_insert ON MESSAGE;
+CREATE TRIGGER chat_summary_message_insert
+	AFTER INSERT ON MESSAGE REFERENCING NEW TABLE AS new_rows
+	FOR EACH STATEMENT EXECUTE PROCEDURE chat_summary_message_insert();
+
+CREATE OR REPLACE FUNCTION chat_summary_message_update() RETURNS trigger AS $$
+BEGIN
+	UPDATE CHAT_SUMMARY s SET last_text = n.msg_text
+	FROM new_rows n
+	WHERE s.chat_id = n.chat_id AND s.last_msg_id = n.msg_id;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS chat_summary_message_update ON MESSAGE;
+CREATE TRIGGER chat_summary_message_update
+	AFTER UPDATE ON MESSAGE REFERENCING NEW TABLE AS new_rows
+	FOR EACH STATEMENT EXECUTE PROCEDURE chat_summary_message_update();
+
+-- when the last message of a chat goes, the one before it is found with
+-- one read of message_chat_history_idx
+CREATE OR REPLACE FUNCTION chat_summary_message_delete() RETURNS trigger AS $$
+BEGIN
+	UPDATE CHAT_SUMMARY s SET message_count = s.message_count - d.n
+	FROM (SELECT chat_id, count(*) AS n FROM old_rows GROUP BY chat_id) d
+	WHERE s.chat_id = d.chat_id;
+
+	UPDATE CHAT_SUMMARY s
+	SET (last_msg_id, last_msg_timestamp, last_sender, last_text) =
+		(SELECT m.msg_id, m.msg_timestamp, m.sender_login, m.msg_text FROM MESSAGE m
+		WHERE m.chat_id = s.chat_id
+		ORDER BY m.msg_timestamp DESC, m.msg_id DESC LIMIT 1)
+	FROM old_rows o
+	WHERE s.chat_id = o.chat_id AND s.last_msg_id = o.msg_id;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS chat_summary_message_delete ON MESSAGE;
+CREATE TRIGGER chat_summary_message_delete
+	AFTER DELETE ON MESSAGE REFERENCING OLD TABLE AS old_rows
+	FOR EACH STATEMENT EXECUTE PROCEDURE chat_summary_message_delete();
+
+-- Rebuilds every summary from the base tables: for databases that had
+-- data before the triggers existed, and to repair drift. It counts every
+-- chat's messages, so it is not run here, where a re-run on a live database
+-- would repeat it each time; create_db.sh, add_chat_summary.sh and
+-- partition_message.sh run it.
+CREATE OR REPLACE FUNCTION refresh_chat_summary() RETURNS void AS $$
+BEGIN
+	DELETE FROM CHAT_SUMMARY;
+	INSERT INTO CHAT_SUMMARY (chat_id, member_count, message_count, last_activity,
+		last_msg_id, last_msg_timestamp, last_sender, last_text)
+	SELECT c.chat_id,
+		(SELECT count(*) FROM CHAT_LIST cl WHERE cl.chat_id = c.chat_id),
+		(SELECT count(*) FROM MESSAGE m WHERE m.chat_id = c.chat_id),
+		COALESCE(l.msg_timestamp, now()),
+		l.msg_id, l.msg_timestamp, l.sender_login, l.msg_text
+	FROM CHAT c LEFT JOIN LATERAL
+		(SELECT m.msg_id, m.msg_timestamp, m.sender_login, m.msg_text FROM MESSAGE m
+		WHERE m.chat_id = c.chat_id
+		ORDER BY m.msg_timestamp DESC, m.msg_id DESC LIMIT 1) l ON true;
+	IF to_regclass('archive.message') IS NOT NULL THEN
+		UPDATE CHAT_SUMMARY s SET message_count = s.message_count + a.n
+		FROM (SELECT chat_id, count(*) AS n FROM archive.message GROUP BY chat_id) a
+		WHERE s.chat_id = a.chat_id;
+	END IF;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Unread counts. A member's read_count is how many of the chat's messages
+-- (CHAT_SUMMARY.message_count) the member has read or sent, so the unread
+-- count of every chat in the inbox is message_count - read_count, read
+-- with the chat list and no aggregate over MESSAGE. Marking a chat read
+-- sets read_count to message_count and last_read_msg_id to the chat's
+-- last message.
+--
+-- A new message only updates its sender's CHAT_LIST row, not one row per
+-- member; deleting messages updates every member that had counted them,
+-- that is the sender and those whose marker was past them. Whoever joins
+-- a chat has read what was sent before.
+
+ALTER TABLE CHAT_LIST ADD COLUMN IF NOT EXISTS read_count bigint NOT NULL DEFAULT 0;
+ALTER TABLE CHAT_LIST ADD COLUMN IF NOT EXISTS last_read_msg_id integer NOT NULL DEFAULT 0;
+
+CREATE OR REPLACE FUNCTION unread_member_insert() RETURNS trigger AS $$
+BEGIN
+	SELECT s.message_count, COALESCE(s.last_msg_id, 0)
+	INTO NEW.read_count, NEW.last_read_msg_id
+	FROM CHAT_SUMMARY s WHERE s.chat_id = NEW.chat_id;
+	IF NOT FOUND THEN
+		NEW.read_count := 0;
+		NEW.last_read_msg_id := 0;
+	END IF;
+	RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS unread_member_insert ON CHAT_LIST;
+CREATE TRIGGER unread_member_insert
+	BEFORE INSERT ON CHAT_LIST
+	FOR EACH ROW EXECUTE PROCEDURE unread_member_insert();
+
+CREATE OR REPLACE FUNCTION unread_message_insert() RETURNS trigger AS $$
+BEGIN
+	UPDATE CHAT_LIST cl SET read_count = cl.read_count + n.n
+	FROM (SELECT chat_id, sender_login, count(*) AS n FROM new_rows
+		GROUP BY chat_id, sender_login) n
+	WHERE cl.chat_id = n.chat_id AND cl.member = n.sender_login;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS unread_message_insert ON MESSAGE;
+CREATE TRIGGER unread_message_insert
+	AFTER INSERT ON MESSAGE REFERENCING NEW TABLE AS new_rows
+	FOR EACH STATEMENT EXECUTE PROCEDURE unread_message_insert();
+
+CREATE OR REPLACE FUNCTION unread_message_delete() RETURNS trigger AS $$
+BEGIN
+	UPDATE CHAT_LIST cl SET read_count = greatest(cl.read_count - d.n, 0)
+	FROM (SELECT r.chat_id, r.member, count(*) AS n
+		FROM old_rows o, CHAT_LIST r
+		WHERE r.chat_id = o.chat_id
+		AND (r.member = o.sender_login OR r.last_read_msg_id >= o.msg_id)
+		GROUP BY r.chat_id, r.member) d
+	WHERE cl.chat_id = d.chat_id AND cl.member = d.member;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS unread_message_delete ON MESSAGE;
+CREATE TRIGGER unread_message_delete
+	AFTER DELETE ON MESSAGE REFERENCING OLD TABLE AS old_rows
+	FOR EACH STATEMENT EXECUTE PROCEDURE unread_message_delete();
+
+-- Marks every chat read by all of its members: for databases that had
+-- data before the read markers existed, and after a bulk load.
+CREATE OR REPLACE FUNCTION refresh_unread_counts() RETURNS void AS $$
+BEGIN
+	UPDATE CHAT_LIST cl
+	SET read_count = s.message_count, last_read_msg_id = COALESCE(s.last_msg_id, 0)
+	FROM CHAT_SUMMARY s
+	WHERE s.chat_id = cl.chat_id
+	AND (cl.read_count, cl.last_read_msg_id) IS DISTINCT FROM (s.message_count, COALESCE(s.last_msg_id, 0));
+END;
+$$ LANGUAGE plpgsql;
+
+-- Edits and deletions of messages, for clients that cache chat history
+-- (see MessageCache): a client that has a chat's messages up to some
+-- point reads the new messages after it and the changes since its last
+-- sync, instead of the whole history again. Only the key of a changed
+-- message is logged; the client reads its current text. Messages deleted
+-- with their chat are not logged. PurgeJob removes changes older than a
+-- week; a client that has not synced a chat for that long reads it again.
+CREATE TABLE IF NOT EXISTS MESSAGE_CHANGE(
+	change_id bigserial,
+	chat_id integer NOT NULL,
+	msg_id integer NOT NULL,
+	msg_timestamp timestamp NOT NULL,
+	kind char(1) NOT NULL,
+	changed_at timestamp NOT NULL DEFAULT now(),
+	PRIMARY KEY(change_id));
+
+CREATE INDEX IF NOT EXISTS message_change_chat_idx
+	ON MESSAGE_CHANGE (chat_id, changed_at);
+
+CREATE OR REPLACE FUNCTION message_change_update() RETURNS trigger AS $$
+BEGIN
+	INSERT INTO MESSAGE_CHANGE (chat_id, msg_id, msg_timestamp, kind)
+	SELECT n.chat_id, n.msg_id, n.msg_timestamp, 'e'
+	FROM new_rows n, old_rows o
+	WHERE o.msg_id = n.msg_id AND o.msg_timestamp = n.msg_timestamp
+	AND o.msg_text IS DISTINCT FROM n.msg_text;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS message_change_update ON MESSAGE;
+CREATE TRIGGER message_change_update
+	AFTER UPDATE ON MESSAGE REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+	FOR EACH STATEMENT EXECUTE PROCEDURE message_change_update();
+
+-- deleted_at comes with add_soft_delete.sh; until then no chat is deleted
+ALTER TABLE CHAT ADD COLUMN IF NOT EXISTS deleted_at timestamp;
+
+CREATE OR REPLACE FUNCTION message_change_delete() RETURNS trigger AS $$
+BEGIN
+	INSERT INTO MESSAGE_CHANGE (chat_id, msg_id, msg_timestamp, kind)
+	SELECT o.chat_id, o.msg_id, o.msg_timestamp, 'd'
+	FROM old_rows o, CHAT c
+	WHERE c.chat_id = o.chat_id AND c.deleted_at IS NULL;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS message_change_delete ON MESSAGE;
+CREATE TRIGGER message_change_delete
+	AFTER DELETE ON MESSAGE REFERENCING OLD TABLE AS old_rows
+	FOR EACH STATEMENT EXECUTE PROCEDURE message_change_delete();
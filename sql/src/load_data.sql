@@ -4,19 +4,32 @@ WITH DELIMITER ';';
 ALTER SEQUENCE user_list_list_id_seq RESTART 55906;
 
 COPY USR
+	(login,
+	phoneNum,
+	password,
+	status,
+	block_list,
+	contact_list)
 FROM 'usr.csv'
 WITH DELIMITER ';';
 
 COPY USER_LIST_CONTAINS
+	(list_id,
+	list_member)
 FROM 'usr_list_contains.csv'
 WITH DELIMITER ';';
 
 COPY CHAT
+	(chat_id,
+	chat_type,
+	init_sender)
 FROM 'chat.csv'
 WITH DELIMITER ';';
 ALTER SEQUENCE chat_chat_id_seq RESTART 5001;
 
 COPY CHAT_LIST
+	(chat_id,
+	member)
 FROM 'chat_list.csv'
 WITH DELIMITER ';';
 
@@ -30,3 +43,6 @@ FROM 'message.csv'
 WITH DELIMITER ';';
 ALTER SEQUENCE message_msg_id_seq RESTART 50000;
 
+
+-- loaded history counts as read (see create_triggers.sql)
+SELECT refresh_unread_counts();
@@ -0,0 +1,39 @@
+-- Table size, index size and join latency, for comparing the database
+-- before and after CompactMigration. Each section is preceded by a
+-- '### <name>' marker that measure_storage.sh uses to summarize the plans.
+
+\echo '### sizes'
+SELECT c.relname AS table_name,
+	c.reltuples::bigint AS row_estimate,
+	pg_size_pretty(pg_relation_size(c.oid)) AS heap,
+	pg_size_pretty(pg_indexes_size(c.oid)) AS indexes,
+	pg_size_pretty(pg_total_relation_size(c.oid)) AS total,
+	CASE WHEN c.reltuples > 0
+		THEN round(pg_relation_size(c.oid) / c.reltuples) END AS heap_bytes_per_row
+FROM pg_class c
+WHERE c.relkind = 'r'
+AND c.relname IN ('usr', 'user_list', 'user_list_contains', 'chat', 'chat_list', 'message')
+ORDER BY pg_total_relation_size(c.oid) DESC;
+
+SELECT pg_size_pretty(sum(pg_total_relation_size(c.oid))) AS database_tables
+FROM pg_class c
+WHERE c.relkind = 'r'
+AND c.relname IN ('usr', 'user_list', 'user_list_contains', 'chat', 'chat_list', 'message');
+
+-- joins on the login: every comparison is on a padded char(50) key before
+-- the migration and on a varchar after it
+
+\echo '### join_message_sender'
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT count(*), sum(length(u.status)) FROM MESSAGE m, USR u
+WHERE u.login = m.sender_login;
+
+\echo '### join_chat_members'
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT count(*), sum(length(u.status)) FROM CHAT_LIST cl, USR u
+WHERE u.login = cl.member;
+
+\echo '### join_contacts'
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT count(*), sum(length(u.status)) FROM USR o, USER_LIST_CONTAINS c, USR u
+WHERE c.list_id = o.contact_list AND u.login = c.list_member;
@@ -0,0 +1,50 @@
+-- Converts the unpartitioned MESSAGE of a database created before
+-- partitioning into the partitioned table of create_tables.sql. Run by
+-- partition_message.sh after create_partitions.sql. MESSAGE is locked for
+-- the whole copy, so run it in a quiet period.
+
+BEGIN;
+LOCK TABLE MESSAGE IN ACCESS EXCLUSIVE MODE;
+
+ALTER TABLE MESSAGE RENAME TO message_unpartitioned;
+ALTER INDEX message_pkey RENAME TO message_unpartitioned_pkey;
+DROP INDEX IF EXISTS message_chat_history_idx;
+DROP INDEX IF EXISTS message_sender_idx;
+
+CREATE TABLE MESSAGE(
+	msg_id integer NOT NULL, 
+	msg_text varchar(300) NOT NULL, 
+	msg_timestamp timestamp NOT NULL,
+	sender_login varchar(50),
+	chat_id integer,
+	msg_tsv tsvector,
+	PRIMARY KEY(msg_id, msg_timestamp), 
+	FOREIGN KEY(sender_login) REFERENCES USR(login),
+	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id))
+	PARTITION BY RANGE (msg_timestamp);
+
+-- the sequence would be dropped with the old table
+ALTER TABLE MESSAGE ALTER COLUMN msg_id SET DEFAULT nextval('message_msg_id_seq');
+ALTER SEQUENCE message_msg_id_seq OWNED BY MESSAGE.msg_id;
+
+SELECT create_message_partitions(
+	COALESCE((SELECT min(msg_timestamp) FROM message_unpartitioned), now()), 3);
+
+INSERT INTO MESSAGE (msg_id, msg_text, msg_timestamp, sender_login, chat_id, msg_tsv)
+SELECT msg_id, msg_text, msg_timestamp, sender_login, chat_id,
+	to_tsvector('english', msg_text)
+FROM message_unpartitioned;
+
+DROP TABLE message_unpartitioned;
+
+-- as in create_indexes.sql
+CREATE INDEX message_chat_history_idx
+	ON MESSAGE (chat_id, msg_timestamp DESC, msg_id DESC);
+CREATE INDEX message_sender_idx
+	ON MESSAGE (sender_login);
+CREATE INDEX message_text_search_idx
+	ON MESSAGE USING gin (msg_tsv);
+
+COMMIT;
+
+ANALYZE MESSAGE;
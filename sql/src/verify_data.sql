@@ -0,0 +1,29 @@
+-- Loads the bundled data/*.csv files from the client side and synthesizes
+-- the tables that are not shipped (USER_LIST_CONTAINS, MESSAGE) so that the
+-- planner sees realistic row counts. Run from the repository root.
+
+\copy USER_LIST FROM 'data/usr_list.csv' WITH DELIMITER ';'
+\copy USR (login, phoneNum, password, status, block_list, contact_list) FROM 'data/usr.csv' WITH DELIMITER ';'
+\copy CHAT (chat_id, chat_type, init_sender) FROM 'data/chat.csv' WITH DELIMITER ';'
+\copy CHAT_LIST (chat_id, member) FROM 'data/chat_list.csv' WITH DELIMITER ';'
+
+-- members of a chat have each other as contacts; about one pair in ten
+-- is blocked instead
+INSERT INTO USER_LIST_CONTAINS (list_id, list_member)
+SELECT DISTINCT CASE WHEN abs(hashtext(a.member || b.member)) % 10 = 0
+		THEN u.block_list ELSE u.contact_list END, b.member
+FROM CHAT_LIST a, CHAT_LIST b, USR u
+WHERE a.chat_id = b.chat_id
+AND a.member <> b.member
+AND u.login = a.member;
+
+-- ten messages per member of every chat
+INSERT INTO MESSAGE (msg_text, msg_timestamp, sender_login, chat_id)
+SELECT 'synthetic message ' || g, now() - (g * 997 + cl.chat_id) * interval '1 second',
+	cl.member, cl.chat_id
+FROM CHAT_LIST cl, generate_series(1, 10) g;
+
+SELECT setval('user_list_list_id_seq', (SELECT max(list_id) FROM USER_LIST));
+SELECT setval('chat_chat_id_seq', (SELECT max(chat_id) FROM CHAT));
+
+ANALYZE;
@@ -0,0 +1,140 @@
+-- EXPLAIN (ANALYZE, BUFFERS) of every hot query in java/src/Query.java,
+-- with sample values from the bundled data. Each plan is preceded by a
+-- '### <operation>' marker that verify_indexes.sh uses to report which
+-- query fell back to a sequential scan. Writes run inside a transaction
+-- that is rolled back.
+
+\echo '### login'
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT login FROM USR WHERE login = 'Norma' AND password = '8c0bb848dc6691e9e8580f1b5eff110880d3';
+
+\echo '### list_chats'
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT chat_id AS Current_Chats FROM CHAT_LIST WHERE member = 'Norma';
+
+\echo '### list_chat_summaries'
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT s.chat_id, greatest(s.message_count - cl.read_count, 0) AS unread, s.member_count, s.message_count,
+s.last_activity, s.last_sender, s.last_text, sum(greatest(s.message_count - cl.read_count, 0)) OVER () AS total_unread
+FROM CHAT_LIST cl, CHAT_SUMMARY s
+WHERE cl.member = 'Norma' AND s.chat_id = cl.chat_id
+ORDER BY s.last_activity DESC, s.chat_id DESC;
+
+\echo '### search_messages'
+EXPLAIN (ANALYZE, BUFFERS)
+WITH q AS (SELECT websearch_to_tsquery('english', 'hello') AS q), c AS (SELECT chat_id FROM CHAT_LIST WHERE member = 'Norma'),
+r AS (SELECT m.msg_id, ts_rank(m.msg_tsv, q.q) AS rank, m.chat_id, m.msg_timestamp, m.sender_login, m.msg_text FROM q, MESSAGE m WHERE m.msg_tsv @@ q.q AND m.chat_id IN (SELECT chat_id FROM c)
+UNION ALL SELECT m.msg_id, ts_rank(m.msg_tsv, q.q), m.chat_id, m.msg_timestamp, m.sender_login, m.msg_text FROM q, archive.message m WHERE m.msg_tsv @@ q.q AND m.chat_id IN (SELECT chat_id FROM c))
+SELECT * FROM r ORDER BY r.rank DESC, r.msg_id DESC LIMIT 10;
+
+\echo '### is_chat_member'
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT member FROM CHAT_LIST WHERE chat_id = 0 AND member = 'Judy';
+
+\echo '### is_chat_owner'
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT init_sender FROM CHAT WHERE chat_id = 0 AND init_sender = 'Judy';
+
+\echo '### list_chat_members'
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT member FROM CHAT_LIST WHERE chat_id = 0;
+
+\echo '### page_messages_latest'
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT m.msg_id, m.msg_timestamp, m.sender_login, m.msg_text FROM MESSAGE m
+WHERE m.chat_id = 0 ORDER BY m.msg_timestamp DESC, m.msg_id DESC LIMIT 10;
+
+\echo '### page_messages_before'
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT m.msg_id, m.msg_timestamp, m.sender_login, m.msg_text FROM MESSAGE m
+WHERE m.chat_id = 0 AND (m.msg_timestamp, m.msg_id) < (now() - interval '1 hour', 2147483647)
+ORDER BY m.msg_timestamp DESC, m.msg_id DESC LIMIT 10;
+
+\echo '### sync_chat'
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT * FROM (SELECT CAST('m' AS char(1)) AS kind, m.msg_id, m.msg_timestamp, m.sender_login, m.msg_text FROM MESSAGE m
+WHERE m.chat_id = 0 AND m.msg_timestamp >= now() - interval '1 hour' AND (m.msg_timestamp, m.msg_id) > (now() - interval '1 hour', 0)
+ORDER BY m.msg_timestamp, m.msg_id LIMIT 1000) n
+UNION ALL SELECT c.kind, c.msg_id, c.msg_timestamp, NULL, m.msg_text FROM MESSAGE_CHANGE c
+LEFT JOIN MESSAGE m ON m.msg_id = c.msg_id AND m.msg_timestamp = c.msg_timestamp
+WHERE c.chat_id = 0 AND c.changed_at >= now() - interval '1 hour'
+UNION ALL SELECT 's', 0, CAST(now() AS timestamp), NULL, NULL;
+
+\echo '### list_contacts'
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT u1.login AS Contacts, u1.status AS Status_Message FROM USER_LIST_CONTAINS con, USR u, USR u1
+WHERE u.login = 'Norma' AND u.contact_list = con.list_id AND con.list_member = u1.login;
+
+\echo '### list_blocked'
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT u1.login AS Blocked_Contacts FROM USER_LIST_CONTAINS con, USR u, USR u1
+WHERE u.login = 'Norma' AND u.block_list = con.list_id AND con.list_member = u1.login;
+
+\echo '### block_check_message'
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT n.sender_login, n.chat_id
+FROM (VALUES ('Judy', 0)) n(sender_login, chat_id), USER_LIST_CONTAINS b, USR u, CHAT_LIST cl
+WHERE b.list_member = n.sender_login AND u.block_list = b.list_id
+AND cl.chat_id = n.chat_id AND cl.member = u.login
+LIMIT 1;
+
+\echo '### block_check_chat_member'
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT n.member
+FROM (VALUES (0, 'Lonny')) n(chat_id, member), CHAT c, USR u, USER_LIST_CONTAINS b
+WHERE c.chat_id = n.chat_id AND u.login = n.member
+AND b.list_id = u.block_list AND b.list_member = c.init_sender
+LIMIT 1;
+
+\echo '### user_exists'
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT login FROM USR WHERE login = 'Lonny';
+
+BEGIN;
+
+\echo '### delete_contact'
+EXPLAIN (ANALYZE, BUFFERS)
+DELETE FROM USER_LIST_CONTAINS WHERE list_member = 'Lonny'
+AND list_id = (SELECT contact_list FROM USR WHERE login = 'Norma');
+
+\echo '### mark_chat_read'
+EXPLAIN (ANALYZE, BUFFERS)
+UPDATE CHAT_LIST cl SET read_count = s.message_count, last_read_msg_id = COALESCE(s.last_msg_id, 0)
+FROM CHAT_SUMMARY s WHERE s.chat_id = cl.chat_id AND cl.chat_id = 1 AND cl.member = 'Norma';
+
+\echo '### edit_message'
+EXPLAIN (ANALYZE, BUFFERS)
+UPDATE MESSAGE SET msg_text = 'edited' WHERE msg_id = 1 AND sender_login = 'Judy';
+
+\echo '### purge_pending_chats'
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT chat_id FROM CHAT WHERE deleted_at IS NOT NULL ORDER BY deleted_at LIMIT 100;
+
+\echo '### purge_chat_messages'
+EXPLAIN (ANALYZE, BUFFERS)
+DELETE FROM MESSAGE WHERE (msg_id, msg_timestamp) IN
+(SELECT msg_id, msg_timestamp FROM MESSAGE WHERE chat_id = 0 LIMIT 1000);
+
+\echo '### purge_account_messages'
+EXPLAIN (ANALYZE, BUFFERS)
+DELETE FROM MESSAGE WHERE (msg_id, msg_timestamp) IN
+(SELECT msg_id, msg_timestamp FROM MESSAGE WHERE sender_login = 'Judy' LIMIT 1000);
+
+\echo '### delete_chat_members'
+EXPLAIN (ANALYZE, BUFFERS)
+DELETE FROM CHAT_LIST WHERE chat_id = 0;
+
+ROLLBACK;
+
+-- Deletes that cascade or are checked through foreign keys do not show the
+-- referencing side in their plans, so check instead that every foreign key
+-- has an index whose leading column is the referencing column.
+\echo '### unindexed_foreign_keys'
+SELECT 'Seq Scan on ' || c.conrelid::regclass || ' (unindexed foreign key '
+	|| c.conname || ')' AS problem
+FROM pg_constraint c
+WHERE c.contype = 'f'
+AND NOT EXISTS (
+	SELECT 1 FROM pg_index i
+	WHERE i.indrelid = c.conrelid
+	AND i.indkey[0] = c.conkey[1]);